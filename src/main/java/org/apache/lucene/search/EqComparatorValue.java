@@ -1,14 +0,0 @@
-package org.apache.lucene.search;
-
-
-import org.apache.lucene.util.BytesRef;
-
-public class EqComparatorValue {
-
-    public int intValue;
-    public long longValue;
-    public float floatValue;
-    public double doubleValue;
-    public float scoreValue;
-    public BytesRef bytesRefValue;
-}
@@ -0,0 +1,103 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Scores a segment either with the union of all subquery scorers or, if the
+ * collector asks for it by setting {@link EqDisjunctionMaxScorer#cascade},
+ * subquery after subquery.
+ *
+ * In the cascade mode a doc is only collected for the first subquery it
+ * matches, the docs of the earlier subqueries are excluded using a bitset.
+ * As soon as the collector throws {@link CollectionTerminatedException} the
+ * remaining subqueries are not evaluated on this segment.
+ */
+public class EqDisjunctionBulkScorer extends BulkScorer {
+
+    private final EqDisjunctionMaxScorer scorer;
+    private final Scorer[] subScorers;
+    private final ScoreMode scoreMode;
+    private final int maxDoc;
+
+    public EqDisjunctionBulkScorer(EqDisjunctionMaxScorer scorer, Scorer[] subScorers, ScoreMode scoreMode, int maxDoc) {
+        this.scorer = scorer;
+        this.subScorers = subScorers;
+        this.scoreMode = scoreMode;
+        this.maxDoc = maxDoc;
+    }
+
+    @Override
+    public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException {
+        collector.setScorer(scorer);
+
+        if (scorer.cascade && scorer.docID() == -1 && min == 0 && max == DocIdSetIterator.NO_MORE_DOCS) {
+            scoreCascade(collector, acceptDocs);
+            return DocIdSetIterator.NO_MORE_DOCS;
+        }
+
+        DocIdSetIterator it = scorer.iterator();
+        int doc = it.docID();
+        if (doc < min) {
+            doc = it.advance(min);
+        }
+        while (doc < max) {
+            if (acceptDocs == null || acceptDocs.get(doc)) {
+                collector.collect(doc);
+            }
+            doc = it.nextDoc();
+        }
+        return doc;
+    }
+
+    private void scoreCascade(LeafCollector collector, Bits acceptDocs) throws IOException {
+        int last = subScorers.length - 1;
+        while (last >= 0 && subScorers[last] == null) {
+            last--;
+        }
+
+        // docs of the subqueries evaluated so far
+        FixedBitSet seen = null;
+
+        for (int i = 0; i <= last; i++) {
+            if (subScorers[i] == null) {
+                continue;
+            }
+
+            // keep the position of the subquery, so the doc is collected into its bucket
+            Scorer[] single = new Scorer[subScorers.length];
+            single[i] = subScorers[i];
+            EqDisjunctionMaxScorer pass = new EqDisjunctionMaxScorer(scorer.getWeight(), single, scoreMode);
+
+            try {
+                collector.setScorer(pass);
+                DocIdSetIterator it = pass.iterator();
+                for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+                    if (acceptDocs != null && !acceptDocs.get(doc)) {
+                        continue;
+                    }
+                    if (seen != null && seen.get(doc)) {
+                        continue;
+                    }
+                    if (i < last) {
+                        if (seen == null) {
+                            seen = new FixedBitSet(maxDoc);
+                        }
+                        seen.set(doc);
+                    }
+                    collector.collect(doc);
+                }
+            } catch (CollectionTerminatedException e) {
+                // the buckets of the remaining subqueries cannot contribute anymore
+                return;
+            }
+        }
+    }
+
+    @Override
+    public long cost() {
+        return scorer.iterator().cost();
+    }
+}
@@ -1,10 +1,13 @@
 package org.apache.lucene.search;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -17,25 +20,53 @@ import org.apache.commons.lang.ArrayUtils;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.handler.component.MergeStrategy;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.request.SolrRequestInfo;
-import org.apache.solr.search.CursorMark;
 import org.apache.solr.search.QueryCommand;
 import org.apache.solr.search.RankQuery;
 import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.eq.EqCursorMark;
 import org.apache.solr.search.eq.EqQueryCommand;
+import org.apache.solr.search.eq.EqQueryState;
+import org.apache.solr.search.eq.EqSubQueryCache;
 
 public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query> {
 
     public static final int GET_SCORES = 0x01;
 
+    // orders sort_2 before sort_10
+    private static final Comparator<String> BY_SUBQUERY_INDEX =
+            Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder());
+
     private final Query[] disjuncts;
 
-    private EqQueryCommand queryCmdWrapper;
+    /* sorts and limits of the subqueries keyed by sort_i and lim_i, see EqQueryCommand */
+    private final Map<String, Sort> subSorts;
+    private final Map<String, Integer> limits;
+
+    /* null if the mode is taken from the request, see EqQueryCommand#EXECUTION_MODE */
+    private final EqExecutionMode mode;
+
+    /* the totem of the page, null without deep paging, see EqCursorMark */
+    private final String cursorMark;
+
+    /* the hits are counted exactly up to the threshold, see EqQueryCommand#TOTAL_HITS_THRESHOLD */
+    private final int totalHitsThreshold;
 
-    private EqTopFieldCollector topFieldDocCollector;
+    /* the leading buckets skipped for a deep page and the number of their docs, see EqBucketPlanner */
+    private final int skippedBuckets;
+    private final int skippedDocs;
+
+    /*
+     * the parsed query a rewritten query was created from, the execution
+     * state of the request is kept for the parsed query, see EqQueryState
+     */
+    private final EqDisjunctionMaxQuery origin;
 
     @Override
     public Iterator<Query> iterator() {
@@ -43,14 +74,80 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
     }
 
     public EqDisjunctionMaxQuery(Collection<Query> disjuncts) {
+        this(disjuncts, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    public EqDisjunctionMaxQuery(Collection<Query> disjuncts, Map<String, Sort> subSorts, Map<String, Integer> limits) {
+        this(disjuncts, subSorts, limits, null);
+    }
+
+    public EqDisjunctionMaxQuery(Collection<Query> disjuncts, Map<String, Sort> subSorts, Map<String, Integer> limits,
+                                 EqExecutionMode mode) {
+        this(disjuncts, subSorts, limits, mode, null);
+    }
+
+    public EqDisjunctionMaxQuery(Collection<Query> disjuncts, Map<String, Sort> subSorts, Map<String, Integer> limits,
+                                 EqExecutionMode mode, String cursorMark) {
+        this(disjuncts, subSorts, limits, mode, cursorMark, Integer.MAX_VALUE);
+    }
+
+    public EqDisjunctionMaxQuery(Collection<Query> disjuncts, Map<String, Sort> subSorts, Map<String, Integer> limits,
+                                 EqExecutionMode mode, String cursorMark, int totalHitsThreshold) {
+        this(disjuncts, subSorts, limits, mode, cursorMark, totalHitsThreshold, 0, 0, null);
+    }
+
+    private EqDisjunctionMaxQuery(Collection<Query> disjuncts, Map<String, Sort> subSorts, Map<String, Integer> limits,
+                                  EqExecutionMode mode, String cursorMark, int totalHitsThreshold, int skippedBuckets,
+                                  int skippedDocs, EqDisjunctionMaxQuery origin) {
         Objects.requireNonNull(disjuncts, "Collection of Queries must not be null");
         this.disjuncts = disjuncts.toArray(new Query[disjuncts.size()]);
+        this.subSorts = Collections.unmodifiableMap(new HashMap<>(subSorts));
+        this.limits = Collections.unmodifiableMap(new HashMap<>(limits));
+        this.mode = mode;
+        this.cursorMark = cursorMark;
+        this.totalHitsThreshold = totalHitsThreshold;
+        this.skippedBuckets = skippedBuckets;
+        this.skippedDocs = skippedDocs;
+        this.origin = origin;
     }
 
     public List<Query> getDisjuncts() {
         return Collections.unmodifiableList(Arrays.asList(disjuncts));
     }
 
+    public Map<String, Sort> getSubSorts() {
+        return subSorts;
+    }
+
+    public Map<String, Integer> getLimits() {
+        return limits;
+    }
+
+    public EqExecutionMode getExecutionMode() {
+        return mode;
+    }
+
+    public String getCursorMark() {
+        return cursorMark;
+    }
+
+    public int getTotalHitsThreshold() {
+        return totalHitsThreshold;
+    }
+
+    public int getSkippedBuckets() {
+        return skippedBuckets;
+    }
+
+    /**
+     * Returns the query for a deep page behind the leading unlimited buckets,
+     * their docs are counted but not collected, see EqTopFieldCollector#skipBuckets.
+     */
+    public EqDisjunctionMaxQuery skipBuckets(int buckets, int docs) {
+        return new EqDisjunctionMaxQuery(getDisjuncts(), subSorts, limits, mode, cursorMark, totalHitsThreshold, buckets, docs,
+                null);
+    }
+
     @Override
     public MergeStrategy getMergeStrategy() {
         // TODO Auto-generated method stub
@@ -59,7 +156,8 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
 
     @Override
     public boolean getCache() {
-        return false;
+        // the subquery index of the hits is cached by EqQueryComponent
+        return true;
     }
 
     @Override
@@ -71,14 +169,17 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
     public TopDocsCollector getTopDocsCollector(int len, QueryCommand queryCommand, IndexSearcher searcher) throws IOException {
         SolrIndexSearcher solrIndexSearcher = (SolrIndexSearcher) searcher;
 
-        SolrParams params = SolrRequestInfo.getRequestInfo().getReq().getParams();
         ResponseBuilder rb = SolrRequestInfo.getRequestInfo().getResponseBuilder();
 
-        final CursorMark cursor = rb.getCursorMark();
-        final boolean fillFields = (null != cursor);
-        final FieldDoc searchAfter = (null != cursor ? cursor.getSearchAfterFieldDoc() : null);
+        if (rb.getCursorMark() != null) {
+            // the CursorMark knows only the concatenated sort of the buckets
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    CursorMarkParams.CURSOR_MARK_PARAM + " is not supported by '<<', use " + EqQueryCommand.CURSOR_MARK);
+        }
+        final boolean fillFields = cursorMark != null;
 
-        int maxDocRequested = rb.getSortSpec().getOffset() + rb.getSortSpec().getCount();
+        // len covers the queryResultWindowSize, so the next pages are cached too
+        int maxDocRequested = len;
         // check for overflow, and check for # docs in index
         if (maxDocRequested < 0 || maxDocRequested > solrIndexSearcher.maxDoc())
             maxDocRequested = solrIndexSearcher.maxDoc();
@@ -86,8 +187,72 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
 
         final boolean needScores = (rb.getFieldFlags() & GET_SCORES) != 0;
 
+        EqQueryCommand cmd = queryCommand(queryCommand, rb);
+        Sort[] sorts = resolveSorts(cmd);
+
+        // in cursor mode the uniqueKey breaks the ties of each bucket
+        EqFieldDoc searchAfter = null;
+        if (cursorMark != null) {
+            SchemaField uniqueKey = rb.req.getSchema().getUniqueKeyField();
+            for (int i = 0; i < sorts.length; i++) {
+                sorts[i] = EqCursorMark.withTieBreak(sorts[i], uniqueKey);
+            }
+            EqCursorMark cursor = EqCursorMark.parse(cursorMark);
+            searchAfter = cursor != null ? cursor.toFieldDoc(sorts) : null;
+        }
+
+        int[] subLimits = resolveLimits(cmd);
+        // a doc set needs every hit, the skipping or the cascade would drop docs of it
+        Boolean docSetsPerBucket = EqQueryState.collectsDocSets(rb.req, this);
+        boolean needDocSet = queryCommand.isNeedDocSet() || docSetsPerBucket != null;
+        int threshold = needDocSet ? Integer.MAX_VALUE : totalHitsThreshold;
+        EqTopFieldCollector collector = EqTopFieldCollector.create(sorts, subLimits, supersetMaxDoc, searchAfter,
+                fillFields, needScores, needScores, threshold, needDocSet ? EqExecutionMode.UNION : cmd.getExecutionMode());
+        if (docSetsPerBucket != null) {
+            collector.collectDocSets(solrIndexSearcher.maxDoc(), docSetsPerBucket);
+        }
+        if (skippedBuckets > 0) {
+            collector.skipBuckets(skippedBuckets, skippedDocs);
+        }
+        // the cached top docs of a subquery start at its first doc, a doc set needs all the subqueries
+        int seededBuckets = searchAfter != null || needDocSet ? 0 : EqSubQueryCache.seed(solrIndexSearcher, queryCommand, getDisjuncts(),
+                sorts, subLimits, supersetMaxDoc, collector);
+        EqQueryState.set(rb.req, this, new EqQueryState(cmd, collector, seededBuckets));
+        return collector;
+    }
+
+    /**
+     * Returns the collector of a request without rows, it only counts the docs
+     * of each bucket, see EqTopFieldCollector#createCounting.
+     */
+    public EqTopFieldCollector getCountingCollector(QueryCommand queryCommand) {
+        ResponseBuilder rb = SolrRequestInfo.getRequestInfo().getResponseBuilder();
+        EqQueryCommand cmd = queryCommand(queryCommand, rb);
+        EqTopFieldCollector collector = EqTopFieldCollector.createCounting(resolveSorts(cmd), resolveLimits(cmd));
+        EqQueryState.set(rb.req, this, new EqQueryState(cmd, collector, 0));
+        return collector;
+    }
+
+    /*
+     * The sub query parameters of the request, the ones of the parsed query take
+     * precedence. The limits are always the ones of the query, the parser resolves
+     * the lim_i params into it, so the rewrite and the search apply the same ones.
+     */
+    private EqQueryCommand queryCommand(QueryCommand queryCommand, ResponseBuilder rb) {
+        SolrParams params = SolrRequestInfo.getRequestInfo().getReq().getParams();
         EqQueryCommand cmd = new EqQueryCommand(queryCommand, params, rb.req.getSchema());
-        this.queryCmdWrapper = cmd;
+        if (!subSorts.isEmpty()) {
+            cmd.setSubQuerySorts(new HashMap<>(subSorts));
+        }
+        cmd.setSubQueryLimits(new HashMap<>(this.limits));
+        if (mode != null) {
+            cmd.setExecutionMode(mode);
+        }
+        return cmd;
+    }
+
+    /* the sort of each bucket, the global sort or relevance if the subquery has no sort of its own */
+    private Sort[] resolveSorts(EqQueryCommand cmd) {
         // operator << flow
         // if (orderByQueryIndex) {
         // sub query sorts count
@@ -108,6 +273,12 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
         }
 
         for (int i = 0; i < disjuncts.length; i++) {
+            // pinned docs keep the order of their ids, see EqPinnedQuery
+            if (disjuncts[i] instanceof EqPinnedQuery) {
+                cmd.getSubQuerySorts().put("sort_" + i, new Sort());
+                continue;
+            }
+
             // sub query sort exists for current sub query
             boolean subqSortExists = false;
 
@@ -134,11 +305,15 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
         }
 
         // sorted array of sub query sorts
-        Map<String, Sort> resultSorts = cmd.getSubQuerySorts().entrySet().stream().sorted(Map.Entry.comparingByKey())
+        Map<String, Sort> resultSorts = cmd.getSubQuerySorts().entrySet().stream().sorted(Map.Entry.comparingByKey(BY_SUBQUERY_INDEX))
                 .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (oldValue, newValue) -> oldValue, LinkedHashMap::new));
         cmd.setSubQuerySorts(resultSorts);
         Sort[] sorts = Arrays.copyOf(cmd.getSubQuerySorts().values().toArray(), cmd.getSubQuerySorts().values().toArray().length, Sort[].class);
+        return sorts;
+    }
 
+    /* the limit of each bucket, 0 if the subquery is unlimited */
+    private int[] resolveLimits(EqQueryCommand cmd) {
         // filling limits by default if not exists
         for (int i = 0; i < disjuncts.length; i++) {
             if (cmd.getSubQueryLimits().get("lim_" + i) == null) {
@@ -147,22 +322,96 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
         }
 
         // sorted array of sub query limits
-        Map<String, Integer> resultLimits = cmd.getSubQueryLimits().entrySet().stream().sorted(Map.Entry.comparingByKey())
+        Map<String, Integer> resultLimits = cmd.getSubQueryLimits().entrySet().stream().sorted(Map.Entry.comparingByKey(BY_SUBQUERY_INDEX))
                 .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (oldValue, newValue) -> oldValue, LinkedHashMap::new));
         cmd.setSubQueryLimits(resultLimits);
         Integer[] limits = Arrays.copyOf(cmd.getSubQueryLimits().values().toArray(), cmd.getSubQueryLimits().values().toArray().length,
                 Integer[].class);
-        this.topFieldDocCollector = EqTopFieldCollector.create(sorts, ArrayUtils.toPrimitive(limits), supersetMaxDoc, searchAfter, fillFields,
-                needScores, needScores, true);
-        return this.topFieldDocCollector;
+        return ArrayUtils.toPrimitive(limits);
     }
 
-    public EqTopFieldCollector getTopFieldDocCollector() {
-        return topFieldDocCollector;
+    /*
+     * The score mode of each subquery. The subqueries of buckets sorted by a
+     * field are not scored and may be cached by the query cache.
+     */
+    private ScoreMode[] subScoreModes(ScoreMode scoreMode, EqQueryState state) {
+        ScoreMode[] modes = new ScoreMode[disjuncts.length];
+        Arrays.fill(modes, scoreMode);
+        if (!scoreMode.needsScores()) {
+            return modes;
+        }
+
+        if (state != null) {
+            return state.getSubScoreModes();
+        }
+        for (int i = 0; i < disjuncts.length; i++) {
+            Sort sort = subSorts.get(EqQueryCommand.SUB_QUERY_SORT_PREFIX + i);
+            if (sort != null && !sort.needsScores()) {
+                modes[i] = ScoreMode.COMPLETE_NO_SCORES;
+            }
+        }
+        return modes;
     }
 
-    public EqQueryCommand getQueryCmdWrapper() {
-        return queryCmdWrapper;
+    /*
+     * A constant score subquery is matched by its doc set from the source of
+     * the request, a bitset iteration instead of a postings walk. Solr injects
+     * the doc sets of its filterCache, see EqQueryComponent#process; it
+     * doesn't use the query cache of Lucene, which would cache the inner query
+     * of the ConstantScoreQuery on other searchers.
+     */
+    private static Weight subWeight(Query query, IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        EqDocSetSource docSets = EqQueryState.getDocSetSource(searcher);
+        float subBoost = 1f;
+        Query inner = query;
+        if (inner instanceof BoostQuery) {
+            subBoost = ((BoostQuery) inner).getBoost();
+            inner = ((BoostQuery) inner).getQuery();
+        }
+        if (docSets == null || !(inner instanceof ConstantScoreQuery)) {
+            return searcher.createWeight(query, scoreMode, boost);
+        }
+        return new DocSetWeight(query, ((ConstantScoreQuery) inner).getQuery(), searcher, docSets, scoreMode, boost * subBoost);
+    }
+
+    /* resolves the doc set of a constant score subquery when a segment is scored, see subWeight */
+    private static final class DocSetWeight extends ConstantScoreWeight {
+
+        private final Query inner;
+        private final IndexSearcher searcher;
+        private final EqDocSetSource docSets;
+        private final ScoreMode scoreMode;
+        // the weight of the subquery, only created if a query cache asks for isCacheable
+        private Weight innerWeight;
+
+        DocSetWeight(Query query, Query inner, IndexSearcher searcher, EqDocSetSource docSets, ScoreMode scoreMode,
+                     float score) {
+            super(query, score);
+            this.inner = inner;
+            this.searcher = searcher;
+            this.docSets = docSets;
+            this.scoreMode = scoreMode;
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            DocIdSet docs = docSets.getDocIdSet(inner, context);
+            DocIdSetIterator it = docs == null ? null : docs.iterator();
+            return it == null ? null : new ConstantScoreScorer(this, score(), scoreMode, it);
+        }
+
+        @Override
+        public boolean isCacheable(LeafReaderContext ctx) {
+            // the doc set is as cacheable as the subquery it comes from
+            if (innerWeight == null) {
+                try {
+                    innerWeight = searcher.createWeight(searcher.rewrite(inner), ScoreMode.COMPLETE_NO_SCORES, 1f);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return innerWeight.isCacheable(ctx);
+        }
     }
 
     @Override
@@ -174,14 +423,19 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
 
         protected final ArrayList<Weight> weights = new ArrayList<>();
         private final ScoreMode scoreMode;
+        // the subqueries of the buckets seeded from the EqSubQueryCache have no scorers
+        private final int seededBuckets;
 
         /** Construct the Weight for this Query searched by searcher.  Recursively construct subquery weights. */
         public EqDisjunctionMaxWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
             super(EqDisjunctionMaxQuery.this);
-            for (Query disjunctQuery : disjuncts) {
-                weights.add(searcher.createWeight(disjunctQuery, scoreMode, boost));
+            EqQueryState state = EqQueryState.get(origin != null ? origin : EqDisjunctionMaxQuery.this);
+            ScoreMode[] subScoreModes = subScoreModes(scoreMode, state);
+            for (int i = 0; i < disjuncts.length; i++) {
+                weights.add(subWeight(disjuncts[i], searcher, subScoreModes[i], boost));
             }
             this.scoreMode = scoreMode;
+            this.seededBuckets = state != null ? state.getSeededBuckets() : 0;
         }
 
         @Override
@@ -203,22 +457,38 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
             return MatchesUtils.fromSubMatches(mis);
         }
 
-        @Override
-        public Scorer scorer(LeafReaderContext context) throws IOException {
+        /* sub scorers of the segment or null if no subquery matches on it */
+        private Scorer[] subScorers(LeafReaderContext context) throws IOException {
             Scorer[] scorers = new Scorer[weights.size()];
             boolean hasNonNullScorer = false;
 
-            for (int i = 0; i < weights.size(); i++) {
+            for (int i = seededBuckets; i < weights.size(); i++) {
                 scorers[i] = weights.get(i).scorer(context);
                 hasNonNullScorer |= (null != scorers[i]);
             }
 
-            if (hasNonNullScorer)
+            return hasNonNullScorer ? scorers : null;
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            Scorer[] scorers = subScorers(context);
+            if (scorers != null)
                 return new EqDisjunctionMaxScorer(this, scorers, scoreMode);
 
             return null;
         }
 
+        @Override
+        public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+            Scorer[] scorers = subScorers(context);
+            if (scorers != null)
+                return new EqDisjunctionBulkScorer(new EqDisjunctionMaxScorer(this, scorers, scoreMode), scorers, scoreMode,
+                        context.reader().maxDoc());
+
+            return null;
+        }
+
         static final int BOOLEAN_REWRITE_TERM_COUNT_THRESHOLD = 16;
 
         @Override
@@ -234,7 +504,8 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
                 if (w.isCacheable(ctx) == false)
                     return false;
             }
-            return false;
+            // without the seeded subqueries the weight doesn't match all the docs
+            return seededBuckets == 0;
         }
 
         @Override
@@ -293,13 +564,69 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
             rewrittenDisjuncts.add(rewrittenSub);
         }
 
+        actuallyRewritten |= dropUnreachable(rewrittenDisjuncts);
+
+        boolean matchNoDocs = true;
+        for (Query sub : rewrittenDisjuncts) {
+            matchNoDocs &= sub instanceof MatchNoDocsQuery;
+        }
+        if (matchNoDocs) {
+            return new MatchNoDocsQuery("no subquery of " + this + " matches any doc");
+        }
+
         if (actuallyRewritten) {
-            return new EqDisjunctionMaxQuery(rewrittenDisjuncts);
+            return new EqDisjunctionMaxQuery(rewrittenDisjuncts, subSorts, limits, mode, cursorMark, totalHitsThreshold,
+                    skippedBuckets, skippedDocs, origin != null ? origin : this);
         }
 
         return super.rewrite(reader);
     }
 
+    /*
+     * Replaces the subqueries which can't get any doc by MatchNoDocsQuery: a
+     * doc goes to the first unlimited subquery matching it, so the subqueries
+     * after an unlimited match all query and the repeated subqueries of an
+     * unlimited one stay empty. The subqueries keep their positions, the sorts,
+     * the limits and the subquery index of the hits are bound to them, and a
+     * MatchNoDocsQuery has no scorer.
+     */
+    private boolean dropUnreachable(List<Query> subqueries) {
+        boolean dropped = false;
+        for (int i = 0; i < subqueries.size(); i++) {
+            Query sub = subqueries.get(i);
+            if (sub instanceof MatchNoDocsQuery || isLimited(i)) {
+                continue;
+            }
+            boolean matchAll = isMatchAll(sub);
+            for (int j = i + 1; j < subqueries.size(); j++) {
+                Query other = subqueries.get(j);
+                if (!(other instanceof MatchNoDocsQuery) && (matchAll || sub.equals(other))) {
+                    subqueries.set(j, new MatchNoDocsQuery("contained in the subquery " + i));
+                    dropped = true;
+                }
+            }
+            if (matchAll) {
+                break;
+            }
+        }
+        return dropped;
+    }
+
+    private boolean isLimited(int i) {
+        Integer limit = limits.get("lim_" + i);
+        return limit != null && limit > 0;
+    }
+
+    private static boolean isMatchAll(Query query) {
+        if (query instanceof BoostQuery) {
+            query = ((BoostQuery) query).getQuery();
+        }
+        if (query instanceof ConstantScoreQuery) {
+            query = ((ConstantScoreQuery) query).getQuery();
+        }
+        return query instanceof MatchAllDocsQuery;
+    }
+
     @Override
     public String toString(String field) {
         StringBuilder buffer = new StringBuilder();
@@ -329,13 +656,22 @@ public class EqDisjunctionMaxQuery extends RankQuery implements Iterable<Query>
     }
 
     private boolean equalsTo(EqDisjunctionMaxQuery other) {
-        return Arrays.equals(disjuncts, other.disjuncts);
+        return Arrays.equals(disjuncts, other.disjuncts) && subSorts.equals(other.subSorts) && limits.equals(other.limits)
+                && mode == other.mode && Objects.equals(cursorMark, other.cursorMark) && totalHitsThreshold == other.totalHitsThreshold
+                && skippedBuckets == other.skippedBuckets && skippedDocs == other.skippedDocs;
     }
 
     @Override
     public int hashCode() {
         int h = classHash();
         h = 31 * h + Arrays.hashCode(disjuncts);
+        h = 31 * h + subSorts.hashCode();
+        h = 31 * h + limits.hashCode();
+        h = 31 * h + Objects.hashCode(mode);
+        h = 31 * h + Objects.hashCode(cursorMark);
+        h = 31 * h + totalHitsThreshold;
+        h = 31 * h + skippedBuckets;
+        h = 31 * h + skippedDocs;
         return h;
     }
 
@@ -1,53 +1,120 @@
 package org.apache.lucene.search;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 public class EqDisjunctionMaxScorer extends EqDisjunctionScorer {
 
     private String insight = "untouched";
-    public int sqmask =0;
+    /* the other subqueries matching the doc, see EqSqMask */
+    public final long[] sqmask;
     public int sqidx =0;
-    public int savedScores=0;
 
     /*
-     * scores keeps the scores of the document from each subquery
-     * but the first
+     * scores keeps the scores of the document from each subquery,
+     * scores[i] is valid if scoredDoc[i] is the current doc
      */
     public float[] scores;
+    private final int[] scoredDoc;
+
+    /* the sub scorers matching the current doc */
+    private DisiWrapper subMatches;
+
+    /* estimated number of matches for each subquery, 0 if there is no scorer */
+    public final long[] subCosts;
+
+    /*
+     * set by the collector: true if the segment should be collected subquery
+     * after subquery, see EqDisjunctionBulkScorer
+     */
+    public boolean cascade = false;
 
     public EqDisjunctionMaxScorer(Weight weight, Scorer[] subScorers, ScoreMode scoreMode) {
         super(weight, subScorers, scoreMode);
         scores = new float[subScorers.length+1];
+        scoredDoc = new int[subScorers.length+1];
+        Arrays.fill(scoredDoc, -1);
+        sqmask = EqSqMask.create(subScorers.length);
+        subCosts = new long[subScorers.length];
+        for (int i = 0; i < subScorers.length; i++) {
+            if (subScorers[i] != null)
+                subCosts[i] = subScorers[i].iterator().cost();
+        }
     }
 
     @Override
     protected float score(DisiWrapper topList) throws IOException {
-        // optimize for the most common case (or so it should be)
-        // where topList size is one
-        sqidx = ((EqDisiWrapper)topList).scorerIndex;
-        sqmask = 0;
-        curScore = topList.scorer.score();
+        // only the subquery of the bucket is scored, the other scores are
+        // computed on demand, see score(int)
+        subMatches = topList;
+        DisiWrapper best = topList;
+        sqidx = ((EqDisiWrapper) topList).scorerIndex;
+        EqSqMask.clear(sqmask);
         if (topList.next != null) {
-            savedScores = 0;
             for (DisiWrapper w = topList; w != null; w = w.next) {
                 final int sidx = ((EqDisiWrapper) w).scorerIndex;
+                EqSqMask.set(sqmask, sidx);
 
                 // set sqidx for the _lowest_ (ie most relevant) subquery
-                if (sqidx > sidx) sqidx = sidx;
-
-                scores[sidx] = w.scorer.score();
-                savedScores++;
-                sqmask |= (1 << sidx);
+                if (sqidx > sidx) {
+                    sqidx = sidx;
+                    best = w;
+                }
             }
-
-            sqmask &= (~(1<< sqidx));
+            EqSqMask.clear(sqmask, sqidx);
         }
+
+        curScore = best.scorer.score();
+        scores[sqidx] = curScore;
+        scoredDoc[sqidx] = docID();
         return curScore;
     }
 
+    /**
+     * Returns the bucket of the current doc, the lowest subquery (1-based)
+     * matching it, without scoring the doc.
+     */
+    public int bucket() throws IOException {
+        int bucket = Integer.MAX_VALUE;
+        for (DisiWrapper w = getSubMatches(); w != null; w = w.next) {
+            bucket = Math.min(bucket, ((EqDisiWrapper) w).scorerIndex);
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns the score of the subquery scorerIndex (1-based) for the current
+     * doc, 0 if the subquery doesn't match it. The score is computed at the
+     * first call for the doc.
+     */
+    public float score(int scorerIndex) throws IOException {
+        final int doc = docID();
+        if (scoredDoc[scorerIndex] == doc) {
+            return scores[scorerIndex];
+        }
+        score();
+        for (DisiWrapper w = subMatches; w != null; w = w.next) {
+            if (((EqDisiWrapper) w).scorerIndex == scorerIndex) {
+                scores[scorerIndex] = w.scorer.score();
+                scoredDoc[scorerIndex] = doc;
+                return scores[scorerIndex];
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * The score of a doc is the score of one of the subqueries, so the maximum
+     * over the sub scorers is an upper bound.
+     */
     @Override
     public float getMaxScore(int upTo) throws IOException {
-        // TODO Auto-generated method stub
-        return 0;
+        float maxScore = 0;
+        for (DisiWrapper w : getSubScorers()) {
+            if (w.doc <= upTo) {
+                maxScore = Math.max(maxScore, w.scorer.getMaxScore(upTo));
+            }
+        }
+        return maxScore;
     }
 }
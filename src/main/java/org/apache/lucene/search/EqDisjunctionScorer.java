@@ -29,8 +29,8 @@ public abstract class EqDisjunctionScorer extends Scorer {
 
     private final ScoreMode scoreMode;
 
-    private final DisiPriorityQueue subScorers;
-    private final DisjunctionDISIApproximation approximation;
+    private DisiPriorityQueue subScorers;
+    private final Approximation approximation;
     private final TwoPhase twoPhase;
     public int curDoc = -1;
     public float curScore = 0.0f;
@@ -47,7 +47,7 @@ public abstract class EqDisjunctionScorer extends Scorer {
             scorerIndex++;
         }
         this.scoreMode = scoreMode;
-        this.approximation = new DisjunctionDISIApproximation(this.subScorers);
+        this.approximation = new Approximation();
 
         boolean hasApproximation = false;
         float sumMatchCost = 0;
@@ -74,6 +74,67 @@ public abstract class EqDisjunctionScorer extends Scorer {
         }
     }
 
+    /**
+     * Removes the sub scorers of the subqueries with an index greater than
+     * maxScorerIndex (1-based, like {@link EqDisiWrapper#scorerIndex}).
+     *
+     * Used by the collector as soon as the buckets of those subqueries cannot
+     * contribute to the result list anymore. It is safe to call this method
+     * while collecting the current doc: the current doc id is kept by the
+     * approximation, so the iteration proceeds with the next doc matching
+     * one of the remaining sub scorers.
+     *
+     * @return false if no sub scorer is left on this segment
+     */
+    public boolean pruneSubScorers(int maxScorerIndex) {
+        int live = 0;
+        for (DisiWrapper w : subScorers) {
+            if (((EqDisiWrapper) w).scorerIndex <= maxScorerIndex)
+                live++;
+        }
+
+        if (live == subScorers.size())
+            return true;
+        if (live == 0)
+            return false;
+
+        DisiPriorityQueue pruned = new DisiPriorityQueue(live);
+        for (DisiWrapper w : subScorers) {
+            if (((EqDisiWrapper) w).scorerIndex <= maxScorerIndex)
+                pruned.add(w);
+        }
+        subScorers = pruned;
+        return true;
+    }
+
+    /**
+     * Sets the minimal competitive score on the sub scorer of the subquery
+     * scorerIndex (1-based). The sub scorer may skip the docs scoring less.
+     */
+    public void setMinCompetitiveScore(int scorerIndex, float minScore) throws IOException {
+        for (DisiWrapper w : subScorers) {
+            if (((EqDisiWrapper) w).scorerIndex == scorerIndex) {
+                w.scorer.setMinCompetitiveScore(minScore);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int advanceShallow(int target) throws IOException {
+        int upTo = DocIdSetIterator.NO_MORE_DOCS;
+        for (DisiWrapper w : subScorers) {
+            if (w.doc <= target) {
+                upTo = Math.min(upTo, w.scorer.advanceShallow(target));
+            }
+        }
+        return upTo;
+    }
+
+    protected DisiPriorityQueue getSubScorers() {
+        return subScorers;
+    }
+
     private static final int countNonNull(Object[] arr) {
         int sum = 0;
         for (int i = 0; i < arr.length; i++) {
@@ -96,6 +157,55 @@ public abstract class EqDisjunctionScorer extends Scorer {
         return twoPhase;
     }
 
+    /*
+     * Same as DisjunctionDISIApproximation, but the queue of sub scorers can
+     * be replaced during the iteration (see pruneSubScorers). The current doc
+     * is tracked here instead of being read from the top of the queue.
+     */
+    private class Approximation extends DocIdSetIterator {
+
+        private final long cost;
+        private int doc = -1;
+
+        private Approximation() {
+            long cost = 0;
+            for (DisiWrapper w : subScorers) {
+                cost += w.cost;
+            }
+            this.cost = cost;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            DisiWrapper top = subScorers.top();
+            while (top.doc <= doc) {
+                top.doc = top.approximation.nextDoc();
+                top = subScorers.updateTop();
+            }
+            return doc = top.doc;
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            DisiWrapper top = subScorers.top();
+            while (top.doc < target) {
+                top.doc = top.approximation.advance(target);
+                top = subScorers.updateTop();
+            }
+            return doc = top.doc;
+        }
+
+        @Override
+        public long cost() {
+            return cost;
+        }
+    }
+
     private class TwoPhase extends TwoPhaseIterator {
 
         private final float matchCost;
@@ -177,7 +287,7 @@ public abstract class EqDisjunctionScorer extends Scorer {
 
     @Override
     public final int docID() {
-        return subScorers.top().doc;
+        return approximation.doc;
     }
 
     DisiWrapper getSubMatches() throws IOException {
@@ -190,10 +300,10 @@ public abstract class EqDisjunctionScorer extends Scorer {
 
     @Override
     public final float score() throws IOException {
-        if (curDoc == subScorers.top().doc)
+        if (curDoc == approximation.doc)
             return curScore;
         curScore = score(getSubMatches());
-        curDoc = subScorers.top().doc;
+        curDoc = approximation.doc;
         return curScore;
     }
 
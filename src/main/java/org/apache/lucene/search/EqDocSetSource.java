@@ -0,0 +1,17 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.LeafReaderContext;
+
+/**
+ * Matches the constant score subqueries of a '&lt;&lt;' query from doc sets
+ * kept by the application, a bitset iteration instead of a postings walk.
+ * Solr injects the doc sets of its filterCache for a request, see
+ * EqFilterCacheDocSets.
+ */
+public interface EqDocSetSource {
+
+    /** the docs of the segment matching the query, null if the source has no doc set for it */
+    DocIdSet getDocIdSet(Query query, LeafReaderContext context) throws IOException;
+}
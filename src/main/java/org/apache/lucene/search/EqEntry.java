@@ -1,6 +1,7 @@
 package org.apache.lucene.search;
 
 import org.apache.lucene.search.FieldValueHitQueue.Entry;
+import org.apache.lucene.util.BytesRefBuilder;
 
 /**
  * Extension of ScoreDoc to also store the
@@ -8,35 +9,29 @@ import org.apache.lucene.search.FieldValueHitQueue.Entry;
  */
 public class EqEntry extends Entry {
 
-    public int sqmask;
-    public float[] scores;
-
-    // try to keep the sort values for documents which are collected into
-    // limited queue: they may have to be collected to another queue
-    public EqComparatorValue[] compValues;
-
-    /*
-     * We have to track the segment of the docs.
-     *
-     * If a doc is expelled from a limiting queue it may be collected
-     * by some other queue using new comparators which may be using
-     * other segment than the doc has come from. This docBase will help
-     * to identify those cases.
-     */
+    // the mask and the scores of the doc are kept in the row slot
+    // of the bucket, see EqSlots
+    public EqSlots slots;
+
+    /* the docBase of the segment the doc has been collected on */
     public int docBase;
 
-    public EqEntry(){
+    /* the bucket of the doc in a queue shared by all the buckets, 0-based */
+    public int bucket;
+
+    /* the sort key of the doc in a keyed queue and its term for a string sort, see EqSortKeys */
+    public long key;
+    public BytesRefBuilder term;
+
+    public EqEntry(EqSlots slots){
         super(0,0);
+        this.slots = slots;
     }
 
-    public EqEntry(int slot, int docBase, int doc, float score, int sqmask, float[] scores) {
+    public EqEntry(int slot, int docBase, int doc, float score, EqSlots slots) {
         super(slot, doc);
-        this.sqmask = sqmask;
-        this.scores = scores;
+        this.score = score;
         this.docBase = docBase;
-        this.compValues = new EqComparatorValue[scores.length];
-        for(int i=0; i<compValues.length; i++){
-            compValues[i] = new EqComparatorValue();
-        }
+        this.slots = slots;
     }
 }
@@ -0,0 +1,33 @@
+package org.apache.lucene.search;
+
+import java.util.Locale;
+
+/**
+ * Defines how the subqueries of the '&lt;&lt;' operator are evaluated on a segment.
+ */
+public enum EqExecutionMode {
+
+    /** all subqueries are evaluated at once using one union of the subquery scorers */
+    UNION,
+
+    /**
+     * the subqueries are evaluated one after the other, the docs of the earlier
+     * subqueries are excluded. The remaining subqueries are skipped as soon as
+     * the requested window is full. Only supported if no subquery is limited.
+     */
+    CASCADE,
+
+    /** choose CASCADE or UNION per segment based on the cost of the subqueries */
+    AUTO;
+
+    public static EqExecutionMode fromString(String mode) {
+        if (mode == null || mode.trim().isEmpty()) {
+            return UNION;
+        }
+        try {
+            return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown execution mode: " + mode);
+        }
+    }
+}
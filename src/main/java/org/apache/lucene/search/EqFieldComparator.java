@@ -25,6 +25,7 @@ import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
 
@@ -162,16 +163,12 @@ public abstract class EqFieldComparator<T> {
     protected NumericDocValues getNumericDocValues(LeafReaderContext context, String field) throws IOException {
       return DocValues.getNumeric(context.reader(), field);
     }
-
-    public int getDocBase(){
-      return docBase;
-    }
   }
 
   /** Parses field's values as double (using {@link
    *  org.apache.lucene.index.LeafReader#getNumericDocValues} and sorts by ascending value */
-  public static class DoubleComparator extends NumericComparator<Double>  implements EqCopyValueIf{
-    private final double[] values;
+  public static class DoubleComparator extends NumericComparator<Double>  implements EqGrowableIf{
+    private double[] values;
     private double bottom;
     private double topValue;
 
@@ -184,6 +181,11 @@ public abstract class EqFieldComparator<T> {
       values = new double[numHits];
     }
 
+    @Override
+    public void grow(int numHits) {
+      values = ArrayUtil.growExact(values, numHits);
+    }
+
     public double getValueForDoc(int doc) throws IOException {
       if (currentReaderValues.advanceExact(doc)) {
         return Double.longBitsToDouble(currentReaderValues.longValue());
@@ -226,28 +228,12 @@ public abstract class EqFieldComparator<T> {
     public int compareTop(int doc) throws IOException {
       return Double.compare(topValue, getValueForDoc(doc));
     }
-
-    public int compare(EqEntry a, EqEntry b){
-      return Double.compare(a.compValues[this.sqidx].doubleValue, b.compValues[this.sqidx].doubleValue);
-    }
-
-    public int compare(EqEntry a, int slot){
-      return Double.compare(a.compValues[this.sqidx].doubleValue, values[slot]);
-    }
-
-    public int compareBottom(EqEntry e) {
-      return Double.compare(bottom, e.compValues[this.sqidx].doubleValue);
-    }
-
-    public void copyValue(EqComparatorValue v, int doc) throws IOException {
-      v.doubleValue = getValueForDoc(doc);
-    }
   }
 
   /** Parses field's values as float (using {@link
    *  org.apache.lucene.index.LeafReader#getNumericDocValues(String)} and sorts by ascending value */
-  public static class FloatComparator extends NumericComparator<Float> implements EqCopyValueIf {
-    private final float[] values;
+  public static class FloatComparator extends NumericComparator<Float> implements EqGrowableIf {
+    private float[] values;
     private float bottom;
     private float topValue;
 
@@ -259,6 +245,11 @@ public abstract class EqFieldComparator<T> {
       super(field, missingValue != null ? missingValue : 0.0f, sqidx);
       values = new float[numHits];
     }
+
+    @Override
+    public void grow(int numHits) {
+      values = ArrayUtil.growExact(values, numHits);
+    }
     
     private float getValueForDoc(int doc) throws IOException {
       if (currentReaderValues.advanceExact(doc)) {
@@ -302,28 +293,12 @@ public abstract class EqFieldComparator<T> {
     public int compareTop(int doc) throws IOException {
       return Float.compare(topValue, getValueForDoc(doc));
     }
-
-    public int compare(EqEntry a, EqEntry b){
-      return Float.compare(a.compValues[this.sqidx].floatValue, b.compValues[this.sqidx].floatValue);
-    }
-
-    public int compare(EqEntry a, int slot){
-      return Float.compare(a.compValues[this.sqidx].floatValue, values[slot]);
-    }
-
-    public int compareBottom(EqEntry e) {
-      return Float.compare(bottom, e.compValues[this.sqidx].floatValue);
-    }
-
-    public void copyValue(EqComparatorValue v, int doc) throws IOException {
-      v.floatValue = getValueForDoc(doc);
-    }
   }
 
   /** Parses field's values as int (using {@link
    *  org.apache.lucene.index.LeafReader#getNumericDocValues(String)} and sorts by ascending value */
-  public static class IntComparator extends NumericComparator<Integer> implements EqCopyValueIf {
-    private final int[] values;
+  public static class IntComparator extends NumericComparator<Integer> implements EqGrowableIf {
+    private int[] values;
     private int bottom;                           // Value of bottom of queue
     private int topValue;
 
@@ -336,6 +311,11 @@ public abstract class EqFieldComparator<T> {
       values = new int[numHits];
     }
 
+    @Override
+    public void grow(int numHits) {
+      values = ArrayUtil.growExact(values, numHits);
+    }
+
     public int getValueForDoc(int doc) throws IOException {
       if (currentReaderValues.advanceExact(doc)) {
         return (int) currentReaderValues.longValue();
@@ -378,28 +358,12 @@ public abstract class EqFieldComparator<T> {
     public int compareTop(int doc) throws IOException {
       return Integer.compare(topValue, getValueForDoc(doc));
     }
-
-    public int compare(EqEntry a, EqEntry b){
-      return Integer.compare(a.compValues[this.sqidx].intValue, b.compValues[this.sqidx].intValue);
-    }
-
-    public int compare(EqEntry a, int slot){
-      return Integer.compare(a.compValues[this.sqidx].intValue, values[slot]);
-    }
-
-    public int compareBottom(EqEntry e) {
-      return Integer.compare(bottom, e.compValues[this.sqidx].intValue);
-    }
-
-    public void copyValue(EqComparatorValue v, int doc) throws IOException {
-      v.intValue = getValueForDoc(doc);
-    }
   }
 
   /** Parses field's values as long (using {@link
    *  org.apache.lucene.index.LeafReader#getNumericDocValues(String)} and sorts by ascending value */
-  public static class LongComparator extends NumericComparator<Long> implements EqCopyValueIf {
-    private final long[] values;
+  public static class LongComparator extends NumericComparator<Long> implements EqGrowableIf {
+    private long[] values;
     private long bottom;
     private long topValue;
 
@@ -412,6 +376,11 @@ public abstract class EqFieldComparator<T> {
       values = new long[numHits];
     }
 
+    @Override
+    public void grow(int numHits) {
+      values = ArrayUtil.growExact(values, numHits);
+    }
+
     private long getValueForDoc(int doc) throws IOException {
       if (currentReaderValues.advanceExact(doc)) {
         return currentReaderValues.longValue();
@@ -454,22 +423,6 @@ public abstract class EqFieldComparator<T> {
     public int compareTop(int doc) throws IOException {
       return Long.compare(topValue, getValueForDoc(doc));
     }
-
-    public int compare(EqEntry a, EqEntry b){
-      return Long.compare(a.compValues[this.sqidx].longValue, b.compValues[this.sqidx].longValue);
-    }
-
-    public int compare(EqEntry a, int slot){
-      return Long.compare(a.compValues[this.sqidx].longValue, values[slot]);
-    }
-
-    public int compareBottom(EqEntry e) {
-      return Long.compare(bottom, e.compValues[this.sqidx].longValue);
-    }
-
-    public void copyValue(EqComparatorValue v, int doc) throws IOException {
-      v.longValue = getValueForDoc(doc);
-    }
   }
 
   /** Sorts by descending relevance.  NOTE: if you are
@@ -478,8 +431,8 @@ public abstract class EqFieldComparator<T> {
    *  using {@link TopScoreDocCollector} directly (which {@link
    *  IndexSearcher#search} uses when no {@link Sort} is
    *  specified). */
-  public static final class RelevanceComparator extends FieldComparator<Float> implements LeafFieldComparator {
-    private final float[] scores;
+  public static final class RelevanceComparator extends FieldComparator<Float> implements LeafFieldComparator, EqGrowableIf {
+    private float[] scores;
     private float bottom;
     private Scorable scorer;
     private float topValue;
@@ -489,6 +442,11 @@ public abstract class EqFieldComparator<T> {
       scores = new float[numHits];
     }
 
+    @Override
+    public void grow(int numHits) {
+      scores = ArrayUtil.growExact(scores, numHits);
+    }
+
     @Override
     public int compare(int slot1, int slot2) {
       return Float.compare(scores[slot2], scores[slot1]);
@@ -556,8 +514,8 @@ public abstract class EqFieldComparator<T> {
   }
 
   /** Sorts by ascending docID */
-  public static final class DocComparator extends FieldComparator<Integer> implements LeafFieldComparator {
-    private final int[] docIDs;
+  public static final class DocComparator extends FieldComparator<Integer> implements LeafFieldComparator, EqGrowableIf {
+    private int[] docIDs;
     private int docBase;
     private int bottom;
     private int topValue;
@@ -567,6 +525,11 @@ public abstract class EqFieldComparator<T> {
       docIDs = new int[numHits];
     }
 
+    @Override
+    public void grow(int numHits) {
+      docIDs = ArrayUtil.growExact(docIDs, numHits);
+    }
+
     @Override
     public int compare(int slot1, int slot2) {
       // No overflow risk because docIDs are non-negative
@@ -627,26 +590,26 @@ public abstract class EqFieldComparator<T> {
    *  to large results, this comparator will be much faster
    *  than {@link org.apache.lucene.search.FieldComparator.TermValComparator}.  For very small
    *  result sets it may be slower. */
-  public static class TermOrdValComparator extends FieldComparator<BytesRef> implements LeafFieldComparator, EqCopyValueIf {
+  public static class TermOrdValComparator extends FieldComparator<BytesRef> implements LeafFieldComparator, EqGrowableIf {
 
     public int docBase;
     public int sqidx;
 
     /* Ords for each slot.
        @lucene.internal */
-    final int[] ords;
+    int[] ords;
 
     /* Values for each slot.
        @lucene.internal */
-    final BytesRef[] values;
-    private final BytesRefBuilder[] tempBRs;
+    BytesRef[] values;
+    private BytesRefBuilder[] tempBRs;
 
     /* Which reader last copied a value into the slot. When
        we compare two slots, we just compare-by-ord if the
        readerGen is the same; else we must compare the
        values (slower).
        @lucene.internal */
-    final int[] readerGen;
+    int[] readerGen;
 
     /* Gen of current reader we are on.
        @lucene.internal */
@@ -713,6 +676,14 @@ public abstract class EqFieldComparator<T> {
       }
     }
 
+    @Override
+    public void grow(int numHits) {
+      ords = ArrayUtil.growExact(ords, numHits);
+      values = ArrayUtil.growExact(values, numHits);
+      tempBRs = ArrayUtil.growExact(tempBRs, numHits);
+      readerGen = ArrayUtil.growExact(readerGen, numHits);
+    }
+
     private int getOrdForDoc(int doc) throws IOException {
       if (termsIndex.advanceExact(doc)) {
         return termsIndex.ordValue();
@@ -893,49 +864,16 @@ public abstract class EqFieldComparator<T> {
     @Override
     public void setScorer(Scorable scorer) {}
 
-    public int getDocBase(){
-      return docBase;
-    }
-
-    public int compare(EqEntry a, EqEntry b){
-      return compareValues(
-              a.compValues[this.sqidx].bytesRefValue,
-              b.compValues[this.sqidx].bytesRefValue);
-    }
-
-    public int compare(EqEntry a, int slot){
-      return compareValues(
-              a.compValues[this.sqidx].bytesRefValue,
-              values[slot]);
-    }
-
-    public int compareBottom(EqEntry e) {
-      return compareValues(bottomValue, e.compValues[sqidx].bytesRefValue);
-    }
-
-    public void copyValue(EqComparatorValue v, int doc) throws IOException {
-      int ord = getOrdForDoc(doc);
-      if (ord == -1) {
-        ord = missingOrd;
-        v.bytesRefValue = null;
-      } else {
-        assert ord >= 0;
-        // TODO: optimize?
-        BytesRefBuilder bb = new BytesRefBuilder();
-        bb.copyBytes(termsIndex.lookupOrd(ord));
-        v.bytesRefValue = bb.get();
-      }
-    }
   }
   
   /** Sorts by field's natural Term sort order.  All
    *  comparisons are done using BytesRef.compareTo, which is
    *  slow for medium to large result sets but possibly
    *  very fast for very small results sets. */
-  public static class TermValComparator extends FieldComparator<BytesRef> implements LeafFieldComparator, EqCopyValueIf {
+  public static class TermValComparator extends FieldComparator<BytesRef> implements LeafFieldComparator, EqGrowableIf {
     
-    private final BytesRef[] values;
-    private final BytesRefBuilder[] tempBRs;
+    private BytesRef[] values;
+    private BytesRefBuilder[] tempBRs;
     private BinaryDocValues docTerms;
     private final String field;
     private BytesRef bottom;
@@ -954,6 +892,12 @@ public abstract class EqFieldComparator<T> {
       this.sqidx = sqidx;
     }
 
+    @Override
+    public void grow(int numHits) {
+      values = ArrayUtil.growExact(values, numHits);
+      tempBRs = ArrayUtil.growExact(tempBRs, numHits);
+    }
+
     private BytesRef getValueForDoc(int doc) throws IOException {
       if (docTerms.advanceExact(doc)) {
         return docTerms.binaryValue();
@@ -1040,28 +984,5 @@ public abstract class EqFieldComparator<T> {
     @Override
     public void setScorer(Scorable scorer) {}
 
-    public int getDocBase(){
-      return docBase;
-    }
-
-    public int compare(EqEntry a, EqEntry b){
-      return compareValues(
-              a.compValues[this.sqidx].bytesRefValue,
-              b.compValues[this.sqidx].bytesRefValue);
-    }
-
-    public int compare(EqEntry a, int slot){
-      return compareValues(
-              a.compValues[this.sqidx].bytesRefValue,
-              values[slot]);
-    }
-
-    public int compareBottom(EqEntry e) {
-      return compareValues(bottom, e.compValues[sqidx].bytesRefValue);
-    }
-
-    public void copyValue(EqComparatorValue v, int doc) throws IOException {
-      v.bytesRefValue = getValueForDoc(doc);
-    }
   }
 }
@@ -18,6 +18,8 @@ package org.apache.lucene.search;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.util.PriorityQueue;
@@ -57,8 +59,14 @@ import org.apache.lucene.util.PriorityQueue;
  */
 public abstract class EqFieldValueHitQueue<T extends EqEntry> extends PriorityQueue<T> {
 
+    /* the bucket of a queue holding the docs of all the buckets */
+    public static final int ALL_BUCKETS = -1;
+
     public int sqidx;
 
+    /* the state of the docs in the queue, indexed by their slots */
+    public final EqSlots slots;
+
     /**
      * An implementation of {@link FieldValueHitQueue} which is optimized in case
      * there is just one comparator.
@@ -67,16 +75,23 @@ public abstract class EqFieldValueHitQueue<T extends EqEntry> extends PriorityQu
 
         private final int oneReverseMul;
         private final FieldComparator<?> oneComparator;
-        private final EqCopyValueIf oC;
-        public int docBase;
 
-        public OneComparatorFieldValueHitQueue(EqSortField[] fields, int size, int sqidx) {
-            super(fields, size);
+        public OneComparatorFieldValueHitQueue(EqSortField[] fields, int size, int sqidx, int numBuckets) {
+            super(fields, size, sqidx, numBuckets);
             assert fields.length == 1;
             oneComparator = comparators[0];
-            oC = (EqCopyValueIf) oneComparator;
             oneReverseMul = reverseMul[0];
-            this.sqidx = sqidx;
+        }
+
+        private OneComparatorFieldValueHitQueue(OneComparatorFieldValueHitQueue<T> from, int size) {
+            super(from, size);
+            oneComparator = from.oneComparator;
+            oneReverseMul = from.oneReverseMul;
+        }
+
+        @Override
+        protected EqFieldValueHitQueue<T> copy(int size) {
+            return new OneComparatorFieldValueHitQueue<>(this, size);
         }
 
         /**
@@ -91,21 +106,8 @@ public abstract class EqFieldValueHitQueue<T extends EqEntry> extends PriorityQu
             assert hitA != hitB;
             assert hitA.slot != hitB.slot;
 
-            int c = 0;
-
-            // TODO: what if both a and b are not from current segment?
-            if(oC.getDocBase() != hitA.docBase){
-                if(oC.getDocBase() != hitB.docBase){
-                    c = oneReverseMul * oC.compare(hitA, hitB);
-                }else{
-                    c = oneReverseMul * oC.compare(hitA, hitB.slot);
-                }
-            }else if (oC.getDocBase() != hitB.docBase){
-                c = - oneReverseMul * oC.compare(hitB, hitA.slot);
-            }else{
-                c = oneReverseMul * oneComparator.compare(hitA.slot, hitB.slot);
-            }
-
+            // every doc in the queue has been copied into the comparator on its segment
+            final int c = oneReverseMul * oneComparator.compare(hitA.slot, hitB.slot);
             if (c != 0) {
                 return c > 0;
             }
@@ -121,8 +123,17 @@ public abstract class EqFieldValueHitQueue<T extends EqEntry> extends PriorityQu
      */
     private static final class MultiComparatorsFieldValueHitQueue<T extends EqEntry> extends EqFieldValueHitQueue<T> {
 
-        public MultiComparatorsFieldValueHitQueue(EqSortField[] fields, int size) {
-            super(fields, size);
+        public MultiComparatorsFieldValueHitQueue(EqSortField[] fields, int size, int sqidx, int numBuckets) {
+            super(fields, size, sqidx, numBuckets);
+        }
+
+        private MultiComparatorsFieldValueHitQueue(MultiComparatorsFieldValueHitQueue<T> from, int size) {
+            super(from, size);
+        }
+
+        @Override
+        protected EqFieldValueHitQueue<T> copy(int size) {
+            return new MultiComparatorsFieldValueHitQueue<>(this, size);
         }
 
         @Override
@@ -146,9 +157,143 @@ public abstract class EqFieldValueHitQueue<T extends EqEntry> extends PriorityQu
 
     }
 
+    /**
+     * A single queue for the docs of all the buckets, ordered by the bucket
+     * of the doc first and then by the sort shared by the buckets.
+     */
+    private static final class AllBucketsFieldValueHitQueue<T extends EqEntry> extends EqFieldValueHitQueue<T> {
+
+        public AllBucketsFieldValueHitQueue(EqSortField[] fields, int size, int numBuckets) {
+            super(fields, size, ALL_BUCKETS, numBuckets);
+        }
+
+        private AllBucketsFieldValueHitQueue(AllBucketsFieldValueHitQueue<T> from, int size) {
+            super(from, size);
+        }
+
+        @Override
+        protected EqFieldValueHitQueue<T> copy(int size) {
+            return new AllBucketsFieldValueHitQueue<>(this, size);
+        }
+
+        @Override
+        protected boolean lessThan(final EqEntry hitA, final EqEntry hitB) {
+
+            assert hitA != hitB;
+            assert hitA.slot != hitB.slot;
+
+            // the docs of a lower bucket come first
+            if (hitA.bucket != hitB.bucket) {
+                return hitA.bucket > hitB.bucket;
+            }
+
+            int numComparators = comparators.length;
+            for (int i = 0; i < numComparators; ++i) {
+                final int c = reverseMul[i] * comparators[i].compare(hitA.slot, hitB.slot);
+                if (c != 0) {
+                    return c > 0;
+                }
+            }
+
+            return hitA.doc > hitB.doc;
+        }
+    }
+
+    /**
+     * The queue of all the buckets sorted by relevance only, the entries are
+     * compared by their scores without calling the comparator.
+     */
+    private static final class AllBucketsScoreHitQueue<T extends EqEntry> extends EqFieldValueHitQueue<T> {
+
+        public AllBucketsScoreHitQueue(EqSortField[] fields, int size, int numBuckets) {
+            super(fields, size, ALL_BUCKETS, numBuckets);
+        }
+
+        private AllBucketsScoreHitQueue(AllBucketsScoreHitQueue<T> from, int size) {
+            super(from, size);
+        }
+
+        @Override
+        protected EqFieldValueHitQueue<T> copy(int size) {
+            return new AllBucketsScoreHitQueue<>(this, size);
+        }
+
+        @Override
+        protected boolean lessThan(final EqEntry hitA, final EqEntry hitB) {
+
+            assert hitA != hitB;
+
+            if (hitA.bucket != hitB.bucket) {
+                return hitA.bucket > hitB.bucket;
+            }
+            if (hitA.score != hitB.score) {
+                return hitA.score < hitB.score;
+            }
+            return hitA.doc > hitB.doc;
+        }
+
+        @Override
+        EqFieldDoc fillFields(final EqEntry entry) {
+            return new EqFieldDoc(entry.doc, entry.score, new Object[] { entry.score }, 0, slots.copyScores(entry.slot));
+        }
+    }
+
+    /**
+     * A queue comparing the keys of the entries instead of calling a
+     * comparator, see EqSortKeys. With {@link #ALL_BUCKETS} the docs of a
+     * lower bucket come first.
+     */
+    private static final class KeyHitQueue<T extends EqEntry> extends EqFieldValueHitQueue<T> {
+
+        private final EqSortKeys keys;
+
+        public KeyHitQueue(EqSortKeys keys, int size, int sqidx, int numBuckets) {
+            super(size, sqidx, numBuckets);
+            this.keys = keys;
+        }
+
+        private KeyHitQueue(KeyHitQueue<T> from, int size) {
+            super(from, size);
+            this.keys = from.keys;
+        }
+
+        @Override
+        protected EqFieldValueHitQueue<T> copy(int size) {
+            return new KeyHitQueue<>(this, size);
+        }
+
+        @Override
+        protected boolean lessThan(final EqEntry hitA, final EqEntry hitB) {
+
+            assert hitA != hitB;
+
+            if (hitA.bucket != hitB.bucket) {
+                return hitA.bucket > hitB.bucket;
+            }
+            if (hitA.key != hitB.key) {
+                return keys.reverseMul * Long.compare(hitA.key, hitB.key) > 0;
+            }
+            final int c = keys.compareTerms(hitA.key, hitA.term, hitB.term);
+            if (c != 0) {
+                return c > 0;
+            }
+            return hitA.doc > hitB.doc;
+        }
+
+        @Override
+        EqFieldDoc fillFields(final EqEntry entry) {
+            return new EqFieldDoc(entry.doc, entry.score, new Object[] { keys.value(entry.key, entry.term) }, 0,
+                    slots.copyScores(entry.slot));
+        }
+    }
+
     // prevent instantiation and extension.
-    public EqFieldValueHitQueue(EqSortField[] fields, int size) {
+    public EqFieldValueHitQueue(EqSortField[] fields, int size, int sqidx, int numBuckets) {
         super(size);
+        // the comparators save the sort values of the bucket sqidx
+        this.sqidx = sqidx;
+        this.slots = new EqSlots(numBuckets, size);
+        this.capacity = size;
 
         // When we get here, fields.length is guaranteed to be > 0, therefore no
         // need to check it again.
@@ -164,10 +309,7 @@ public abstract class EqFieldValueHitQueue<T extends EqEntry> extends PriorityQu
             EqSortField field = fields[i];
 
             reverseMul[i] = field.getReverse() ? -1 : 1;
-            // TODO: implement correct sorting if other sort fields are used together with score
             if (field.getType() == SortField.Type.SCORE){
-                if (fields.length>1)
-                    throw new UnsupportedOperationException("cannot combine sort by score with other fields");
                 comparators[i] = new EqRelevanceComparator(size, this.sqidx);
             }else {
                 comparators[i] = field.getEqComparator(size, i, this.sqidx);
@@ -175,31 +317,121 @@ public abstract class EqFieldValueHitQueue<T extends EqEntry> extends PriorityQu
         }
     }
 
+    /* a queue without comparators, its entries are compared by their keys */
+    protected EqFieldValueHitQueue(int size, int sqidx, int numBuckets) {
+        super(size);
+        this.sqidx = sqidx;
+        this.slots = new EqSlots(numBuckets, size);
+        this.capacity = size;
+        this.fields = new EqSortField[0];
+        this.comparators = new FieldComparator<?>[0];
+        this.reverseMul = new int[0];
+    }
+
+    /* a grown queue shares the comparators and the slots of the queue */
+    protected EqFieldValueHitQueue(EqFieldValueHitQueue<T> from, int size) {
+        super(size);
+        this.sqidx = from.sqidx;
+        this.slots = from.slots;
+        this.capacity = size;
+        this.fields = from.fields;
+        this.comparators = from.comparators;
+        this.reverseMul = from.reverseMul;
+    }
+
+    protected abstract EqFieldValueHitQueue<T> copy(int size);
+
+    /** the number of docs the queue and its comparators can hold */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns a queue with the given capacity holding the docs of this
+     * queue. The comparators grow in place, so the leaf comparators of the
+     * current segment and the slots of the docs stay valid.
+     */
+    public EqFieldValueHitQueue<T> grow(int size) {
+        for (FieldComparator<?> comparator : comparators) {
+            ((EqGrowableIf) comparator).grow(size);
+        }
+        EqFieldValueHitQueue<T> grown = copy(size);
+        for (T entry : this) {
+            grown.add(entry);
+        }
+        return grown;
+    }
+
     /**
      * Creates a hit queue sorted by the given list of fields.
      *
-     * <p><b>NOTE</b>: The instances returned by this method
-     * pre-allocate a full array of length <code>numHits</code>.
+     * <p><b>NOTE</b>: The queue starts small and grows with
+     * {@link #grow(int)} up to <code>size</code>, unless a comparator
+     * has a custom source which can't grow.
      *
      * @param fields
      *          SortField array we are sorting by in priority order (highest
      *          priority first); cannot be <code>null</code> or empty
      * @param size
      *          The number of hits to retain. Must be greater than zero.
+     * @param sqidx
+     *          The bucket of the queue, 0-based.
+     * @param numBuckets
+     *          The number of buckets of the collector.
      */
-    public static EqFieldValueHitQueue<EqEntry> create(EqSortField[] fields, int size, int sqidx) {
+    public static EqFieldValueHitQueue<EqEntry> create(EqSortField[] fields, int size, int sqidx, int numBuckets) {
 
         if (fields.length == 0) {
             throw new IllegalArgumentException("Sort must contain at least one field");
         }
 
+        int capacity = initialCapacity(fields, size);
+
         if (fields.length == 1) {
-            return new OneComparatorFieldValueHitQueue<EqEntry>(fields, size, sqidx);
+            return new OneComparatorFieldValueHitQueue<EqEntry>(fields, capacity, sqidx, numBuckets);
         } else {
-            return new MultiComparatorsFieldValueHitQueue<EqEntry>(fields, size);
+            return new MultiComparatorsFieldValueHitQueue<EqEntry>(fields, capacity, sqidx, numBuckets);
         }
     }
 
+    /**
+     * Creates a single hit queue for the docs of all the buckets, the buckets
+     * share the sort given by the fields. The bucket of a doc is kept in
+     * {@link EqEntry#bucket}, the comparators of the fields compare the docs
+     * of the same bucket.
+     */
+    public static EqFieldValueHitQueue<EqEntry> createForAllBuckets(EqSortField[] fields, int size, int numBuckets) {
+
+        if (fields.length == 0) {
+            throw new IllegalArgumentException("Sort must contain at least one field");
+        }
+
+        int capacity = initialCapacity(fields, size);
+        if (fields.length == 1 && fields[0].getType() == SortField.Type.SCORE && !fields[0].getReverse()) {
+            return new AllBucketsScoreHitQueue<EqEntry>(fields, capacity, numBuckets);
+        }
+        return new AllBucketsFieldValueHitQueue<EqEntry>(fields, capacity, numBuckets);
+    }
+
+    /**
+     * Creates a hit queue comparing the sort keys of the entries, see
+     * {@link EqSortKeys}. The queue holds the docs of the bucket sqidx, or
+     * of all the buckets with {@link #ALL_BUCKETS}.
+     */
+    static EqFieldValueHitQueue<EqEntry> createForKeys(EqSortKeys keys, int size, int sqidx, int numBuckets) {
+        return new KeyHitQueue<EqEntry>(keys, Math.min(size, INITIAL_CAPACITY), sqidx, numBuckets);
+    }
+
+    /* the queue starts small unless a comparator has a custom source which can't grow */
+    private static int initialCapacity(EqSortField[] fields, int size) {
+        for (EqSortField field : fields) {
+            if (field.getType() == SortField.Type.CUSTOM) {
+                return size;
+            }
+        }
+        return Math.min(size, INITIAL_CAPACITY);
+    }
+
     public FieldComparator<?>[] getComparators() {
         return comparators;
     }
@@ -208,6 +440,48 @@ public abstract class EqFieldValueHitQueue<T extends EqEntry> extends PriorityQu
         return reverseMul;
     }
 
+    /**
+     * Sets the sort values of the last doc of the page before, the leaf
+     * comparators compare the docs with it, see {@link LeafFieldComparator#compareTop}.
+     * Has to be called before the leaf comparators are created.
+     */
+    @SuppressWarnings("unchecked")
+    public void setTopValues(Object[] values) {
+        if (values.length != comparators.length) {
+            throw new IllegalArgumentException("after has " + values.length + " sort values, the sort of its bucket "
+                    + comparators.length);
+        }
+        for (int i = 0; i < comparators.length; i++) {
+            ((FieldComparator<Object>) comparators[i]).setTopValue(values[i]);
+        }
+    }
+
+    /** Removes the docs up to the last doc of the page before. */
+    public void removeUpTo(FieldDoc after) {
+        List<T> kept = new ArrayList<>(size());
+        for (T entry : this) {
+            if (sortsAfter(entry, after)) {
+                kept.add(entry);
+            }
+        }
+        clear();
+        for (T entry : kept) {
+            add(entry);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean sortsAfter(EqEntry entry, FieldDoc after) {
+        for (int i = 0; i < comparators.length; i++) {
+            FieldComparator<Object> comparator = (FieldComparator<Object>) comparators[i];
+            int c = reverseMul[i] * comparator.compareValues(comparator.value(entry.slot), after.fields[i]);
+            if (c != 0) {
+                return c > 0;
+            }
+        }
+        return entry.doc > after.doc;
+    }
+
     public LeafFieldComparator[] getComparators(LeafReaderContext context) throws IOException {
         LeafFieldComparator[] comparators = new LeafFieldComparator[this.comparators.length];
         for (int i = 0; i < comparators.length; ++i) {
@@ -216,6 +490,11 @@ public abstract class EqFieldValueHitQueue<T extends EqEntry> extends PriorityQu
         return comparators;
     }
 
+    /* initial capacity of a queue which can grow */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int capacity;
+
     /** Stores the sort criteria being used. */
     protected final EqSortField[] fields;
     protected final FieldComparator<?>[] comparators;
@@ -242,7 +521,7 @@ public abstract class EqFieldValueHitQueue<T extends EqEntry> extends PriorityQu
             fields[i] = comparators[i].value(entry.slot);
         }
         //if (maxscore > 1.0f) doc.score /= maxscore;   // normalize scores
-        return new EqFieldDoc(entry.doc, entry.score, fields, entry.sqmask, entry.scores);
+        return new EqFieldDoc(entry.doc, entry.score, fields, 0, slots.copyScores(entry.slot));
     }
 
     /** Returns the SortFields being used by this hit queue. */
@@ -0,0 +1,9 @@
+package org.apache.lucene.search;
+
+/**
+ * A comparator whose slot values can grow with its hit queue, see
+ * {@link EqFieldValueHitQueue#grow(int)}.
+ */
+public interface EqGrowableIf {
+    void grow(int numHits);
+}
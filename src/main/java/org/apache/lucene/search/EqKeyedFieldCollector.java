@@ -0,0 +1,615 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRefBuilder;
+
+/**
+ * The collectors of the buckets whose sorts can be keyed, see EqSortKeys:
+ * all of them by relevance only, or all of them by the same numeric or
+ * string field. The queues compare the long keys of their docs, so taking
+ * a doc is a primitive comparison instead of a call through the leaf
+ * comparator of the bucket, and a doc pushed out of a limited bucket brings
+ * its key to the next bucket instead of being scored and read again.
+ *
+ * The docs end up in the same buckets as with the generic collectors of
+ * EqTopFieldCollector. A search after a doc is left to the generic ones.
+ */
+abstract class EqKeyedFieldCollector extends EqTopFieldCollector {
+
+    final EqSortKeys keys;
+    final boolean trackDocScores;
+    // the scores of the current doc before they are stored in a slot
+    final float[] rowScores;
+
+    EqKeyedFieldCollector(Sort[] sorts, int[] limits, int numHits, EqSortKeys keys, boolean trackDocScores,
+                          int totalHitsThreshold) {
+        super(sorts.length, numHits);
+        this.sorts = sorts;
+        this.limits = limits;
+        this.keys = keys;
+        this.trackDocScores = trackDocScores;
+        this.totalHitsThreshold = totalHitsThreshold;
+        this.rowScores = new float[sorts.length + 1];
+    }
+
+    /*
+     * The string keys are ordinals of the segment, the docs of the segments
+     * before are keyed again by their terms. Their order doesn't change, so
+     * the heap stays valid.
+     */
+    final void rekey(EqFieldValueHitQueue<EqEntry> q) throws IOException {
+        if (q == null || !keys.hasTerms()) {
+            return;
+        }
+        for (EqEntry entry : q) {
+            entry.key = keys.rekey(entry.key, entry.term);
+        }
+    }
+
+    /*
+     * The keyed SingleHeapFieldCollector: no limits and one sort, a single
+     * queue ordered by (bucket, key, doc) holds the docs of all the buckets.
+     */
+    static final class SingleHeap extends EqKeyedFieldCollector {
+
+        EqEntry bottom;
+
+        SingleHeap(Sort[] sorts, int[] limits, int numHits, EqSortKeys keys, boolean trackDocScores,
+                   int totalHitsThreshold) {
+            super(sorts, limits, numHits, keys, trackDocScores, totalHitsThreshold);
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            if (needsScores()) {
+                return totalHitsThreshold < Integer.MAX_VALUE && keys.isScore() ? ScoreMode.TOP_SCORES : ScoreMode.COMPLETE;
+            }
+            // the bucket of a doc comes from the EqDisjunctionMaxScorer
+            return ScoreMode.COMPLETE;
+        }
+
+        @Override
+        public ScoreMode[] subScoreModes() {
+            ScoreMode[] modes = new ScoreMode[sorts.length];
+            Arrays.fill(modes, needsScores() ? scoreMode() : ScoreMode.COMPLETE_NO_SCORES);
+            return modes;
+        }
+
+        private boolean needsScores() {
+            return trackDocScores || keys.isScore();
+        }
+
+        @Override
+        protected void populateResults(ScoreDoc[] results, int howMany) {
+            EqFieldValueHitQueue<EqEntry> q = pqs[0];
+            for (int i = howMany - 1; i >= 0; i--) {
+                EqEntry entry = q.pop();
+                EqFieldDoc doc = q.fillFields(entry);
+                doc.subqIndex = entry.bucket + 1;
+                results[i] = doc;
+            }
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+
+            docBase = context.docBase;
+            keys.setNextReader(context);
+            if (pqs[0] == null) {
+                pqs[0] = EqFieldValueHitQueue.createForKeys(keys, numHits, EqFieldValueHitQueue.ALL_BUCKETS, sorts.length);
+            } else {
+                rekey(pqs[0]);
+            }
+
+            // the segment is sorted like the queue, see terminate
+            final boolean sortedByIndex = sortedByIndex(context)[0];
+
+            return new EqLeafCollector(false) {
+
+                @Override
+                int competitiveBucket() {
+                    return keys.isScore() && queueFull[0] ? bottom.bucket : -1;
+                }
+
+                @Override
+                float bottomScore(int bucket) {
+                    return bottom.score;
+                }
+
+                private void saveScores(int bucket, float score, EqSlots slots, int slot) throws IOException {
+                    Arrays.fill(rowScores, 0f);
+                    rowScores[bucket + 1] = score;
+                    if (trackDocScores) {
+                        long[] mask = this.scorer.sqmask;
+                        for (int i = EqSqMask.lowest(mask); i >= 0; i = EqSqMask.nextSetBit(mask, i + 1)) {
+                            rowScores[i] = this.scorer.score(i);
+                        }
+                    }
+                    slots.setScores(slot, rowScores);
+                }
+
+                /* the term of a doc of the segment, the key has been computed from it */
+                private void setTerm(EqEntry entry) throws IOException {
+                    if (!keys.hasTerms()) {
+                        return;
+                    }
+                    if (entry.term == null) {
+                        entry.term = new BytesRefBuilder();
+                    }
+                    if (entry.key != keys.missingKey) {
+                        entry.term.copyBytes(keys.term(entry.key));
+                    }
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    addToDocSets(doc, scorer.sqidx - 1);
+                    final boolean lastCounted = collectedHits++ == totalHitsThreshold;
+                    collect(doc, scorer.score());
+                    if (lastCounted) {
+                        stopCounting();
+                    }
+                }
+
+                private void collect(int doc, float score) throws IOException {
+                    // scorer.sqidx starts with 1
+                    final int bucket = scorer.sqidx - 1;
+
+                    // the page is behind its bucket, or the full queue doesn't
+                    // take docs of the buckets after its bottom
+                    if (bucket < skippedBuckets || bucket > lowestCollectingQueue) {
+                        return;
+                    }
+
+                    final long key = keys.isScore() ? EqSortKeys.scoreKey(score) : keys.key(doc);
+                    EqFieldValueHitQueue<EqEntry> q = pqs[0];
+                    if (queueFull[0]) {
+                        // a doc of a lower bucket than the bottom always enters the queue,
+                        // a doc of the segment loses a tie against the docs collected before
+                        if (bucket == bottom.bucket) {
+                            if (terminated[bucket]) {
+                                return;
+                            }
+                            if (keys.reverseMul * Long.compare(key, bottom.key) >= 0) {
+                                if (sortedByIndex) {
+                                    terminate(bucket);
+                                }
+                                return;
+                            }
+                        }
+                        bottom.doc = docBase + doc;
+                        bottom.docBase = docBase;
+                        bottom.score = score;
+                        bottom.bucket = bucket;
+                        bottom.key = key;
+                        setTerm(bottom);
+                        saveScores(bucket, score, q.slots, bottom.slot);
+                        bottom = q.updateTop();
+                    } else {
+                        final int slot = q.size();
+                        if (slot == q.capacity()) {
+                            pqs[0] = q = q.grow(Math.min(numHits - skippedDocs, slot << 1));
+                        }
+                        q.slots.ensure(slot);
+                        saveScores(bucket, score, q.slots, slot);
+
+                        EqEntry e = new EqEntry(slot, docBase, docBase + doc, score, q.slots);
+                        e.bucket = bucket;
+                        e.key = key;
+                        setTerm(e);
+                        bottom = q.add(e);
+
+                        if (!(queueFull[0] = q.size() == numHits - skippedDocs)) {
+                            return;
+                        }
+                    }
+
+                    if (bottom.bucket < lowestCollectingQueue) {
+                        lowestCollectingQueue = bottom.bucket;
+                        if (!countsHits() || cascade) {
+                            pruneSubScorers();
+                        }
+                    }
+                    updateMinCompetitiveScore();
+                }
+            };
+        }
+    }
+
+    /*
+     * The keyed SimpleStackedFieldCollector: a queue for each bucket and at
+     * least one limited bucket. A doc pushed out of a limited bucket keeps
+     * its key, its term, its mask and its scores, the docs pushed on a
+     * segment are collected into their next bucket before the next segment
+     * starts, without a second pass of the scorer.
+     */
+    static final class Stacked extends EqKeyedFieldCollector {
+
+        // index of the first limited bucket
+        final int firstLimited;
+
+        /*
+         * The doc in the collect loop: its id, the docBase of its segment and,
+         * once computed, its key. A fresh doc comes from the scorer, its term
+         * is read from the segment. A pushed doc brings its term in curTerm.
+         */
+        int curDoc;
+        int curDocBase;
+        long curKey;
+        boolean keyed;
+        boolean fresh;
+        BytesRefBuilder curTerm = new BytesRefBuilder();
+
+        // the docs pushed out of a limited bucket, their slots keep the mask and the scores
+        EqSlots pushed;
+        int[] pushedDocs = new int[16];
+        int[] pushedDocBases = new int[16];
+        long[] pushedKeys = new long[16];
+        BytesRefBuilder[] pushedTerms = new BytesRefBuilder[16];
+        int pushedCount;
+        // the buffers of the docs pushed again while the pushed docs are collected
+        EqSlots sparePushed;
+        int[] sparePushedDocs = new int[16];
+        int[] sparePushedDocBases = new int[16];
+        long[] sparePushedKeys = new long[16];
+        BytesRefBuilder[] sparePushedTerms = new BytesRefBuilder[16];
+
+        Stacked(Sort[] sorts, int[] limits, int numHits, EqSortKeys keys, boolean trackDocScores,
+                int totalHitsThreshold) {
+            super(sorts, limits, numHits, keys, trackDocScores, totalHitsThreshold);
+            for (int i = 0; i < limits.length; i++) {
+                bucketSize[i] = limits[i] > 0 ? Math.min(limits[i], numHits) : numHits;
+            }
+            this.docMask = EqSqMask.create(sorts.length);
+            this.docScores = new float[sorts.length + 1];
+
+            int firstLimited = 0;
+            while (firstLimited < limits.length && limits[firstLimited] == 0) {
+                firstLimited++;
+            }
+            this.firstLimited = firstLimited;
+            this.pushed = new EqSlots(sorts.length, 16);
+            this.sparePushed = new EqSlots(sorts.length, 16);
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            if (needsScores()) {
+                return canSkipNonCompetitive() ? ScoreMode.TOP_SCORES : ScoreMode.COMPLETE;
+            }
+            // the bucket of a doc comes from the EqDisjunctionMaxScorer
+            return ScoreMode.COMPLETE;
+        }
+
+        @Override
+        public ScoreMode[] subScoreModes() {
+            ScoreMode[] modes = new ScoreMode[sorts.length];
+            Arrays.fill(modes, needsScores() ? scoreMode() : ScoreMode.COMPLETE_NO_SCORES);
+            return modes;
+        }
+
+        private boolean needsScores() {
+            return trackDocScores || keys.isScore();
+        }
+
+        private boolean canSkipNonCompetitive() {
+            return totalHitsThreshold != Integer.MAX_VALUE && keys.isScore() && firstLimited > 0;
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+
+            // the docs pushed down on the segment before, their keys are of that segment
+            collectPushedDocs();
+
+            docBase = context.docBase;
+            keys.setNextReader(context);
+            for (EqFieldValueHitQueue<EqEntry> q : pqs) {
+                rekey(q);
+            }
+            return new StackedLeafCollector(context);
+        }
+
+        /*
+         * Collects the docs pushed out of a limited bucket into their next
+         * bucket, in index order like the second pass of the generic collector.
+         * The docs pushed again on the way wait for the next round.
+         */
+        @Override
+        void collectPushedDocs() throws IOException {
+            while (pushedCount > 0) {
+                EqSlots slots = pushed;
+                int[] docs = pushedDocs;
+                int[] docBases = pushedDocBases;
+                long[] docKeys = pushedKeys;
+                BytesRefBuilder[] terms = pushedTerms;
+                long[] order = new long[pushedCount];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = (long) docs[i] << 32 | i;
+                }
+                Arrays.sort(order);
+
+                pushed = sparePushed;
+                pushedDocs = sparePushedDocs;
+                pushedDocBases = sparePushedDocBases;
+                pushedKeys = sparePushedKeys;
+                pushedTerms = sparePushedTerms;
+                pushedCount = 0;
+                sparePushed = slots;
+                sparePushedDocs = docs;
+                sparePushedDocBases = docBases;
+                sparePushedKeys = docKeys;
+                sparePushedTerms = terms;
+
+                for (long o : order) {
+                    final int i = (int) o;
+                    curDoc = docs[i];
+                    curDocBase = docBases[i];
+                    curKey = docKeys[i];
+                    keyed = true;
+                    fresh = false;
+                    if (keys.hasTerms()) {
+                        BytesRefBuilder term = curTerm;
+                        curTerm = terms[i];
+                        terms[i] = term;
+                    }
+                    slots.getMask(i, docMask);
+                    slots.getScores(i, docScores);
+                    docScoresSaved = true;
+
+                    int next = EqSqMask.lowest(docMask);
+                    EqSqMask.clear(docMask, next);
+                    // bit i stands for the bucket i-1
+                    collect(next - 1, docScores[next], null);
+                }
+            }
+        }
+
+        /* defers the doc btm pushed out of a limited bucket, see collectPushedDocs */
+        private void push(EqEntry btm) {
+            final int n = pushedCount++;
+            pushed.ensure(n);
+            btm.slots.copyState(btm.slot, pushed, n);
+            if (n == pushedDocs.length) {
+                pushedDocs = ArrayUtil.grow(pushedDocs);
+                pushedDocBases = ArrayUtil.grow(pushedDocBases, pushedDocs.length);
+                pushedKeys = ArrayUtil.grow(pushedKeys, pushedDocs.length);
+                pushedTerms = Arrays.copyOf(pushedTerms, pushedDocs.length);
+            }
+            pushedDocs[n] = btm.doc;
+            pushedDocBases[n] = btm.docBase;
+            pushedKeys[n] = btm.key;
+            if (keys.hasTerms()) {
+                if (pushedTerms[n] == null) {
+                    pushedTerms[n] = new BytesRefBuilder();
+                }
+                pushedTerms[n].copyBytes(btm.term.get());
+            }
+        }
+
+        /* the key of the doc in the bucket, the score is the one of the doc in the bucket */
+        private long key(float score) throws IOException {
+            if (keys.isScore()) {
+                return EqSortKeys.scoreKey(score);
+            }
+            if (!keyed) {
+                curKey = keys.key(curDoc - docBase);
+                keyed = true;
+            }
+            return curKey;
+        }
+
+        /* > 0 if the doc sorts before the bottom, the docs collected before win a tie */
+        private int compareBottom(EqEntry btm, long key) {
+            int c = keys.reverseMul * Long.compare(btm.key, key);
+            if (c == 0 && !fresh) {
+                c = keys.compareTerms(key, btm.term, curTerm);
+            }
+            return c;
+        }
+
+        private void setTerm(EqEntry entry) throws IOException {
+            if (!keys.hasTerms()) {
+                return;
+            }
+            if (entry.term == null) {
+                entry.term = new BytesRefBuilder();
+            }
+            if (entry.key == keys.missingKey) {
+                return;
+            }
+            if (fresh) {
+                entry.term.copyBytes(keys.term(entry.key));
+            } else {
+                entry.term.copyBytes(curTerm.get());
+            }
+        }
+
+        /*
+         * Score of the doc in the bucket sqidx. A doc of the segment is scored
+         * on demand, a pushed down doc brings its saved scores.
+         */
+        private float bucketScore(int sqidx, StackedLeafCollector leaf) throws IOException {
+            return docScoresSaved ? docScores[sqidx + 1] : leaf.scorer.score(sqidx + 1);
+        }
+
+        private void saveScores(int sqidx, float score, EqSlots slots, int slot, StackedLeafCollector leaf)
+                throws IOException {
+            if (docScoresSaved) {
+                slots.setScores(slot, docScores);
+                return;
+            }
+            Arrays.fill(rowScores, 0f);
+            rowScores[sqidx + 1] = score;
+            if (trackDocScores || limits[sqidx] > 0) {
+                for (int i = EqSqMask.lowest(docMask); i >= 0; i = EqSqMask.nextSetBit(docMask, i + 1)) {
+                    rowScores[i] = leaf.scorer.score(i);
+                }
+            }
+            slots.setScores(slot, rowScores);
+        }
+
+        /*
+         * The collect loop of SimpleStackedFieldCollector for the doc in the
+         * registers. leaf is null while the pushed docs are collected, there is
+         * no scorer to prune or to terminate then.
+         */
+        private void collect(int sqidx, float score, StackedLeafCollector leaf) throws IOException {
+            while (true) {
+                if (sqidx > lowestCollectingQueue && countDeadHit(sqidx)) {
+                    // the doc cannot make it into the result list anymore
+                    return;
+                }
+
+                if (sqidx < skippedBuckets) {
+                    // the page is behind the bucket
+                    return;
+                }
+
+                if (queueFull[sqidx]) {
+                    final EqEntry btm = bottoms[sqidx];
+                    final boolean terminated = leaf != null && leaf.terminated[sqidx];
+                    final long key = terminated ? 0L : key(score);
+
+                    // doc does not enter this queue
+                    if (terminated || compareBottom(btm, key) <= 0) {
+                        if (leaf != null && leaf.sortedByIndex[sqidx] && !terminated) {
+                            leaf.terminate(sqidx);
+                        }
+
+                        // no more queues waiting for this doc
+                        if (EqSqMask.isEmpty(docMask)) {
+                            // a doc rejected by a limited bucket is no hit
+                            if (limits[sqidx] > 0) {
+                                collectedHits--;
+                            }
+                            return;
+                        }
+
+                        // an unlimited bucket doesn't pass the doc on
+                        if (limits[sqidx] == 0) {
+                            return;
+                        }
+
+                        int next = EqSqMask.lowest(docMask);
+                        EqSqMask.clear(docMask, next);
+                        // bit i stands for the bucket i-1
+                        sqidx = next - 1;
+                        score = bucketScore(sqidx, leaf);
+                        continue;
+                    }
+
+                    if (limits[sqidx] > 0) {
+                        // btm is removed from the limited queue, but it might be
+                        // collected by another queue
+                        if (btm.slots.isMaskEmpty(btm.slot)) {
+                            collectedHits--;
+                        } else {
+                            push(btm);
+                        }
+                    }
+
+                    // just overwrite the values of the bottom, it is not in this queue anymore
+                    btm.doc = curDoc;
+                    btm.docBase = curDocBase;
+                    btm.score = score;
+                    btm.key = key;
+                    setTerm(btm);
+                    saveScores(sqidx, score, btm.slots, btm.slot, leaf);
+                    btm.slots.setMask(btm.slot, docMask);
+                    bottoms[sqidx] = pqs[sqidx].updateTop();
+                    if (leaf != null && limits[sqidx] == 0 && (sqidx == lowestCollectingQueue || sqidx == pqs.length - 1)) {
+                        leaf.updateMinCompetitiveScore();
+                    }
+                    return;
+                }
+
+                // queue is not full, just insert the doc
+                EqFieldValueHitQueue<EqEntry> q = pqs[sqidx];
+                if (q == null) {
+                    pqs[sqidx] = q = EqFieldValueHitQueue.createForKeys(keys, bucketSize[sqidx], sqidx, pqs.length);
+                } else if (limits[sqidx] == 0 && sqHits[sqidx] >= window(sqidx)) {
+                    // the buckets before fill the rest of the result list
+                    queueFull[sqidx] = true;
+                    if (leaf != null) {
+                        leaf.updateMinCompetitiveScore();
+                    }
+                    continue;
+                }
+
+                final int slot = sqHits[sqidx];
+                if (slot == q.capacity()) {
+                    pqs[sqidx] = q = q.grow(Math.min(bucketSize[sqidx], slot << 1));
+                }
+                sqHits[sqidx]++;
+
+                EqSlots slots = q.slots;
+                slots.ensure(slot);
+                saveScores(sqidx, score, slots, slot, leaf);
+                slots.setMask(slot, docMask);
+
+                EqEntry e = new EqEntry(slot, curDocBase, curDoc, score, slots);
+                e.key = key(score);
+                setTerm(e);
+                bottoms[sqidx] = q.add(e);
+                queueFull[sqidx] = sqHits[sqidx] == bucketSize[sqidx];
+
+                if (updateLowestCollectingQueue() && leaf != null && (!countsHits() || leaf.cascade)) {
+                    leaf.pruneSubScorers();
+                }
+                if (queueFull[sqidx] && leaf != null) {
+                    leaf.updateMinCompetitiveScore();
+                }
+                return;
+            }
+        }
+
+        private final class StackedLeafCollector extends EqLeafCollector {
+
+            // the buckets sorted like the segment, see sortedByIndex
+            final boolean[] sortedByIndex;
+
+            StackedLeafCollector(LeafReaderContext context) {
+                super(false);
+                this.sortedByIndex = sortedByIndex(context);
+            }
+
+            /* see SimpleStackedFieldCollector, only the buckets before the first limited one */
+            @Override
+            int competitiveBucket() {
+                final int idx = Math.min(lowestCollectingQueue, pqs.length - 1);
+                return idx < firstLimited && keys.isScore() && queueFull[idx] ? idx : -1;
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                addToDocSets(doc, scorer.sqidx - 1);
+
+                // the doc is in a seeded bucket already
+                if (seededDocs != null && seededDocs.get(docBase + doc)) {
+                    return;
+                }
+
+                curDoc = docBase + doc;
+                curDocBase = docBase;
+                keyed = false;
+                fresh = true;
+                float score = scorer.score();
+                docScoresSaved = false;
+                EqSqMask.copy(scorer.sqmask, docMask);
+
+                final boolean lastCounted = collectedHits++ == totalHitsThreshold;
+
+                // scorer.sqidx starts with 1
+                Stacked.this.collect(scorer.sqidx - 1, score, this);
+                if (lastCounted) {
+                    stopCounting();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Matches the docs with the given ids in the given order.
+ *
+ * Used as a subquery of the '&lt;&lt;' operator instead of one subquery per
+ * pinned doc: <code>{!pinned ids=a,b,c} &lt;&lt; Q</code> is the same as
+ * <code>id:a &lt;&lt; id:b &lt;&lt; id:c &lt;&lt; Q</code>, but needs a single
+ * bucket. The score of a doc is derived from the position of its id
+ * (ids.length - rank), so the bucket sorted by relevance keeps the order
+ * of the ids.
+ */
+public class EqPinnedQuery extends Query {
+
+    private final String field;
+    private final BytesRef[] ids;
+
+    /* positions of the ids in term order, the terms dictionary is visited once */
+    private final int[] termOrder;
+
+    public EqPinnedQuery(String field, List<BytesRef> ids) {
+        this.field = field;
+        this.ids = ids.toArray(new BytesRef[ids.size()]);
+
+        Integer[] order = new Integer[this.ids.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> this.ids[a].compareTo(this.ids[b]));
+        this.termOrder = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            termOrder[i] = order[i];
+        }
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public List<BytesRef> getIds() {
+        return Arrays.asList(ids);
+    }
+
+    /* the score of the doc with the id at position rank */
+    float score(int rank) {
+        return ids.length - rank;
+    }
+
+    /*
+     * Resolves the ids on the segment in a single pass over the terms
+     * dictionary. Returns the matching docs in doc id order, each packed
+     * with its rank as (doc << 32 | rank), or null if no id matches.
+     */
+    long[] resolve(LeafReaderContext context) throws IOException {
+        Terms terms = context.reader().terms(field);
+        if (terms == null) {
+            return null;
+        }
+
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        long[] matches = new long[ids.length];
+        int count = 0;
+
+        for (int rank : termOrder) {
+            if (!termsEnum.seekExact(ids[rank])) {
+                continue;
+            }
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                if (count == matches.length) {
+                    matches = Arrays.copyOf(matches, count << 1);
+                }
+                matches[count++] = ((long) doc << 32) | rank;
+            }
+        }
+
+        if (count == 0) {
+            return null;
+        }
+
+        Arrays.sort(matches, 0, count);
+
+        // a doc listed twice keeps its first position
+        int docs = 1;
+        for (int i = 1; i < count; i++) {
+            if ((matches[i] >>> 32) != (matches[docs - 1] >>> 32)) {
+                matches[docs++] = matches[i];
+            }
+        }
+        return Arrays.copyOf(matches, docs);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        return new Weight(this) {
+
+            @Override
+            public void extractTerms(Set<Term> terms) {
+                for (BytesRef id : ids) {
+                    terms.add(new Term(field, id));
+                }
+            }
+
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                long[] matches = resolve(context);
+                return matches == null ? null : new PinnedScorer(this, matches);
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext ctx) {
+                return true;
+            }
+
+            @Override
+            public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+                long[] matches = resolve(context);
+                if (matches != null) {
+                    for (long match : matches) {
+                        if ((int) (match >>> 32) == doc) {
+                            int rank = (int) match;
+                            return Explanation.match(score(rank), "pinned at position " + (rank + 1));
+                        }
+                    }
+                }
+                return Explanation.noMatch("id is not pinned");
+            }
+        };
+    }
+
+    private class PinnedScorer extends Scorer {
+
+        private final long[] matches;
+        private int idx = -1;
+        private int doc = -1;
+
+        private final DocIdSetIterator iterator = new DocIdSetIterator() {
+
+            @Override
+            public int docID() {
+                return doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return doc = ++idx < matches.length ? (int) (matches[idx] >>> 32) : NO_MORE_DOCS;
+            }
+
+            @Override
+            public int advance(int target) {
+                while (nextDoc() < target) {
+                }
+                return doc;
+            }
+
+            @Override
+            public long cost() {
+                return matches.length;
+            }
+        };
+
+        PinnedScorer(Weight weight, long[] matches) {
+            super(weight);
+            this.matches = matches;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return iterator;
+        }
+
+        @Override
+        public float score() {
+            return EqPinnedQuery.this.score((int) matches[idx]);
+        }
+
+        @Override
+        public float getMaxScore(int upTo) {
+            return ids.length;
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        List<String> values = new ArrayList<>(ids.length);
+        for (BytesRef id : ids) {
+            values.add(id.utf8ToString());
+        }
+        return "{!pinned f=" + this.field + " ids=" + String.join(",", values) + "}";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && field.equals(((EqPinnedQuery) other).field)
+                && Arrays.equals(ids, ((EqPinnedQuery) other).ids);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = classHash();
+        h = 31 * h + field.hashCode();
+        h = 31 * h + Arrays.hashCode(ids);
+        return h;
+    }
+}
@@ -1,13 +1,14 @@
 package org.apache.lucene.search;
 
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.ArrayUtil;
 
 import java.io.IOException;
 
-public class EqRelevanceComparator extends FieldComparator<Float> implements LeafFieldComparator, EqCopyValueIf {
-    private final float[] scores;
+public class EqRelevanceComparator extends FieldComparator<Float> implements LeafFieldComparator, EqGrowableIf {
+    private float[] scores;
     private float bottom;
-    private Scorable scorer;
+    private EqDisjunctionMaxScorer scorer;
     private float topValue;
     public int sqidx;
     int docBase;
@@ -18,25 +19,31 @@ public class EqRelevanceComparator extends FieldComparator<Float> implements Lea
         this.sqidx = sqidx;
     }
 
+    @Override
+    public void grow(int numHits) {
+        scores = ArrayUtil.growExact(scores, numHits);
+    }
+
     @Override
     public int compare(int slot1, int slot2) {
         return Float.compare(scores[slot2], scores[slot1]);
     }
 
+    /* a queue of all the buckets compares the score of the bucket of the doc */
+    private float score() throws IOException {
+        return scorer.score(sqidx == EqFieldValueHitQueue.ALL_BUCKETS ? scorer.sqidx : sqidx + 1);
+    }
+
     @Override
     public int compareBottom(int doc) throws IOException {
-        float score = scorer.score();
+        float score = score();
         assert !Float.isNaN(score);
         return Float.compare(score, bottom);
     }
 
-    public int compareBottom(EqEntry e) {
-        return Float.compare(e.compValues[sqidx].scoreValue, bottom);
-    }
-
     @Override
     public void copy(int slot, int doc) throws IOException {
-        scores[slot] = scorer.score();
+        scores[slot] = score();
         assert !Float.isNaN(scores[slot]);
     }
 
@@ -64,7 +71,7 @@ public class EqRelevanceComparator extends FieldComparator<Float> implements Lea
         if (!(scorer instanceof EqDisjunctionMaxScorer))
             throw new UnsupportedOperationException("No other scorers than EqDisjunctionMaxScorer supported here");
 
-        this.scorer = scorer;
+        this.scorer = (EqDisjunctionMaxScorer) scorer;
     }
 
     @Override
@@ -82,24 +89,8 @@ public class EqRelevanceComparator extends FieldComparator<Float> implements Lea
 
     @Override
     public int compareTop(int doc) throws IOException {
-        float docValue = scorer.score();
+        float docValue = score();
         assert !Float.isNaN(docValue);
         return Float.compare(docValue, topValue);
     }
-
-    public void copyValue(EqComparatorValue v, int doc) throws IOException{
-        v.scoreValue = scorer.score();
-    }
-
-    public int getDocBase(){
-        return docBase;
-    }
-
-    public int compare(EqEntry a, EqEntry b){
-        return Float.compare(a.compValues[sqidx].scoreValue, b.compValues[sqidx].scoreValue);
-    }
-
-    public int compare(EqEntry a, int slot){
-        return Float.compare(a.compValues[sqidx].scoreValue, scores[slot]);
-    }
 }
\ No newline at end of file
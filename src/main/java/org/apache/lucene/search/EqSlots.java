@@ -0,0 +1,90 @@
+package org.apache.lucene.search;
+
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * The state of the docs of a bucket, in parallel arrays indexed by the slot
+ * of the doc in the comparators of the bucket:
+ *
+ * - the mask of the buckets still waiting for the doc, see EqSqMask
+ * - the scores of the doc for each subquery (1-based like the scorer)
+ *
+ * The arrays grow with the number of docs in the bucket and are reused
+ * once the bucket is full, so collecting a doc doesn't allocate anything.
+ */
+public final class EqSlots {
+
+    private final int words;
+    private final int width;
+
+    private int capacity;
+    private long[] masks;
+    private float[] scores;
+
+    public EqSlots(int buckets, int capacity) {
+        this.words = EqSqMask.words(buckets);
+        this.width = buckets + 1;
+        this.capacity = Math.max(capacity, 1);
+        this.masks = new long[this.capacity * words];
+        this.scores = new float[this.capacity * width];
+    }
+
+    /** makes room for the given slot */
+    public void ensure(int slot) {
+        if (slot < capacity) {
+            return;
+        }
+        capacity = ArrayUtil.oversize(slot + 1, 1);
+        masks = ArrayUtil.growExact(masks, capacity * words);
+        scores = ArrayUtil.growExact(scores, capacity * width);
+    }
+
+    public boolean isMaskEmpty(int slot) {
+        for (int i = slot * words, end = i + words; i < end; i++) {
+            if (masks[i] != 0) return false;
+        }
+        return true;
+    }
+
+    /** index of the lowest bit of the mask of the slot, -1 if the mask is empty */
+    public int lowestMaskBit(int slot) {
+        for (int i = 0; i < words; i++) {
+            long word = masks[slot * words + i];
+            if (word != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(word);
+            }
+        }
+        return -1;
+    }
+
+    public void setMask(int slot, long[] mask) {
+        System.arraycopy(mask, 0, masks, slot * words, words);
+    }
+
+    public void getMask(int slot, long[] mask) {
+        System.arraycopy(masks, slot * words, mask, 0, words);
+    }
+
+    public float score(int slot, int subQuery) {
+        return scores[slot * width + subQuery];
+    }
+
+    public void setScores(int slot, float[] subScores) {
+        System.arraycopy(subScores, 0, scores, slot * width, width);
+    }
+
+    public void getScores(int slot, float[] subScores) {
+        System.arraycopy(scores, slot * width, subScores, 0, width);
+    }
+
+    /** a copy of the scores of the slot for the result list */
+    public float[] copyScores(int slot) {
+        return ArrayUtil.copyOfSubArray(scores, slot * width, slot * width + width);
+    }
+
+    /** copies the mask and the scores of the slot to the slot of another store */
+    public void copyState(int slot, EqSlots to, int toSlot) {
+        System.arraycopy(masks, slot * words, to.masks, toSlot * words, words);
+        System.arraycopy(scores, slot * width, to.scores, toSlot * width, width);
+    }
+}
@@ -0,0 +1,177 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * The sort of the buckets of a '&lt;&lt;' query as one long key per doc: the
+ * keys of two docs compare like their sort values. It covers the buckets
+ * which all sort by relevance only, or which all sort by the same single
+ * numeric or string field. The keyed collectors compare the keys instead of
+ * calling a comparator for each doc, see EqKeyedFieldCollector.
+ *
+ * A relevance key is the score of the doc in its bucket, a numeric key the
+ * value of the field in its sortable form. A string is keyed by its ordinal
+ * in the current segment, 2 * ord + 1. The docs collected on the segments
+ * before keep their terms and are keyed again on the next segment, a term
+ * which is not in the segment gets the even key between its neighbours,
+ * see rekey.
+ *
+ * Like the comparators of EqSortField, a doc without a value sorts as 0 or,
+ * for a string, first.
+ */
+final class EqSortKeys {
+
+    enum Type { SCORE, LONG, INT, DOUBLE, FLOAT, STRING }
+
+    final Type type;
+    final String field;
+    /* 1 if the docs with lower keys come first, -1 for relevance */
+    final int reverseMul;
+    /* the key of a doc without a value */
+    final long missingKey;
+
+    private NumericDocValues values;
+    private SortedDocValues ords;
+
+    private EqSortKeys(Type type, String field, int reverseMul, long missingKey) {
+        this.type = type;
+        this.field = field;
+        this.reverseMul = reverseMul;
+        this.missingKey = missingKey;
+    }
+
+    /** the keys of the sorts of the buckets, null if the sorts can't be keyed */
+    static EqSortKeys of(Sort[] sorts) {
+        SortField first = singleField(sorts[0]);
+        if (first == null) {
+            return null;
+        }
+        for (Sort sort : sorts) {
+            SortField f = singleField(sort);
+            if (f == null || f.getType() != first.getType() || f.getReverse() != first.getReverse()
+                    || !Objects.equals(f.getField(), first.getField()) && first.getType() != SortField.Type.SCORE) {
+                return null;
+            }
+        }
+
+        int reverseMul = first.getReverse() ? -1 : 1;
+        switch (first.getType()) {
+            case SCORE:
+                // only by descending relevance, like the scoreOnly buckets
+                return first.getReverse() ? null : new EqSortKeys(Type.SCORE, null, -1, 0L);
+            case LONG:
+                return new EqSortKeys(Type.LONG, first.getField(), reverseMul, 0L);
+            case INT:
+                return new EqSortKeys(Type.INT, first.getField(), reverseMul, 0L);
+            case DOUBLE:
+                return new EqSortKeys(Type.DOUBLE, first.getField(), reverseMul, NumericUtils.doubleToSortableLong(0d));
+            case FLOAT:
+                return new EqSortKeys(Type.FLOAT, first.getField(), reverseMul, NumericUtils.floatToSortableInt(0f));
+            case STRING:
+                return new EqSortKeys(Type.STRING, first.getField(), reverseMul, Long.MIN_VALUE);
+            default:
+                return null;
+        }
+    }
+
+    private static SortField singleField(Sort sort) {
+        SortField[] fields = sort.getSort();
+        return fields.length == 1 ? fields[0] : null;
+    }
+
+    boolean isScore() {
+        return type == Type.SCORE;
+    }
+
+    boolean hasTerms() {
+        return type == Type.STRING;
+    }
+
+    void setNextReader(LeafReaderContext context) throws IOException {
+        switch (type) {
+            case SCORE:
+                break;
+            case STRING:
+                ords = DocValues.getSorted(context.reader(), field);
+                break;
+            default:
+                values = DocValues.getNumeric(context.reader(), field);
+        }
+    }
+
+    static long scoreKey(float score) {
+        return NumericUtils.floatToSortableInt(score);
+    }
+
+    /* the key of a doc of the current segment, the relevance keys come from scoreKey */
+    long key(int doc) throws IOException {
+        if (type == Type.STRING) {
+            return ords.advanceExact(doc) ? 2L * ords.ordValue() + 1 : missingKey;
+        }
+        if (!values.advanceExact(doc)) {
+            return missingKey;
+        }
+        final long raw = values.longValue();
+        switch (type) {
+            case INT:
+                return (int) raw;
+            case DOUBLE:
+                return NumericUtils.doubleToSortableLong(Double.longBitsToDouble(raw));
+            case FLOAT:
+                return NumericUtils.floatToSortableInt(Float.intBitsToFloat((int) raw));
+            default:
+                return raw;
+        }
+    }
+
+    /* the term of the key of a doc of the current segment */
+    BytesRef term(long key) throws IOException {
+        return ords.lookupOrd((int) (key >>> 1));
+    }
+
+    /* the key in the current segment of a doc collected on a segment before */
+    long rekey(long key, BytesRefBuilder term) throws IOException {
+        if (key == missingKey) {
+            return key;
+        }
+        int ord = ords.lookupTerm(term.get());
+        return ord >= 0 ? 2L * ord + 1 : 2L * (-ord - 1);
+    }
+
+    /*
+     * Compares two docs with the same key. Two different terms may share an
+     * even key, they are between the same ordinals of the segment.
+     */
+    int compareTerms(long key, BytesRefBuilder a, BytesRefBuilder b) {
+        if (type != Type.STRING || key == missingKey || (key & 1) == 1) {
+            return 0;
+        }
+        return reverseMul * a.get().compareTo(b.get());
+    }
+
+    /* the sort value of a key like the comparator would return it */
+    Object value(long key, BytesRefBuilder term) {
+        switch (type) {
+            case SCORE:
+            case FLOAT:
+                return NumericUtils.sortableIntToFloat((int) key);
+            case INT:
+                return (int) key;
+            case DOUBLE:
+                return NumericUtils.sortableLongToDouble(key);
+            case STRING:
+                return key == missingKey ? null : BytesRef.deepCopyOf(term.get());
+            default:
+                return key;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.apache.lucene.search;
+
+import java.util.Arrays;
+
+/**
+ * Operations on the subquery masks of the '&lt;&lt;' operator.
+ *
+ * A mask is a long[] with bit i set for the subquery i (1-based, bit 0 is
+ * never used). One word covers 63 subqueries, so for the usual queries
+ * the routing to the next bucket is a single numberOfTrailingZeros.
+ */
+public final class EqSqMask {
+
+    private EqSqMask() {
+    }
+
+    /** number of words for a mask of numSubqueries subqueries */
+    public static int words(int numSubqueries) {
+        return (numSubqueries >>> 6) + 1;
+    }
+
+    public static long[] create(int numSubqueries) {
+        return new long[words(numSubqueries)];
+    }
+
+    public static void set(long[] mask, int i) {
+        mask[i >>> 6] |= 1L << i;
+    }
+
+    public static void clear(long[] mask, int i) {
+        mask[i >>> 6] &= ~(1L << i);
+    }
+
+    public static void clear(long[] mask) {
+        Arrays.fill(mask, 0L);
+    }
+
+    public static boolean isEmpty(long[] mask) {
+        for (long w : mask) {
+            if (w != 0) return false;
+        }
+        return true;
+    }
+
+    public static boolean intersects(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if ((a[i] & b[i]) != 0) return true;
+        }
+        return false;
+    }
+
+    public static void copy(long[] from, long[] to) {
+        System.arraycopy(from, 0, to, 0, from.length);
+    }
+
+    /** index of the lowest set bit, -1 if the mask is empty */
+    public static int lowest(long[] mask) {
+        return nextSetBit(mask, 0);
+    }
+
+    /** index of the first set bit at or after from, -1 if there is none */
+    public static int nextSetBit(long[] mask, int from) {
+        int i = from >>> 6;
+        if (i >= mask.length) {
+            return -1;
+        }
+        long word = mask[i] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++i == mask.length) {
+                return -1;
+            }
+            word = mask[i];
+        }
+    }
+}
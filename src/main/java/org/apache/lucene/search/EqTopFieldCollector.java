@@ -1,11 +1,15 @@
 package org.apache.lucene.search;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
 
 import org.apache.lucene.index.LeafReaderContext;
-
-import javax.naming.ldap.UnsolicitedNotification;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.FixedBitSet;
 
 public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
 
@@ -23,19 +27,50 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
     Sort[] sorts;
     int[] limits;
     EqEntry[] bottoms;
-    EqEntry docEntry = new EqEntry();
     boolean[] queueFull;
 
+    /*
+     * State of the doc in the collect loop. A doc pushed out of a limited
+     * bucket brings the scores saved when it was collected.
+     */
+    long[] docMask;
+    float[] docScores;
+    boolean docScoresSaved;
+
     /* support for fast match: terminate collect as early as possible */
     int lowestCollectingQueue;
     int collectedHits;
     int trackMaxScoresMask;
+    /* the hits are counted exactly up to the threshold, Integer.MAX_VALUE counts all of them */
+    int totalHitsThreshold = Integer.MAX_VALUE;
+    /* the docs of the unlimited buckets of a counting collector, null otherwise, see createCounting */
+    int[] bucketCounts;
+    /* the docs of the query and of each bucket, null unless requested, see collectDocSets */
+    FixedBitSet docSet;
+    FixedBitSet[] bucketDocSets;
+
+    /* how the subqueries are evaluated, see EqDisjunctionBulkScorer */
+    EqExecutionMode execution = EqExecutionMode.UNION;
+
+    /* the last doc of the page before and its bucket, -1 without after, see searchAfter */
+    EqFieldDoc after;
+    int afterBucket = -1;
+
+    /* the leading buckets skipped for a deep page and the number of their docs, see skipBuckets */
+    int skippedBuckets;
+    int skippedDocs;
 
-    /* per doc value */
-    private float[] subqScores;
+    /* docs of the leading buckets seeded from the cached results of their subqueries */
+    EqFieldDoc[][] seeds;
+    int[] seedSize;
+    FixedBitSet seededDocs;
 
 
     private static final ScoreDoc[] EMPTY_SCOREDOCS = new ScoreDoc[0];
+
+    /** Takes the positions of the docs of the skipped buckets in the result list, see skipBuckets. */
+    public static final EqFieldDoc SKIPPED = new EqFieldDoc(-1, Float.NaN, null, 0, null);
+
     final int numHits;
     int docBase;
     boolean earlyTerminated = false;
@@ -44,59 +79,335 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
     
     private TopDocs savedTopDocs = null;
 
-    private static byte[] sqidxBit = {
-            // 10 -> 1, 100 -> 2 and so on
-            0, 0, 1, 0, 2, 0, 0, 0,   3, 0, 0, 0, 0, 0, 0, 0,  //  0..15
-            4, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,  // 16..31
-            5, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,  // 32..47
-            0, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,  // 48..63
-            6, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,  // 64..
-            0, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,
-            0, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,
-            0, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,
-
-            7, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,  // 128..
-            0, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,
-            0, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,
-            0, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,
-            0, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,
-            0, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,
-            0, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,
-            0, 0, 0, 0, 0, 0, 0, 0,   0, 0, 0, 0, 0, 0, 0, 0,
-    };
-
-
-    public EqTopFieldCollector(EqFieldValueHitQueue<EqEntry>[] pqs, int numHits) {
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public EqTopFieldCollector(int numBuckets, int numHits) {
         super(null);
-        this.pqs         = pqs;
+        this.pqs         = new EqFieldValueHitQueue[numBuckets];
         this.numHits     = numHits;
-        this.bottoms     = new EqEntry[pqs.length];
-        this.maxScores   = new float[pqs.length];
-        this.queueFull   = new boolean[pqs.length];
-        this.comparators = new LeafFieldComparator[pqs.length];
-        this.reverseMul  = new int[pqs.length];
-        this.bucketSize  = new int[pqs.length];
-        this.sqHits = new int[pqs.length];
-        this.lowestCollectingQueue = pqs.length;
+        this.bottoms     = new EqEntry[numBuckets];
+        this.maxScores   = new float[numBuckets];
+        this.queueFull   = new boolean[numBuckets];
+        this.comparators = new LeafFieldComparator[numBuckets];
+        this.reverseMul  = new int[numBuckets];
+        this.bucketSize  = new int[numBuckets];
+        this.sqHits = new int[numBuckets];
+        this.lowestCollectingQueue = numBuckets;
         this.collectedHits = 0;
     }
 
+    /*
+     * The buckets are returned one after the other, so as soon as the buckets
+     * 0..k hold numHits docs no bucket below k can contribute to the result list.
+     * The number of docs in a bucket never decreases: a full limited queue only
+     * exchanges its bottom. Thus lowestCollectingQueue can only decrease.
+     *
+     * Returns true if lowestCollectingQueue has been changed.
+     */
+    final boolean updateLowestCollectingQueue() {
+        int filled = skippedDocs;
+        for (int i = 0; i < lowestCollectingQueue && i < sqHits.length; i++) {
+            if (!isShown(i)) {
+                continue;
+            }
+            filled += sqHits[i];
+            if (filled >= numHits) {
+                lowestCollectingQueue = i;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the score mode for the subquery of each bucket. The subqueries of
+     * the buckets sorted by a field don't need to be scored.
+     *
+     * @see EqDisjunctionMaxQuery#getSubSorts()
+     */
+    public abstract ScoreMode[] subScoreModes();
+
+    /*
+     * Decides whether a doc routed to the bucket sqidx below lowestCollectingQueue
+     * is done with. An unlimited bucket keeps the doc, so it is a hit. In a limited
+     * bucket only sorting tells whether the doc takes a place, pushes another doc
+     * out or goes on to the next bucket of its mask. While the hits are counted
+     * exactly the doc is collected like any other doc, so false is returned.
+     * Beyond the threshold the doc is not counted: the limited buckets keep at
+     * least the docs they hold, the total hits are a lower bound.
+     */
+    final boolean countDeadHit(int sqidx) {
+        if (limits[sqidx] == 0) {
+            return true;
+        }
+        if (countsHits()) {
+            return false;
+        }
+        collectedHits--;
+        totalHitsRelation = TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+        return true;
+    }
+
+    /**
+     * Seeds the leading buckets with their final docs, in sort order. The
+     * subqueries of these buckets are not evaluated, the collected docs
+     * which are in a seeded bucket are skipped.
+     *
+     * @param seededDocs the ids of all the seeded docs
+     */
+    public void seed(EqFieldDoc[][] buckets, FixedBitSet seededDocs) {
+        this.seeds = buckets;
+        this.seedSize = new int[buckets.length];
+        this.seededDocs = seededDocs;
+        for (int i = 0; i < buckets.length; i++) {
+            seedSize[i] = buckets[i].length;
+            sqHits[i] = buckets[i].length;
+            queueFull[i] = true;
+            collectedHits += buckets[i].length;
+        }
+        updateLowestCollectingQueue();
+    }
+
+    final boolean isSeeded(int bucket) {
+        return seeds != null && bucket < seeds.length;
+    }
+
+    /* number of docs left in the bucket */
+    final int size(int bucket) {
+        if (isSeeded(bucket)) {
+            return seedSize[bucket];
+        }
+        return pqs[bucket] == null ? 0 : pqs[bucket].size();
+    }
+
+    /*
+     * The queue of a bucket is created with the first doc reaching the bucket,
+     * it starts small and grows with the docs up to the size of the bucket.
+     */
+    final EqFieldValueHitQueue<EqEntry> newQueue(int bucket, LeafReaderContext context) throws IOException {
+        EqSortField[] fields = toEqSortFields(sorts[bucket].getSort());
+        pqs[bucket] = EqFieldValueHitQueue.create(fields, bucketSize[bucket], bucket, pqs.length);
+        if (bucket == afterBucket) {
+            pqs[bucket].setTopValues(after.fields);
+        }
+        setLeafComparator(bucket, context);
+        return pqs[bucket];
+    }
+
+    final void setLeafComparator(int bucket, LeafReaderContext context) throws IOException {
+        EqFieldValueHitQueue<EqEntry> q = pqs[bucket];
+        LeafFieldComparator[] c = q.getComparators(context);
+
+        if (c.length == 1){
+            reverseMul[bucket] = q.getReverseMul()[0];
+            comparators[bucket] = c[0];
+        }else{
+            // TODO: Unit tests for multi comparators
+            reverseMul[bucket] = 1;
+            comparators[bucket] = new MultiLeafFieldComparator(c, q.getReverseMul());
+        }
+    }
+
+    /*
+     * An unlimited bucket is shown only up to the rest of the result list left
+     * by the buckets before it. These never lose docs, so the bucket won't
+     * need more docs later either.
+     */
+    final int window(int bucket) {
+        int window = numHits - skippedDocs;
+        for (int i = 0; i < bucket; i++) {
+            if (isShown(i)) {
+                window -= sqHits[i];
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Collects the page after the given doc of a search with the same sorts
+     * and limits. The buckets before the bucket of the doc and the docs of its
+     * bucket up to the doc are skipped, the queues only hold the page. The
+     * limited buckets up to the bucket of the doc still take all their docs,
+     * they decide which docs are pushed down, but only their docs after the
+     * doc are returned.
+     */
+    final void searchAfter(EqFieldDoc after) {
+        if (after.subqIndex < 1 || after.subqIndex > sorts.length) {
+            throw new IllegalArgumentException("after has to be a doc of one of the " + sorts.length
+                    + " buckets, subqIndex=" + after.subqIndex);
+        }
+        this.after = after;
+        this.afterBucket = after.subqIndex - 1;
+        for (int i = 0; i <= afterBucket; i++) {
+            if (limits[i] > 0) {
+                bucketSize[i] = limits[i];
+            }
+        }
+    }
+
+    /**
+     * Skips the docs of the leading unlimited buckets, a deep page behind them
+     * doesn't need them sorted. Their docs still count as hits and take the
+     * first docs positions of the result list, topDocs returns {@link #SKIPPED}
+     * there. The number of docs comes from counting the hits of the buckets,
+     * a doc belongs to the first subquery it matches.
+     */
+    public void skipBuckets(int buckets, int docs) {
+        if (buckets >= sorts.length || docs > numHits || after != null) {
+            throw new IllegalArgumentException("cannot skip " + buckets + " buckets with " + docs + " docs");
+        }
+        for (int i = 0; i < buckets; i++) {
+            if (limits[i] > 0) {
+                throw new IllegalArgumentException("the limited bucket " + i + " cannot be skipped");
+            }
+        }
+        this.skippedBuckets = buckets;
+        this.skippedDocs = docs;
+        updateLowestCollectingQueue();
+    }
+
+    /**
+     * Fills the doc set of the query while collecting, so it needn't be
+     * searched again for the facets. With perBucket each bucket gets a doc
+     * set of the docs whose first subquery is the one of the bucket, the
+     * limits are not applied. Every doc has to be visited: the hits are
+     * counted exactly and the subqueries are not cascaded.
+     */
+    public void collectDocSets(int maxDoc, boolean perBucket) {
+        this.docSet = new FixedBitSet(maxDoc);
+        if (perBucket) {
+            this.bucketDocSets = new FixedBitSet[sorts.length];
+            for (int i = 0; i < sorts.length; i++) {
+                bucketDocSets[i] = new FixedBitSet(maxDoc);
+            }
+        }
+        this.totalHitsThreshold = Integer.MAX_VALUE;
+    }
+
+    /** the docs of the query, null unless collectDocSets has been called */
+    public FixedBitSet getDocSet() {
+        return docSet;
+    }
+
+    /** the docs of each bucket, null unless collectDocSets has been called with perBucket */
+    public FixedBitSet[] getBucketDocSets() {
+        return bucketDocSets;
+    }
+
+    /* called with every doc the scorer hands over, bucket is the one of its first subquery */
+    final void addToDocSets(int doc, int bucket) {
+        if (docSet != null) {
+            docSet.set(docBase + doc);
+            if (bucketDocSets != null) {
+                bucketDocSets[bucket].set(docBase + doc);
+            }
+        }
+    }
+
+    /*
+     * True while the total hits have to be exact. Beyond the threshold the
+     * collector may skip docs, the total hits are a lower bound then.
+     */
+    final boolean countsHits() {
+        return collectedHits <= totalHitsThreshold;
+    }
+
+    /* false if the docs routed to the bucket are dropped or the bucket is seeded */
+    final boolean takesDocs(int bucket) {
+        return bucket >= skippedBuckets && !isSeeded(bucket) && (bucket >= afterBucket || limits[bucket] > 0);
+    }
+
+    /*
+     * The buckets whose sort is a prefix of the index sort of the segment,
+     * they see the docs of the segment in their sort order.
+     */
+    final boolean[] sortedByIndex(LeafReaderContext context) {
+        final Sort indexSort = context.reader().getMetaData().getSort();
+        boolean[] sorted = new boolean[sorts.length];
+        for (int i = 0; i < sorts.length; i++) {
+            sorted[i] = indexSort != null && canEarlyTerminate(sorts[i], indexSort);
+        }
+        return sorted;
+    }
+
+    /* the docs of a limited bucket up to the one of after are not on the page */
+    final boolean isShown(int bucket) {
+        return bucket > afterBucket || limits[bucket] == 0;
+    }
+
+    /* true if the doc of the segment sorts after the doc of the page before */
+    final boolean sortsAfter(int bucket, int doc) throws IOException {
+        final int cmp = reverseMul[bucket] * comparators[bucket].compareTop(doc);
+        return cmp < 0 || cmp == 0 && docBase + doc > after.doc;
+    }
+
+    /* removes the last doc of the bucket */
+    final EqFieldDoc pop(int bucket) {
+        if (isSeeded(bucket)) {
+            return seeds[bucket][--seedSize[bucket]];
+        }
+        EqFieldValueHitQueue<EqEntry> q = pqs[bucket];
+        return q.fillFields(q.pop());
+    }
+
+    /*
+     * Collects the docs still waiting for a bucket, see SimpleStackedFieldCollector.
+     * Called before the buckets are read, so it has to be cheap once done.
+     */
+    void collectPushedDocs() throws IOException {
+    }
+
+    /* removes the docs of the pages before after, see searchAfter */
+    void removePagesBefore() {
+    }
+
+    private void finishCollection() {
+        try {
+            collectPushedDocs();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (after != null) {
+            removePagesBefore();
+        }
+    }
+
     @Override
     public int getTotalHits() {
+        finishCollection();
         return collectedHits;
     }
 
+    /**
+     * Returns the number of docs in each bucket, the docs dropped by a limited
+     * bucket are not counted. Null unless the collector has been created by
+     * {@link #createCounting(Sort[], int[])}.
+     */
+    public int[] getBucketCounts() {
+        if (bucketCounts == null) {
+            return null;
+        }
+        finishCollection();
+        int[] counts = bucketCounts.clone();
+        for (int i = 0; i < counts.length; i++) {
+            if (limits[i] > 0) {
+                counts[i] = size(i);
+            }
+        }
+        return counts;
+    }
+
     @Override
     public TopDocs topDocs(int start, int howMany) {
 
         if (topDocsAlreadyCalledOnce)
             throw new UnsupportedOperationException("cannot call topDocs more than once");
         topDocsAlreadyCalledOnce = true;
+        finishCollection();
 
         // In case pq was populated with sentinel values, there might be less
         // results than pq.size(). Therefore return all results until either
         // pq.size() or collectedHits.
-        int size = getTopDocsSize();
+        int size = skippedDocs + queuedDocs();
 
         if( start < 0 || howMany <= 0 ){
             throw new IllegalArgumentException("invalid values for start or howMany");
@@ -119,16 +430,19 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
         int i = size - start - howMany;
         for(int j = pqs.length; j>0; j--){
             if (i==0) break;
-            EqFieldValueHitQueue<EqEntry> q = pqs[j-1];
-            while(q.size()>0){
-                q.pop();
+            while(size(j-1)>0){
+                pop(j-1);
                 i--;
                 if (i==0) break;
             }
         }
 
-        // Get the requested results from pq.
-        populateResults(results, howMany);
+        // Get the requested results from pq, behind the docs of the skipped buckets.
+        int skipped = Math.max(0, Math.min(skippedDocs - start, howMany));
+        Arrays.fill(results, 0, skipped, SKIPPED);
+        ScoreDoc[] queued = new ScoreDoc[howMany - skipped];
+        populateResults(queued, queued.length);
+        System.arraycopy(queued, 0, results, skipped, queued.length);
         
         savedTopDocs = newTopDocs(results, start);
         return savedTopDocs;
@@ -149,7 +463,7 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
 
         // If this is a maxScoring tracking collector and there were no results,
         // TODO Fix maxScore
-        return new TopFieldDocs(new TotalHits(collectedHits, totalHitsRelation), results, ((EqFieldValueHitQueue<EqEntry>) pqs[0]).getFields());
+        return new TopFieldDocs(new TotalHits(collectedHits, totalHitsRelation), results, sorts[0].getSort());
     }
 
     @Override
@@ -157,9 +471,8 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
         int i = howMany-1;
         while(i>=0){
             for (int j = pqs.length-1; j>=0; j--){
-                EqFieldValueHitQueue<EqEntry> q = pqs[j];
-                while(q.size() > 0){
-                    EqFieldDoc doc = q.fillFields(q.pop());
+                while(size(j) > 0){
+                    EqFieldDoc doc = pop(j);
                     doc.subqIndex = j+1;
                     results[i] = doc;
                     if (i==0) break;
@@ -180,20 +493,19 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
     }
 
     public int getTopDocsSize(){
+        finishCollection();
+        return queuedDocs();
+    }
+
+    /* number of docs in the buckets, without the pushed docs still waiting */
+    final int queuedDocs() {
         int size = 0;
-        for (EqFieldValueHitQueue<EqEntry> q: pqs){
-            size += q.size();
+        for (int i = 0; i < pqs.length; i++){
+            size += size(i);
         }
         return size;
     }
 
-    final void updateBottom(int doc, float score, int subqIndex) {
-        bottoms[subqIndex-1].doc = docBase + doc;
-        bottoms[subqIndex-1].score = score;
-        bottoms[subqIndex-1] = (EqEntry) pqs[subqIndex-1].updateTop();
-        bottoms[subqIndex-1].scores = subqScores;
-    }
-
     /*
     final void add(int slot, int doc, float score, EqDisjunctionMaxScorer scorer) {
         float scores[] = new float[pqs.length];
@@ -211,33 +523,119 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
      */
 
     final EqEntry top(int subQindex) {
-        return pqs[subQindex - 1].top();
+        EqFieldValueHitQueue<EqEntry> q = pqs[subQindex - 1];
+        return q == null ? null : q.top();
+    }
+
+    /*
+     * Decides whether the segment of the scorer is collected subquery after
+     * subquery. The cascade would not see the docs pushed out of a limited
+     * bucket, so it is used only if no bucket is limited. A doc set needs
+     * the docs of all the subqueries, see collectDocSets.
+     *
+     * AUTO never skips a doc while the hits are counted exactly. Past the
+     * threshold it chooses the cascade if the subqueries before the last one
+     * are expected to fill the remaining window and the last subquery is more
+     * expensive than all of them together, or if the last bucket cannot
+     * contribute anymore. CASCADE is used regardless of the count.
+     */
+    final boolean useCascade(EqDisjunctionMaxScorer scorer) {
+        if (execution == EqExecutionMode.UNION || docSet != null) {
+            return false;
+        }
+        for (int limit : limits) {
+            if (limit > 0)
+                return false;
+        }
+        if (execution == EqExecutionMode.CASCADE) {
+            return true;
+        }
+        if (countsHits()) {
+            return false;
+        }
+        if (lowestCollectingQueue < pqs.length - 1) {
+            return true;
+        }
+
+        int last = scorer.subCosts.length - 1;
+        long headCost = 0;
+        for (int i = 0; i < last; i++) {
+            headCost += scorer.subCosts[i];
+        }
+        return headCost >= numHits - skippedDocs - queuedDocs() && scorer.subCosts[last] > headCost;
     }
 
     private static class SimpleStackedFieldCollector extends EqTopFieldCollector {
 
         final boolean trackDocScores;
         final boolean trackMaxScore;
-        final boolean trackTotalHits;
-        
+
+        // true for the buckets sorted by relevance only
+        final boolean[] scoreOnly;
+        // index of the first limited bucket, sorts.length if there is none
+        final int firstLimited;
+        // the scores of the current doc before they are stored in a slot
+        final float[] rowScores;
+
+        /*
+         * Docs pushed out of a limited bucket while other buckets still wait for
+         * them. The comparators only move forward within a segment, so these docs
+         * are collected into their next bucket by a second pass over their
+         * segments, see collectPushedDocs. The slots keep the mask and the scores
+         * of the docs, pushedDocs their ids. The spare buffer takes the docs
+         * pushed again during the second pass.
+         */
+        EqSlots pushed;
+        int[] pushedDocs;
+        int pushedCount;
+        EqSlots sparePushed;
+        int[] sparePushedDocs;
+        // the segments and the weight of the first pass, for the second one
+        List<LeafReaderContext> leaves;
+        Weight weight;
+
         @Override
         public ScoreMode scoreMode() {
             for (int i = 0; i < sorts.length; i++) {
-                if (sorts[i].needsScores())
-                    return ScoreMode.COMPLETE;
+                if (needsScores(i))
+                    return canSkipNonCompetitive() ? ScoreMode.TOP_SCORES : ScoreMode.COMPLETE;
+            }
+            // the bucket of a doc comes from the EqDisjunctionMaxScorer, a weight
+            // without scores could be replaced by the query cache
+            return ScoreMode.COMPLETE;
+        }
+
+        @Override
+        public ScoreMode[] subScoreModes() {
+            ScoreMode scoreMode = scoreMode();
+            ScoreMode[] modes = new ScoreMode[sorts.length];
+            for (int i = 0; i < sorts.length; i++) {
+                modes[i] = needsScores(i) ? scoreMode : ScoreMode.COMPLETE_NO_SCORES;
             }
-            return ScoreMode.COMPLETE_NO_SCORES;
+            return modes;
+        }
+
+        private boolean needsScores(int bucket) {
+            // a counting collector sorts the limited buckets only
+            return (bucketCounts == null || limits[bucket] > 0) && (trackDocScores || sorts[bucket].needsScores());
+        }
+
+        private boolean canSkipNonCompetitive() {
+            if (totalHitsThreshold == Integer.MAX_VALUE) return false;
+            for (int i = 0; i < firstLimited; i++) {
+                if (scoreOnly[i]) return true;
+            }
+            return false;
         }
 
         public SimpleStackedFieldCollector( Sort[] sorts,
                                             int[] limits,
-                                            EqFieldValueHitQueue<EqEntry>[] queues,
                                             int numHits,
                                             boolean fillFields,
                                             boolean trackDocScores,
                                             boolean trackMaxScore,
-                                            boolean trackTotalHits ) {
-            super(queues, numHits);
+                                            int totalHitsThreshold ) {
+            super(sorts.length, numHits);
 
             //, needsScores(sorts) || trackDocScores || trackMaxScore
             this.trackDocScores = trackDocScores;
@@ -245,377 +643,642 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
 
             this.sorts = sorts;
             this.limits = limits;
+            for (int i = 0; i < limits.length; i++) {
+                bucketSize[i] = limits[i] > 0 ? Math.min(limits[i], numHits) : numHits;
+            }
+            this.docMask = EqSqMask.create(sorts.length);
+            this.docScores = new float[sorts.length + 1];
+            this.rowScores = new float[sorts.length + 1];
 
             if (trackMaxScore) {
                 // TODO R.K fix
                 maxScores[0] = Float.NEGATIVE_INFINITY; // otherwise we would keep NaN
             }
 
-            this.trackTotalHits = trackTotalHits;
+            this.totalHitsThreshold = totalHitsThreshold;
+
+            this.scoreOnly = new boolean[sorts.length];
+            for (int i = 0; i < sorts.length; i++) {
+                SortField[] fields = sorts[i].getSort();
+                scoreOnly[i] = fields.length == 1
+                        && fields[0].getType() == SortField.Type.SCORE && !fields[0].getReverse();
+            }
+            int firstLimited = 0;
+            while (firstLimited < limits.length && limits[firstLimited] == 0) {
+                firstLimited++;
+            }
+            this.firstLimited = firstLimited;
+            if (firstLimited < limits.length) {
+                this.pushed = new EqSlots(sorts.length, 16);
+                this.pushedDocs = new int[16];
+                this.sparePushed = new EqSlots(sorts.length, 16);
+                this.sparePushedDocs = new int[16];
+            }
         }
         
         @Override
         public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
 
+            // the docs pushed down on the segments before
+            collectPushedDocs();
+            leaves = ReaderUtil.getTopLevelContext(context).leaves();
+
             docBase = context.docBase;
 
             // set up the initial state for all the collector lists
 
             for (int i = 0; i < this.sorts.length; i++) {
+                // the queues of the buckets without docs are created on demand
+                if (pqs[i] != null) {
+                    setLeafComparator(i, context);
+                }
+            }
 
-//                final Sort indexSort = context.reader().getMetaData().getSort();
-//                final boolean canEarlyStopComparing = indexSort != null &&
-//                        canEarlyTerminate(sort, indexSort);
-//                final boolean canEarlyTerminate = trackTotalHits == false &&
-//                        trackMaxScore == false &&
-//                        canEarlyStopComparing;
-//                final int initialTotalHits = collectedHits;
-
-
-                // TODO optimize for with/without score / with/without field sorts
-//                comparators.set(i,((FieldValueHitQueue<EqEntry>)pqs[i]).getComparators(context));
-//                reverseMul.set(i,((FieldValueHitQueue<EqEntry>)pqs[i]).getReverseMul());
-
-                // TODO (R.K.) check if we can use this meaningfully
-                // final Sort indexSort =
-                // context.reader().getMetaData().getSort();
-                // final boolean canEarlyStopComparing = indexSort != null &&
-                // false;
-
-                // TODO (R.K.): we replaced the last canEarlyTerminate call with false.
-                // Still have to evaluate whether this can be useful in our case
-                // (of stacked queries)
-                // canEarlyTerminate(sort, indexSort);
-                //final boolean canEarlyTerminate = trackTotalHits == false && trackMaxScore == false
-                //        && false /* canEarlyStopComparing */;
-                final boolean canEarlyTerminate = false;
-                final int initialTotalHits = collectedHits;
-
-                bucketSize[i] = limits[i] > 0 ? Math.min(limits[i],numHits) : numHits;
-
-                EqFieldValueHitQueue q = pqs[i];
-                LeafFieldComparator[] c = q.getComparators(context);
-
-                if (c.length == 1){
-                    reverseMul[i] = q.getReverseMul()[0];
-                    comparators[i] = c[0];
-                }else{
-                    // TODO: Unit tests for multi comparators
-                    reverseMul[i] = 1;
-                    comparators[i] = new MultiLeafFieldComparator(c, q.getReverseMul());
+            return new StackedLeafCollector(context, false);
+        }
+
+        /*
+         * Collects the docs pushed out of a limited bucket into their next bucket.
+         * The docs are visited in index order with a new scorer for each of their
+         * segments, so the comparators read their sort values and the buckets
+         * score them like in the first pass. The docs pushed again on the way
+         * wait for the next round.
+         */
+        @Override
+        void collectPushedDocs() throws IOException {
+            while (pushedCount > 0) {
+                EqSlots slots = pushed;
+                int[] docs = pushedDocs;
+                long[] order = new long[pushedCount];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = (long) docs[i] << 32 | i;
                 }
+                Arrays.sort(order);
+
+                pushed = sparePushed;
+                pushedDocs = sparePushedDocs;
+                pushedCount = 0;
+                sparePushed = slots;
+                sparePushedDocs = docs;
+
+                int i = 0;
+                while (i < order.length) {
+                    LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex((int) (order[i] >>> 32), leaves));
+                    int end = leaf.docBase + leaf.reader().maxDoc();
+
+                    docBase = leaf.docBase;
+                    for (int b = 0; b < pqs.length; b++) {
+                        if (pqs[b] != null) {
+                            setLeafComparator(b, leaf);
+                        }
+                    }
+                    StackedLeafCollector collector = new StackedLeafCollector(leaf, true);
+                    Scorer scorer = weight.scorer(leaf);
+                    collector.setScorer(scorer);
+                    DocIdSetIterator it = scorer.iterator();
+
+                    for (; i < order.length; i++) {
+                        int doc = (int) (order[i] >>> 32);
+                        if (doc >= end) {
+                            break;
+                        }
+                        doc -= leaf.docBase;
+                        if (it.docID() < doc) {
+                            it.advance(doc);
+                        }
+                        // the doc has matched the subqueries of its mask
+                        assert it.docID() == doc;
+                        collector.collectPushed(doc, slots, (int) order[i]);
+                    }
+                }
+            }
+        }
+
+        @Override
+        void removePagesBefore() {
+            for (int i = 0; i < afterBucket; i++) {
+                pqs[i] = null;
+            }
+            if (pqs[afterBucket] != null) {
+                pqs[afterBucket].removeUpTo(after);
+            }
+        }
+
+        /* defers the doc btm pushed out of a limited bucket, see collectPushedDocs */
+        private void push(EqEntry btm) {
+            pushed.ensure(pushedCount);
+            btm.slots.copyState(btm.slot, pushed, pushedCount);
+            if (pushedCount == pushedDocs.length) {
+                pushedDocs = ArrayUtil.grow(pushedDocs);
             }
+            pushedDocs[pushedCount++] = btm.doc;
+        }
+
+        private final class StackedLeafCollector extends EqMultiComparatorLeafCollector {
+
+            final LeafReaderContext context;
+            // the buckets sorted like the segment, see sortedByIndex
+            final boolean[] sortedByIndex;
 
             // TODO real value for mayNeedScoresTwice
-            return new EqMultiComparatorLeafCollector( comparators,reverseMul, true /* mayNeedScoresTwice */) {
-                
-                @Override
-                public void setScorer(Scorable scorer) throws IOException {
-                    super.setScorer(scorer);
+            StackedLeafCollector(LeafReaderContext context, boolean secondPass) {
+                super(SimpleStackedFieldCollector.this.comparators, SimpleStackedFieldCollector.this.reverseMul,
+                        true /* mayNeedScoresTwice */, secondPass);
+                this.context = context;
+                this.sortedByIndex = sortedByIndex(context);
+            }
+
+            @Override
+            public void setScorer(Scorable scorer) throws IOException {
+                super.setScorer(scorer);
+                if (weight == null) {
+                    weight = this.scorer.getWeight();
                 }
-                
-                @Override
-                public void collect(int doc) throws IOException {
+            }
 
-                    // local state of the collect cycle is described through variables:
-                    //
-                    // score   - the current score of a doc
-                    // scores  - array with score for each subquery
-                    // sqmask  - a bitmask of the subqueries the doc is coming from
-                    docEntry.score  = scorer.score();
-                    docEntry.scores = scorer.scores;
-                    docEntry.sqmask = scorer.sqmask;
+            /*
+             * Once the last live bucket is full and sorted by relevance, the docs of
+             * its subquery have to score above its bottom. If no bucket before it is
+             * limited, no doc is pushed down into it, so the sub scorer may skip
+             * the blocks of docs which cannot compete (block-max WAND).
+             */
+            @Override
+            int competitiveBucket() {
+                final int idx = Math.min(lowestCollectingQueue, pqs.length - 1);
+                return idx < firstLimited && scoreOnly[idx] && queueFull[idx] ? idx : -1;
+            }
 
-                    // scorer.sqidx starts with 1
-                    int sqidx = scorer.sqidx - 1;
+            /*
+             * Score of the doc in the bucket sqidx. The doc is scored on demand,
+             * a pushed down doc may bring its tracked scores.
+             */
+            private float bucketScore(int sqidx) throws IOException {
+                return docScoresSaved ? docScores[sqidx + 1] : this.scorer.score(sqidx + 1);
+            }
 
-                    // TODO: at some point optimize for trackMaxScore
-                    // For the time being just track.
-                    // To decide: should we update maxScores also in those
-                    // buckets where the document could only potentially be
-                    // collected, or only update them when the document actually
-                    // gets collected.
-                    // Currently we implement the simplest approach: update only
-                    // those buckets which at least try to collect the document
-                    // (but maybe still reject it)
+            /*
+             * Stores the scores of the doc in the slot, indexed by subquery (1-based):
+             * the score of its bucket and, if the scores are tracked, the scores of
+             * the remaining subqueries. A pushed down doc is scored again by the
+             * second pass, unless it brings its tracked scores.
+             */
+            private void saveScores(int sqidx, float score, EqSlots slots, int slot) throws IOException {
+                if (docScoresSaved) {
+                    slots.setScores(slot, docScores);
+                    return;
+                }
+                Arrays.fill(rowScores, 0f);
+                rowScores[sqidx + 1] = score;
+                if (trackDocScores) {
+                    for (int i = EqSqMask.lowest(docMask); i >= 0; i = EqSqMask.nextSetBit(docMask, i + 1)) {
+                        rowScores[i] = this.scorer.score(i);
+                    }
+                }
+                slots.setScores(slot, rowScores);
+            }
 
-                    collectedHits++;
+            /* the docs of an unlimited bucket before the one of after are not collected at all */
+            private boolean isAfter(int sqidx, int doc) throws IOException {
+                if (sqidx < afterBucket) {
+                    return false;
+                }
+                if (pqs[sqidx] == null) {
+                    newQueue(sqidx, context);
+                    if (this.scorer != null) {
+                        comparators[sqidx].setScorer(this.scorer);
+                    }
+                }
+                return sortsAfter(sqidx, doc);
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                addToDocSets(doc, scorer.sqidx - 1);
+
+                // the doc is in a seeded bucket already
+                if (seededDocs != null && seededDocs.get(docBase + doc)) {
+                    return;
+                }
 
-                    if (sqidx > lowestCollectingQueue){
+                float score = scorer.score();
+                docScoresSaved = false;
+                EqSqMask.copy(scorer.sqmask, docMask);
+
+                // TODO: at some point optimize for trackMaxScore
+                // For the time being just track.
+                // To decide: should we update maxScores also in those
+                // buckets where the document could only potentially be
+                // collected, or only update them when the document actually
+                // gets collected.
+                // Currently we implement the simplest approach: update only
+                // those buckets which at least try to collect the document
+                // (but maybe still reject it)
+
+                final boolean lastCounted = collectedHits++ == totalHitsThreshold;
+
+                // scorer.sqidx starts with 1
+                collect(doc, scorer.sqidx - 1, score);
+                if (lastCounted) {
+                    stopCounting();
+                }
+            }
+
+            /*
+             * Collects a doc pushed out of a limited bucket into the next bucket
+             * of its mask. The doc has been counted already. The scorer stands on
+             * the doc, so the buckets score it on demand like in the first pass.
+             */
+            void collectPushed(int doc, EqSlots slots, int slot) throws IOException {
+                slots.getMask(slot, docMask);
+
+                int next = EqSqMask.lowest(docMask);
+                EqSqMask.clear(docMask, next);
+                // the tracked scores of the remaining subqueries came with the doc
+                docScoresSaved = trackDocScores;
+                if (docScoresSaved) {
+                    slots.getScores(slot, docScores);
+                }
+                // bit i stands for the bucket i-1
+                collect(doc, next - 1, docScoresSaved ? docScores[next] : this.scorer.score(next));
+            }
+
+            private void collect(int doc, int sqidx, float score) throws IOException {
+
+                // local state of the collect cycle is described through variables:
+                //
+                // score   - the current score of a doc
+                // sqidx   - the bucket trying to collect the doc
+                // docMask - a bitmask of the other subqueries the doc is coming from
+
+                while (true) {
+                    if (sqidx > lowestCollectingQueue && countDeadHit(sqidx)) {
+                        // the doc cannot make it into the result list anymore,
+                        // only count it
                         // TODO: update max scores where needed.
                         return;
                     }
 
-                    // true if docBase has the correct value for the doc
-                    // it may happen that we re-collect a doc from some earlier
-                    // segment so the docBase value may be outdated, then
-                    // docBaseMatch should be false and docBaseBottom keeps the
-                    // correct docBase for the doc
-                    boolean docBaseMatch = true;
-                    int docBaseBottom = 0;
-
-                    while(true) {
-                        if (queueFull[sqidx]) {
-                            // Find the queue which is ready to accept the doc.
-                            // As long as sqmask has at least one bit set we have
-                            // queues which might accept the document
-
-                            // sqidx is correctly initialized for the first loop.
-                            // If the queue doesn't accept doc the sqidx is adjusted
-                            // to point at the next valid queue
-
-                            // TODO check cond collectedAllCompetitiveHits
-
-                            // testCompareBottomWithSavedDoc
-                            final int cmp = reverseMul[sqidx] * (
-                                    docBaseMatch ?
-                                            comparators[sqidx].compareBottom(doc) :
-                                            ((EqCopyValueIf)comparators[sqidx]).compareBottom(docEntry));
-
-                            // doc does not enter this queue
-                            if (cmp <= 0) {
-                                // cmp <= 0 means the doc cannot be collected into the current
-                                // queue. we have to check whether it can be collected into
-                                // the lower queues.
-                                // TODO conditions canEarlyStopComparing, canEarlyTerminate
-
-                                // no more queues waiting for this doc
-                                if (0 == docEntry.sqmask) {
-                                    // The doc has been rejected by the queue and no more queues
-                                    // will accept the doc. If the rejecting queue is limited we
-                                    // have to consider this document as 'no hit' and decrease total hits
-                                    if (limits[sqidx] > 0) {
-                                        collectedHits--;
-                                    }
-                                    return;
-                                }
+                    if (sqidx < skippedBuckets) {
+                        // the page is behind the bucket
+                        return;
+                    }
 
-                                // cmp > 0, docEntry.sqmask > 0:
-                                // there are more queues waiting, still try to collect the doc
-                                if (limits[sqidx] == 0) {
-                                    // rejecting queue is not limited, just move to the next doc,
-                                    // no need to move this doc into another bucket
-                                    return;
-                                }
+                    if (sqidx <= afterBucket && limits[sqidx] == 0 && !isAfter(sqidx, doc)) {
+                        // the doc has been on a page before
+                        return;
+                    }
 
-                                // cmp > 0, docEntry.sqmask > 0, limits[sqidx] > 0
-                                // initialize the next value of sqidx and continue.
-                                // we have to identify which next queue should collect the doc
-                                int mask = docEntry.sqmask;
-                                int lowestOne = mask & -mask;
-
-                                // delete lowest one bit from sqmask
-                                docEntry.sqmask &= (~lowestOne);
-
-                                // what is the index of the next one bit?
-                                if (0 != (mask & 0xff)) {
-                                    sqidx = sqidxBit[lowestOne] - 1;
-                                } else if (0 != ((mask >>> 8) & 0xff)) {
-                                    sqidx = 7 + sqidxBit[lowestOne >>> 8];
-                                } else if (0 != ((mask >>> 16) & 0xff)) {
-                                    sqidx = 15 + sqidxBit[lowestOne >>> 16];
-                                } else if (0 != ((mask >>> 24) & 0xff)) {
-                                    sqidx = 23 + sqidxBit[lowestOne >>> 24];
-                                }
-                                // TODO : fix score here
+                    if (bucketCounts != null && limits[sqidx] == 0) {
+                        // an unlimited bucket keeps every doc, no need to sort it
+                        bucketCounts[sqidx]++;
+                        return;
+                    }
+
+                    if (queueFull[sqidx]) {
+                        // Find the queue which is ready to accept the doc.
+                        // As long as sqmask has at least one bit set we have
+                        // queues which might accept the document
+
+                        // sqidx is correctly initialized for the first loop.
+                        // If the queue doesn't accept doc the sqidx is adjusted
+                        // to point at the next valid queue
+
+                        // TODO check cond collectedAllCompetitiveHits
+
+                        final int cmp = terminated[sqidx] ? 0 : reverseMul[sqidx] * comparators[sqidx].compareBottom(doc);
 
-                                // we have initialized the new value of sqidx, adjusted the sqmask
-                                // now proceed with the loop trying to collect the doc
-                                continue;
+                        // doc does not enter this queue
+                        if (cmp <= 0) {
+                            if (sortedByIndex[sqidx] && !terminated[sqidx]) {
+                                terminate(sqidx);
                             }
 
-                            // cmp > 0:
-                            // collect the doc into current queue, ie the sort value of the doc
-                            // is high enough to replace some collected doc with lower sort value
-
-                            if(limits[sqidx] == 0) {
-                                // insert doc into unlimited queue
-                                EqEntry btm = bottoms[sqidx];
-                                comparators[sqidx].copy(btm.slot, doc);
-
-                                // inlined call to updateBottom
-                                // just overwrite values of bottom because no queue is accepting bottom
-                                btm.doc = docBaseMatch ? docBase + doc : docBaseBottom + doc;
-                                btm.score = docEntry.score;
-                                btm.sqmask = scorer.sqmask;
-                                btm.docBase = docBaseMatch ? docBase : docBaseBottom;
-                                bottoms[sqidx] = pqs[sqidx].updateTop();
-                                comparators[sqidx].setBottom(bottoms[sqidx].slot);
-                                break;
+                            // cmp <= 0 means the doc cannot be collected into the current
+                            // queue. we have to check whether it can be collected into
+                            // the lower queues.
+                            // TODO conditions canEarlyStopComparing, canEarlyTerminate
+
+                            // no more queues waiting for this doc
+                            if (EqSqMask.isEmpty(docMask)) {
+                                // The doc has been rejected by the queue and no more queues
+                                // will accept the doc. If the rejecting queue is limited we
+                                // have to consider this document as 'no hit' and decrease total hits
+                                if (limits[sqidx] > 0) {
+                                    collectedHits--;
+                                }
+                                return;
                             }
 
-                            // cmp > 0, limits[sqidx] > 0
-                            // insert doc into limited queue
-                            EqEntry btm = bottoms[sqidx];
-
-                            // what happens:
-                            // btm is removed from the current limited queue, but it might be
-                            // collected by another queue depending on btm.sqmask > 0.
-                            // so we have to save the values of btm for going into the next loop.
-                            // on the other hand we have to update btm values to be able to call
-                            // updateTop on the current queue which will return the next bottom
-                            // element to save in the bottoms. In short we have to:
-                            //
-                            // A. if btm is not needed just update bottom -> break
-                            // B. if it is needed save it first then update bottom -> continue
-
-                            if(docBaseMatch) {
-                                // copy the doc values into the previous bottom slot
-                                comparators[sqidx].copy(btm.slot, doc);
-                            }else{
-                                throw new UnsupportedOperationException("copy");
+                            // there are more queues waiting, still try to collect the doc
+                            if (limits[sqidx] == 0) {
+                                // rejecting queue is not limited, just move to the next doc,
+                                // no need to move this doc into another bucket
+                                return;
                             }
 
-                            // TODO: this may be a good place to copy the comparator values of doc for future.
-                            // this doc still may be collected by another queue/comparator.
+                            // we have to identify which next queue should collect the doc
+                            int next = EqSqMask.lowest(docMask);
 
-                            // inlined call to updateBottom
-                            if (btm.sqmask == 0) {
-                                // btm will now contain the values of the current doc being collected
-                                // the corresponding comparator comparator[sqidx] has already copied the
-                                // sort values of the doc. Because of btm.sqmask == 0 we don't care about
-                                // overriding the values of bottom, because it will not be collected anymore
-                                collectedHits--;
-                                // just overwrite values of bottom because no queue is accepting bottom
-                                btm.doc = docBaseMatch ? docBase + doc : docBaseBottom + doc;
-                                btm.docBase = docBaseMatch ? docBase : docBaseBottom;
-                                btm.score = docEntry.score;
-                                btm.sqmask = docEntry.sqmask;
-
-                                // TODO: keep only comparators which might be useful
-                                // sqmask > 0 means the doc might be recollected in future, so
-                                // save the sort values in the corresponding EqEntry
-                                if (docEntry.sqmask > 0) {
-                                    for (int i = 0; i < comparators.length; i++) {
-                                        if (true)
-                                            throw new UnsupportedOperationException("XXX");
-                                        ((EqCopyValueIf) comparators[i]).copyValue(btm.compValues[i], doc);
-                                    }
-                                }
+                            // delete lowest one bit from sqmask
+                            EqSqMask.clear(docMask, next);
 
-                                bottoms[sqidx] = pqs[sqidx].updateTop();
-                                comparators[sqidx].setBottom(bottoms[sqidx].slot);
-                                // TODO: btm.scores
-                                // bottoms[sqidx-1].scores = scores;
-                                break;
-                            }
+                            // bit i stands for the bucket i-1
+                            sqidx = next - 1;
+                            score = bucketScore(sqidx);
+
+                            // we have initialized the new value of sqidx, adjusted the sqmask
+                            // now proceed with the loop trying to collect the doc
+                            continue;
+                        }
+
+                        // cmp > 0:
+                        // collect the doc into current queue, ie the sort value of the doc
+                        // is high enough to replace some collected doc with lower sort value
+                        EqEntry btm = bottoms[sqidx];
 
-                            // btm.sqmask > 0
-                            // a doc was excluded from the limited queue but still is a candidate
-                            // for a subsequent queue
-
-                            // set up everything to collect the btm doc
-
-                            // first adjust the value of squidx to point at the next queue
-                            // collecting the doc
-                            int mask = btm.sqmask;
-                            int bit = mask ^ (mask & (mask - 1));
-                            int newSqidx = 0;
-                            int newSqbits = btm.sqmask & (~bit);
-                            if (0 != (mask & 0xff)) {
-                                newSqidx = sqidxBit[bit] - 1;
-                            } else if (0 != ((mask >>> 8) & 0xff)) {
-                                newSqidx = 7 + sqidxBit[bit >>> 8];
-                            } else if (0 != ((mask >>> 16) & 0xff)) {
-                                newSqidx = 15 + sqidxBit[bit >>> 16];
-                            } else if (0 != ((mask >>> 24) & 0xff)) {
-                                newSqidx = 23 + sqidxBit[bit >>> 24];
+                        if (limits[sqidx] > 0) {
+                            // btm is removed from the limited queue, but it might be
+                            // collected by another queue. The comparators of that queue
+                            // may be beyond btm already, so btm waits for the second pass.
+                            if (btm.slots.isMaskEmpty(btm.slot)) {
+                                collectedHits--;
+                            } else {
+                                push(btm);
                             }
+                        }
 
-                            // btm doc still on the current segment
-                            if (btm.docBase == docBase) {
+                        // inlined call to updateBottom
+                        // just overwrite values of bottom, it is not in this queue anymore
+                        comparators[sqidx].copy(btm.slot, doc);
+                        btm.doc = docBase + doc;
+                        btm.docBase = docBase;
+                        btm.score = score;
+                        saveScores(sqidx, score, btm.slots, btm.slot);
+                        btm.slots.setMask(btm.slot, docMask);
+                        bottoms[sqidx] = pqs[sqidx].updateTop();
+                        comparators[sqidx].setBottom(bottoms[sqidx].slot);
+                        if (limits[sqidx] == 0 && (sqidx == lowestCollectingQueue || sqidx == pqs.length - 1)) {
+                            updateMinCompetitiveScore();
+                        }
+                        return;
+                    }
 
-                                // swap the loop state with bottom:
+                    // queue is not full, just insert the doc
+                    EqFieldValueHitQueue<EqEntry> q = pqs[sqidx];
+                    if (q == null) {
+                        q = newQueue(sqidx, context);
+                        if (this.scorer != null) {
+                            comparators[sqidx].setScorer(this.scorer);
+                        }
+                    } else if (limits[sqidx] == 0 && sqHits[sqidx] >= window(sqidx)) {
+                        // the buckets before fill the rest of the result list
+                        queueFull[sqidx] = true;
+                        comparators[sqidx].setBottom(bottoms[sqidx].slot);
+                        updateMinCompetitiveScore();
+                        continue;
+                    }
 
-                                // doc:
-                                int newDoc = btm.doc - docBase;
-                                btm.doc = docBase + doc;
-                                btm.docBase = docBase;
-                                doc = newDoc;
+                    final int slot = sqHits[sqidx];
+                    if (slot == q.capacity()) {
+                        pqs[sqidx] = q = q.grow(Math.min(bucketSize[sqidx], slot << 1));
+                    }
+                    sqHits[sqidx]++;
 
-                                // TODO: score:
-                                btm.score = docEntry.score;
-                                // score = ???
+                    // Copy doc sort value into the comparator
+                    comparators[sqidx].copy(slot, doc);
 
-                                // TODO: scores:
-                                // scores = ???
+                    // inline add method, the state of the doc goes into the slot
+                    EqSlots slots = q.slots;
+                    slots.ensure(slot);
+                    saveScores(sqidx, score, slots, slot);
+                    slots.setMask(slot, docMask);
 
-                                // sqmask
-                                btm.sqmask = docEntry.sqmask;
-                                docEntry.sqmask = newSqbits;
+                    bottoms[sqidx] = q.add(new EqEntry(slot, docBase, docBase + doc, score, slots));
 
-                                bottoms[sqidx] = pqs[sqidx].updateTop();
-                                comparators[sqidx].setBottom(bottoms[sqidx].slot);
+                    if (queueFull[sqidx] = sqHits[sqidx] == bucketSize[sqidx]) {
+                        comparators[sqidx].setBottom(bottoms[sqidx].slot);
+                    }
 
-                                // sqidx:
-                                sqidx = newSqidx;
-                                // TODO: check sqidx for correction
-                            } else {
-                                // btm.doc is not on the current segment anymore
-                                docBaseMatch = false;
-                                int newDoc = btm.doc - btm.docBase;
-                                docBaseBottom = btm.docBase;
-                                btm.doc = docBase + doc;
-                                btm.docBase = docBase;
-                                doc = newDoc;
-                                // TODO: score
-                                btm.sqmask = docEntry.sqmask;
-                                docEntry.sqmask = newSqbits;
-                                docEntry.compValues = btm.compValues;
-                                bottoms[sqidx] = pqs[sqidx].updateTop();
-                                comparators[sqidx].setBottom(bottoms[sqidx].slot);
-                                sqidx = newSqidx;
-                            }
+                    if (updateLowestCollectingQueue() && (!countsHits() || cascade)) {
+                        pruneSubScorers();
+                    }
+                    if (queueFull[sqidx]) {
+                        updateMinCompetitiveScore();
+                    }
 
-                            continue;
-                        }
+                    return;
+                }
+            }
+        }
 
-                        // queue is not full, just insert the doc
-                        final int slot = sqHits[sqidx];
-                        sqHits[sqidx]++;
+    }
 
-                        // Copy doc sort value into the comparator
-                        if (docBaseMatch) {
-                            comparators[sqidx].copy(slot, doc);
-                        } else {
-                            new UnsupportedOperationException("copy int comparator");
-                        }
+    /*
+     * Without limits no doc is pushed from one bucket to the next, so if all the
+     * buckets share one sort the order of the docs is just (bucket, sort values).
+     * A single queue over all the buckets then takes each doc with one bottom
+     * check, there is no routing between the buckets and no doc is pushed down.
+     */
+    private static class SingleHeapFieldCollector extends EqTopFieldCollector {
 
-                        // inline add method
+        final boolean trackDocScores;
 
-                        float lscores[] = new float[pqs.length];
-                        if (scorer.sqmask > 0) {
-                            for (int i = 0; i < scorer.savedScores; i++) {
-                                lscores[i] = scorer.scores[i];
-                            }
+        // true if the shared sort is by relevance only, the queue compares the
+        // scores of the entries and the comparator is not used
+        final boolean scoreOnly;
+        // the scores of the current doc before they are stored in a slot
+        final float[] rowScores;
+        EqEntry bottom;
+
+        public SingleHeapFieldCollector(Sort[] sorts,
+                                        int[] limits,
+                                        int numHits,
+                                        boolean trackDocScores,
+                                        int totalHitsThreshold) {
+            super(sorts.length, numHits);
+            this.sorts = sorts;
+            this.limits = limits;
+            this.trackDocScores = trackDocScores;
+            this.totalHitsThreshold = totalHitsThreshold;
+
+            SortField[] fields = sorts[0].getSort();
+            this.scoreOnly = fields.length == 1
+                    && fields[0].getType() == SortField.Type.SCORE && !fields[0].getReverse();
+            this.rowScores = new float[sorts.length + 1];
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            if (needsScores()) {
+                return totalHitsThreshold < Integer.MAX_VALUE && scoreOnly ? ScoreMode.TOP_SCORES : ScoreMode.COMPLETE;
+            }
+            // the bucket of a doc comes from the EqDisjunctionMaxScorer
+            return ScoreMode.COMPLETE;
+        }
+
+        @Override
+        public ScoreMode[] subScoreModes() {
+            ScoreMode[] modes = new ScoreMode[sorts.length];
+            Arrays.fill(modes, needsScores() ? scoreMode() : ScoreMode.COMPLETE_NO_SCORES);
+            return modes;
+        }
+
+        private boolean needsScores() {
+            return trackDocScores || sorts[0].needsScores();
+        }
+
+        @Override
+        protected void populateResults(ScoreDoc[] results, int howMany) {
+            EqFieldValueHitQueue<EqEntry> q = pqs[0];
+            for (int i = howMany - 1; i >= 0; i--) {
+                EqEntry entry = q.pop();
+                EqFieldDoc doc = q.fillFields(entry);
+                doc.subqIndex = entry.bucket + 1;
+                results[i] = doc;
+            }
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+
+            docBase = context.docBase;
+
+            if (pqs[0] == null) {
+                EqSortField[] fields = toEqSortFields(sorts[0].getSort());
+                pqs[0] = EqFieldValueHitQueue.createForAllBuckets(fields, numHits, sorts.length);
+                if (after != null) {
+                    pqs[0].setTopValues(after.fields);
+                }
+            }
+            setLeafComparator(0, context);
+
+            final LeafFieldComparator comparator = comparators[0];
+            final int reverse = this.reverseMul[0];
+            // the segment is sorted like the queue, see terminate
+            final boolean sortedByIndex = sortedByIndex(context)[0];
+
+            return new EqMultiComparatorLeafCollector(comparators, this.reverseMul, true /* mayNeedScoresTwice */, false) {
+
+                /*
+                 * The docs of the subqueries after the bucket of the bottom are not
+                 * competitive, the docs of its subquery have to score above it.
+                 */
+                @Override
+                int competitiveBucket() {
+                    return scoreOnly && queueFull[0] ? bottom.bucket : -1;
+                }
+
+                @Override
+                float bottomScore(int bucket) {
+                    return bottom.score;
+                }
+
+                /* the scores of the doc by subquery (1-based), the other subqueries only if tracked */
+                private void saveScores(int bucket, float score, EqSlots slots, int slot) throws IOException {
+                    Arrays.fill(rowScores, 0f);
+                    rowScores[bucket + 1] = score;
+                    if (trackDocScores) {
+                        long[] mask = this.scorer.sqmask;
+                        for (int i = EqSqMask.lowest(mask); i >= 0; i = EqSqMask.nextSetBit(mask, i + 1)) {
+                            rowScores[i] = this.scorer.score(i);
                         }
+                    }
+                    slots.setScores(slot, rowScores);
+                }
 
-                        EqEntry e = docBaseMatch ?
-                                new EqEntry(slot, docBase, docBase + doc, docEntry.score, docEntry.sqmask, lscores) :
-                                new EqEntry(slot, docBaseBottom, docBaseBottom + doc, docEntry.score, docEntry.sqmask, lscores);
+                @Override
+                public void collect(int doc) throws IOException {
+                    addToDocSets(doc, scorer.sqidx - 1);
+                    final boolean lastCounted = collectedHits++ == totalHitsThreshold;
+                    collect(doc, scorer.score());
+                    if (lastCounted) {
+                        stopCounting();
+                    }
+                }
 
-                        // if the doc is collected into limited queue AND the doc might be collected
-                        // by another queue, then copy the sort values for future use
-                        if (docEntry.sqmask > 0 && limits[sqidx] > 0) {
+                private void collect(int doc, float score) throws IOException {
+                    // scorer.sqidx starts with 1
+                    int bucket = scorer.sqidx - 1;
 
-                            // TODO: take only those comparators which might be used in future
-                            for (int i = 0; i < comparators.length; i++) {
-                                ((EqCopyValueIf) comparators[i]).copyValue(e.compValues[i], doc);
+                    // the doc has been on a page before or the page is behind its bucket
+                    if (bucket < afterBucket || bucket == afterBucket && !sortsAfter(0, doc) || bucket < skippedBuckets) {
+                        return;
+                    }
+
+                    // the full queue doesn't take docs of the buckets after its bottom
+                    if (bucket > lowestCollectingQueue) {
+                        return;
+                    }
+
+                    EqFieldValueHitQueue<EqEntry> q = pqs[0];
+                    if (queueFull[0]) {
+                        // a doc of a lower bucket than the bottom always enters the queue
+                        if (bucket == bottom.bucket) {
+                            if (terminated[bucket]) {
+                                return;
                             }
+                            if (scoreOnly ? score <= bottom.score : reverse * comparator.compareBottom(doc) <= 0) {
+                                if (sortedByIndex) {
+                                    terminate(bucket);
+                                }
+                                return;
+                            }
+                        }
+                        if (!scoreOnly) {
+                            comparator.copy(bottom.slot, doc);
+                        }
+                        bottom.doc = docBase + doc;
+                        bottom.docBase = docBase;
+                        bottom.score = score;
+                        bottom.bucket = bucket;
+                        saveScores(bucket, score, q.slots, bottom.slot);
+                        bottom = q.updateTop();
+                        if (!scoreOnly) {
+                            comparator.setBottom(bottom.slot);
                         }
+                    } else {
+                        final int slot = q.size();
+                        if (slot == q.capacity()) {
+                            pqs[0] = q = q.grow(Math.min(numHits - skippedDocs, slot << 1));
+                        }
+                        if (!scoreOnly) {
+                            comparator.copy(slot, doc);
+                        }
+                        q.slots.ensure(slot);
+                        saveScores(bucket, score, q.slots, slot);
 
-                        bottoms[sqidx] = pqs[sqidx].add(e);
+                        EqEntry e = new EqEntry(slot, docBase, docBase + doc, score, q.slots);
+                        e.bucket = bucket;
+                        bottom = q.add(e);
 
-                        if (queueFull[sqidx] = sqHits[sqidx] == bucketSize[sqidx]) {
-                            comparators[sqidx].setBottom(bottoms[sqidx].slot);
+                        if (!(queueFull[0] = q.size() == numHits - skippedDocs)) {
+                            return;
+                        }
+                        if (!scoreOnly) {
+                            comparator.setBottom(bottom.slot);
                         }
+                    }
 
-                        return;
+                    if (bottom.bucket < lowestCollectingQueue) {
+                        lowestCollectingQueue = bottom.bucket;
+                        if (!countsHits() || cascade) {
+                            pruneSubScorers();
+                        }
                     }
+                    updateMinCompetitiveScore();
                 }
             };
         }
+    }
 
+    /* the buckets can share one queue, see SingleHeapFieldCollector */
+    static boolean isSingleHeap(Sort[] sorts, int[] limits) {
+        for (int i = 0; i < sorts.length; i++) {
+            if (limits[i] != 0 || !sorts[i].equals(sorts[0])) {
+                return false;
+            }
+        }
+        return true;
     }
 
     static boolean canEarlyTerminate(Sort searchSort, Sort indexSort) {
@@ -625,7 +1288,19 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
         if (fields1.length > fields2.length) {
             return false;
         }
-        return Arrays.asList(fields1).equals(Arrays.asList(fields2).subList(0, fields1.length));
+        for (int i = 0; i < fields1.length; i++) {
+            if (!sameSortField(fields1[i], fields2[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* an EqSortField only equals EqSortFields, the index sort has plain ones */
+    private static boolean sameSortField(SortField f1, SortField f2) {
+        return f1.getType() == f2.getType() && f1.getReverse() == f2.getReverse()
+                && Objects.equals(f1.getField(), f2.getField())
+                && Objects.equals(f1.getMissingValue(), f2.getMissingValue());
     }
 
     static int estimateRemainingHits(int hitCount, int doc, int maxDoc) {
@@ -635,14 +1310,132 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
         return remainingHits;
     }
 
-    private static abstract class EqMultiComparatorLeafCollector implements LeafCollector {
+    /*
+     * The upkeep of the scorer shared by the leaf collectors, generic and keyed:
+     * the subqueries of the buckets after the lowest collecting one are pruned,
+     * the subquery of the last live bucket skips the docs scoring below its
+     * bottom, and the segment ends once no live bucket takes its docs. Only the
+     * collect paths are up to the collectors. While the pushed docs are
+     * collected (secondPass) the scorer just stops on them, there is nothing
+     * to prune or to skip.
+     */
+    abstract class EqLeafCollector implements LeafCollector {
+
+        // true while the pushed docs are collected, the scorer has to stop on each of them
+        final boolean secondPass;
+        // the buckets sorted like the segment which don't take any more docs of it
+        final boolean[] terminated;
+        // true if the segment is collected subquery after subquery
+        boolean cascade = false;
+        EqDisjunctionMaxScorer scorer;
+
+        EqLeafCollector(boolean secondPass) {
+            this.secondPass = secondPass;
+            this.terminated = new boolean[sorts.length];
+        }
+
+        /*
+         * The bucket whose docs have to score above its bottom, -1 if the
+         * bottom doesn't bound the scores of its subquery.
+         */
+        abstract int competitiveBucket();
+
+        /* the score of the bottom of the bucket of competitiveBucket */
+        float bottomScore(int bucket) {
+            return bottoms[bucket].score;
+        }
+
+        @Override
+        public void setScorer(Scorable scorer) throws IOException {
+
+            if (!(scorer instanceof EqDisjunctionMaxScorer)){
+                throw new IllegalArgumentException("need to implement caching scorer");
+            }
+
+            this.scorer = (EqDisjunctionMaxScorer) scorer;
+            if (secondPass) {
+                return;
+            }
+            this.scorer.cascade = useCascade(this.scorer);
+            cascade |= this.scorer.cascade;
+            if ((!countsHits() || cascade) && lowestCollectingQueue < pqs.length - 1) {
+                pruneSubScorers();
+            }
+            updateMinCompetitiveScore();
+        }
+
+        /*
+         * A bucket sorted like the segment sees its docs in sort order, so
+         * once the full bucket rejects a doc it rejects the rest of the
+         * segment. Once no live bucket takes docs anymore, the segment is
+         * done, unless the hits have to be counted.
+         */
+        final void terminate(int bucket) {
+            terminated[bucket] = true;
+            checkTerminated();
+        }
+
+        final void checkTerminated() {
+            if (secondPass || countsHits()) {
+                return;
+            }
+            for (int i = 0; i <= lowestCollectingQueue && i < pqs.length; i++) {
+                if (!terminated[i] && takesDocs(i)) {
+                    return;
+                }
+            }
+            totalHitsRelation = TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+            earlyTerminated = true;
+            throw new CollectionTerminatedException();
+        }
+
+        /* the hits passed the threshold, the skipping held back by the exact count starts */
+        final void stopCounting() throws IOException {
+            if (secondPass || countsHits()) {
+                return;
+            }
+            if (lowestCollectingQueue < pqs.length - 1) {
+                pruneSubScorers();
+            }
+            updateMinCompetitiveScore();
+            checkTerminated();
+        }
+
+        final void updateMinCompetitiveScore() throws IOException {
+            if (secondPass || countsHits()) {
+                return;
+            }
+            final int bucket = competitiveBucket();
+            if (bucket < 0) {
+                return;
+            }
+            totalHitsRelation = TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+            // equal scores lose against the docs already collected
+            this.scorer.setMinCompetitiveScore(bucket + 1, Math.nextUp(bottomScore(bucket)));
+        }
+
+        final void pruneSubScorers() {
+            // the second pass doesn't visit the docs of the pruned subqueries anyway
+            if (secondPass) {
+                return;
+            }
+            totalHitsRelation = TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+            // scorerIndex starts with 1
+            if (!this.scorer.pruneSubScorers(lowestCollectingQueue + 1)) {
+                throw new CollectionTerminatedException();
+            }
+        }
+    }
+
+    abstract class EqMultiComparatorLeafCollector extends EqLeafCollector {
 
         final boolean mayNeedScoresTwice;
         final LeafFieldComparator[] comparators;
         final int[] reverseMul;
-        EqDisjunctionMaxScorer scorer;
 
-        EqMultiComparatorLeafCollector(LeafFieldComparator[] comparators, int[] reverseMul, boolean mayNeedScoresTwice) {
+        EqMultiComparatorLeafCollector(LeafFieldComparator[] comparators, int[] reverseMul, boolean mayNeedScoresTwice,
+                                       boolean secondPass) {
+            super(secondPass);
             this.mayNeedScoresTwice = mayNeedScoresTwice;
             this.comparators = comparators;
             this.reverseMul = reverseMul;
@@ -650,16 +1443,13 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
 
         @Override
         public void setScorer(Scorable scorer) throws IOException {
-
-            if (!(scorer instanceof EqDisjunctionMaxScorer)){
-                throw new IllegalArgumentException("need to implement caching scorer");
-            }
-
+            super.setScorer(scorer);
             for(LeafFieldComparator c: comparators) {
-                c.setScorer(scorer);
+                // null until the bucket gets its first doc
+                if (c != null) {
+                    c.setScorer(scorer);
+                }
             }
-
-            this.scorer = (EqDisjunctionMaxScorer) scorer;
         }
     }
 
@@ -679,6 +1469,19 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
                 false, false, false, true);
     }
 
+    public static EqTopFieldCollector create(
+            Sort[] sorts,
+            int[] limits,
+            int numHits,
+            FieldDoc after,
+            boolean fillFields,
+            boolean trackDocScores,
+            boolean trackMaxScore,
+            boolean trackTotalHits) {
+        return create(sorts, limits, numHits, after,
+                fillFields, trackDocScores, trackMaxScore, trackTotalHits, EqExecutionMode.UNION);
+    }
+
     private static EqSortField[] toEqSortFields(SortField[] fields){
         EqSortField[] eqFields = new EqSortField[fields.length];
         for(int i = 0; i<eqFields.length; i++){
@@ -695,7 +1498,66 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
             boolean fillFields,
             boolean trackDocScores,
             boolean trackMaxScore,
-            boolean trackTotalHits) {
+            boolean trackTotalHits,
+            EqExecutionMode execution) {
+        return create(sorts, limits, numHits, after,
+                fillFields, trackDocScores, trackMaxScore, trackTotalHits ? Integer.MAX_VALUE : 0, execution);
+    }
+
+    /**
+     * Creates a collector which only counts the docs of each bucket, see
+     * {@link #getBucketCounts()}. An unlimited bucket keeps every doc routed to
+     * it, so its docs are counted without sorting them. A limited bucket still
+     * sorts its docs, they decide which docs are pushed down to the buckets after it.
+     */
+    public static EqTopFieldCollector createCounting(Sort[] sorts, int[] limits) {
+        if (sorts.length == 0) {
+            throw new IllegalArgumentException("Sort must contain at least one field");
+        }
+
+        // the window never fills, every bucket is collecting up to the end
+        SimpleStackedFieldCollector collector = new SimpleStackedFieldCollector(sorts, limits, Integer.MAX_VALUE,
+                false, false, false, Integer.MAX_VALUE);
+        collector.bucketCounts = new int[sorts.length];
+        return collector;
+    }
+
+    /**
+     * Creates a collector counting the hits exactly up to totalHitsThreshold.
+     * Beyond the threshold the collector may skip the docs which can't make it
+     * into the result list, the total hits are a lower bound then, see
+     * {@link TotalHits.Relation#GREATER_THAN_OR_EQUAL_TO}.
+     */
+    public static EqTopFieldCollector create(
+            Sort[] sorts,
+            int[] limits,
+            int numHits,
+            FieldDoc after,
+            boolean fillFields,
+            boolean trackDocScores,
+            boolean trackMaxScore,
+            int totalHitsThreshold,
+            EqExecutionMode execution) {
+        return create(sorts, limits, numHits, after, fillFields, trackDocScores, trackMaxScore, totalHitsThreshold,
+                execution, true);
+    }
+
+    /*
+     * With specialized the buckets sorted by relevance only or by the same
+     * numeric or string field get a keyed collector, see EqKeyedFieldCollector.
+     * The generic collectors take any sort.
+     */
+    static EqTopFieldCollector create(
+            Sort[] sorts,
+            int[] limits,
+            int numHits,
+            FieldDoc after,
+            boolean fillFields,
+            boolean trackDocScores,
+            boolean trackMaxScore,
+            int totalHitsThreshold,
+            EqExecutionMode execution,
+            boolean specialized) {
 
         if (sorts.length == 0) {
             throw new IllegalArgumentException("Sort must contain at least one field");
@@ -705,28 +1567,36 @@ public abstract class EqTopFieldCollector extends TopDocsCollector<EqEntry> {
             throw new IllegalArgumentException("numHits must be > 0; please use TotalHitCountCollector if you just need the total hit count");
         }
 
-        @SuppressWarnings({ "rawtypes", "unchecked" })
-        EqFieldValueHitQueue<EqEntry>[] queues = new EqFieldValueHitQueue[sorts.length];
+        if (after != null && !(after instanceof EqFieldDoc)) {
+            throw new IllegalArgumentException("after has to be an EqFieldDoc with the subquery index of the doc");
+        }
 
-        for (int i = 0; i < sorts.length; i++) {
-            int queueSize = limits[i] != 0 ? limits[i] : numHits;
-            //TODO: track instantiation, why is scorer not initialized?
-            EqSortField[] fields = toEqSortFields(sorts[i].getSort());
-            queues[i] = EqFieldValueHitQueue.create(fields, queueSize, i);
+        if (totalHitsThreshold < 0) {
+            throw new IllegalArgumentException("totalHitsThreshold must be >= 0, got " + totalHitsThreshold);
         }
 
-        if (after == null) {
-            return new SimpleStackedFieldCollector(
+        EqSortKeys keys = specialized && after == null ? EqSortKeys.of(sorts) : null;
+        EqTopFieldCollector collector;
+        if (keys != null && isSingleHeap(sorts, limits)) {
+            collector = new EqKeyedFieldCollector.SingleHeap(sorts, limits, numHits, keys, trackDocScores, totalHitsThreshold);
+        } else if (keys != null) {
+            collector = new EqKeyedFieldCollector.Stacked(sorts, limits, numHits, keys, trackDocScores, totalHitsThreshold);
+        } else if (isSingleHeap(sorts, limits)) {
+            collector = new SingleHeapFieldCollector(sorts, limits, numHits, trackDocScores, totalHitsThreshold);
+        } else {
+            collector = new SimpleStackedFieldCollector(
                     sorts,
                     limits,
-                    queues,
                     numHits,
                     fillFields,
                     trackDocScores,
                     trackMaxScore,
-                    trackTotalHits);
-        } else {
-            throw new UnsupportedOperationException("we don't support multiple collectors with after parameter");
+                    totalHitsThreshold);
+        }
+        collector.execution = execution;
+        if (after != null) {
+            collector.searchAfter((EqFieldDoc) after);
         }
+        return collector;
     }
 }
@@ -0,0 +1,125 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+
+/**
+ * Collects the slices of an index in parallel, see
+ * {@link IndexSearcher#search(Query, CollectorManager)}.
+ *
+ * Each slice is collected into its own EqTopFieldCollector. The buckets of a
+ * slice keep every doc of the slice which may appear in the merged result:
+ * a doc dropped by a limited bucket or pushed out of the window on a slice
+ * faces at least the same competition on the whole index. The reduce step
+ * re-collects the docs of all the slice buckets in index order into a final
+ * collector, so the routing between limited buckets is the same as with a
+ * serial search.
+ *
+ * Only for Lucene applications searching with an executor, the Solr
+ * component collects the segments of a core serially and doesn't use it.
+ */
+public class EqTopFieldCollectorManager implements CollectorManager<EqTopFieldCollector, EqTopFieldCollector> {
+
+    private final IndexSearcher searcher;
+    private final EqDisjunctionMaxQuery query;
+    private final Sort[] sorts;
+    private final int[] limits;
+    private final int numHits;
+    private final boolean trackTotalHits;
+
+    public EqTopFieldCollectorManager(IndexSearcher searcher, EqDisjunctionMaxQuery query, Sort[] sorts, int[] limits,
+                                      int numHits, boolean trackTotalHits) {
+        this.searcher = searcher;
+        this.query = query;
+        this.sorts = sorts;
+        this.limits = limits;
+        this.numHits = numHits;
+        this.trackTotalHits = trackTotalHits;
+    }
+
+    @Override
+    public EqTopFieldCollector newCollector() {
+        return EqTopFieldCollector.create(sorts, limits, numHits, null, false, false, false, trackTotalHits);
+    }
+
+    @Override
+    public EqTopFieldCollector reduce(Collection<EqTopFieldCollector> collectors) throws IOException {
+        if (collectors.size() == 1) {
+            return collectors.iterator().next();
+        }
+
+        int hits = 0;
+        TotalHits.Relation relation = TotalHits.Relation.EQUAL_TO;
+        int[] candidates = new int[numHits];
+        int count = 0;
+
+        for (EqTopFieldCollector c : collectors) {
+            c.collectPushedDocs();
+            hits += c.collectedHits;
+            if (c.totalHitsRelation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO) {
+                relation = TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+            }
+            for (EqFieldValueHitQueue<EqEntry> q : c.pqs) {
+                if (q == null) {
+                    continue;
+                }
+                for (EqEntry e : q) {
+                    if (count == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, count << 1);
+                    }
+                    candidates[count++] = e.doc;
+                }
+            }
+        }
+        Arrays.sort(candidates, 0, count);
+
+        EqTopFieldCollector merged = newCollector();
+        // the weight is not wrapped by the query cache, the collector needs the EqDisjunctionMaxScorer
+        Weight weight = searcher.rewrite(query).createWeight(searcher, merged.scoreMode(), 1f);
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+
+        // the candidates handed to the merged collector, it counts them again
+        int collected = 0;
+        int i = 0;
+        while (i < count) {
+            LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(candidates[i], leaves));
+            int end = leaf.docBase + leaf.reader().maxDoc();
+            try {
+                LeafCollector leafCollector = merged.getLeafCollector(leaf);
+                Scorer scorer = weight.scorer(leaf);
+                leafCollector.setScorer(scorer);
+                DocIdSetIterator it = scorer.iterator();
+                for (; i < count && candidates[i] < end; i++) {
+                    int doc = candidates[i] - leaf.docBase;
+                    if (it.docID() < doc) {
+                        it.advance(doc);
+                    }
+                    if (it.docID() == doc) {
+                        collected++;
+                        leafCollector.collect(doc);
+                    }
+                }
+            } catch (CollectionTerminatedException e) {
+                // no bucket is collecting the docs of this segment anymore, the
+                // candidates left are counted by their slices only
+                relation = TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+            }
+            while (i < count && candidates[i] < end) {
+                i++;
+            }
+        }
+
+        // the slices have counted the re-collected docs already, a doc dropped
+        // by a limited bucket of the merged collector is no hit anymore
+        merged.collectedHits += hits - collected;
+        if (relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO) {
+            merged.totalHitsRelation = relation;
+        }
+        return merged;
+    }
+}
@@ -35,10 +35,19 @@ public class EqWrapScorer extends Scorer {
         return in.twoPhaseIterator();
     }
 
+    @Override
+    public int advanceShallow(int target) throws IOException {
+        return this.in.advanceShallow(target);
+    }
+
     @Override
     public float getMaxScore(int upTo) throws IOException {
-        // TODO Auto-generated method stub
-        return 0;
+        return this.in.getMaxScore(upTo);
+    }
+
+    @Override
+    public void setMinCompetitiveScore(float minScore) throws IOException {
+        this.in.setMinCompetitiveScore(minScore);
     }
 
 }
@@ -3,42 +3,79 @@ package org.apache.solr.handler.component.eq;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.EqDisjunctionMaxQuery;
 import org.apache.lucene.search.EqFieldDoc;
+import org.apache.lucene.search.EqTopFieldCollector;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.common.util.Utils;
 import org.apache.solr.handler.component.MergeStrategy;
 import org.apache.solr.handler.component.QueryComponent;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.ShardDoc;
 import org.apache.solr.handler.component.ShardRequest;
 import org.apache.solr.handler.component.ShardResponse;
+import org.apache.solr.response.BasicResultContext;
 import org.apache.solr.response.ResultContext;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.ExtendedQuery;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.QueryCommand;
+import org.apache.solr.search.QueryResult;
+import org.apache.solr.search.QueryResultKey;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SortSpec;
 import org.apache.solr.search.eq.EqBasicResultContext;
+import org.apache.solr.search.eq.EqBucketCounter;
+import org.apache.solr.search.eq.EqBucketPlanner;
+import org.apache.solr.search.eq.EqCursorMark;
+import org.apache.solr.search.eq.EqFilterCacheDocSets;
 import org.apache.solr.search.eq.EqQueryCommand;
+import org.apache.solr.search.eq.EqQueryState;
 import org.apache.solr.search.eq.EqSolrReturnFields;
 import org.apache.solr.search.eq.EqSortSpecParsing;
 
+import solr.extentions.parser.EqBucketQParserPlugin;
+
 public class EqQueryComponent extends QueryComponent {
 
+    /**
+     * Name of the user cache keeping the subquery index of the hits stored in
+     * the queryResultCache, see solrconfig.xml. Without it every cached '&lt;&lt;'
+     * result is searched again.
+     */
+    public static final String FIELD_DOC_CACHE = "eqFieldDocCache";
+
     @Override
     public void prepare(ResponseBuilder rb) throws IOException {
         super.prepare(rb);
@@ -47,36 +84,407 @@ public class EqQueryComponent extends QueryComponent {
         Integer rows = rb.req.getParams().getInt(CommonParams.ROWS);
         start = start != null ? start : CommonParams.START_DEFAULT;
         rows = rows != null ? rows : CommonParams.ROWS_DEFAULT;
+        if (start != 0 && EqQueryCommand.parseCursorMark(rb.req.getParams()) != null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    EqQueryCommand.CURSOR_MARK + " and start=" + start + " can't be combined, the cursor is the start");
+        }
 
         SortSpec sortSpec = EqSortSpecParsing.parseSortSpec(rb.req.getParams().get(CommonParams.SORT), rb.req);
         sortSpec.setOffset(start);
         sortSpec.setCount(rows);
         rb.setSortSpec(sortSpec);
         rb.setFieldFlags(0);
+        addBucketFacet(rb);
+    }
+
+    /*
+     * eq.bucketFacet makes the bucket a facet dimension: the JSON facet sqidx
+     * gets a query facet of each bucket with the facets of eq.bucketFacet
+     * below it. The facets of the buckets are restricted by their doc sets,
+     * filled while collecting, see EqBucketQuery.
+     */
+    @SuppressWarnings("unchecked")
+    private static void addBucketFacet(ResponseBuilder rb) {
+        String bucketFacet = rb.req.getParams().get(EqQueryCommand.BUCKET_FACET);
+        if (bucketFacet == null || !(rb.getQuery() instanceof EqDisjunctionMaxQuery)
+                || rb.req.getParams().getBool(ShardParams.IS_SHARD, false)) {
+            // the shards get the facet of the buckets from the JSON facets of the request
+            return;
+        }
+        Object subFacets;
+        try {
+            subFacets = Utils.fromJSONString(bucketFacet);
+        } catch (RuntimeException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "bad " + EqQueryCommand.BUCKET_FACET + ": " + bucketFacet, e);
+        }
+        if (!(subFacets instanceof Map)) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, EqQueryCommand.BUCKET_FACET + " is no JSON object: " + bucketFacet);
+        }
+
+        Map<String, Object> buckets = new LinkedHashMap<>();
+        for (int i = 1; i <= ((EqDisjunctionMaxQuery) rb.getQuery()).getDisjuncts().size(); i++) {
+            Map<String, Object> bucket = new LinkedHashMap<>();
+            bucket.put("type", "query");
+            bucket.put("q", "{!" + EqBucketQParserPlugin.NAME + " " + EqBucketQParserPlugin.BUCKET + "=" + i + "}");
+            bucket.put("facet", subFacets);
+            buckets.put(String.valueOf(i), bucket);
+        }
+        Map<String, Object> dimension = new LinkedHashMap<>();
+        dimension.put("type", "query");
+        dimension.put("q", "*:*");
+        dimension.put("facet", buckets);
+
+        Map<String, Object> json = rb.req.getJSON();
+        if (json == null) {
+            json = new LinkedHashMap<>();
+            rb.req.setJSON(json);
+        }
+        Map<String, Object> facets = json.get("facet") instanceof Map ? (Map<String, Object>) json.get("facet") : new LinkedHashMap<>();
+        facets.put(EqQueryCommand.BUCKET_FACET_NAME, dimension);
+        json.put("facet", facets);
     }
 
     @Override
     public void process(ResponseBuilder rb) throws IOException {
-        super.process(rb);
+        EqQueryState.setDocSetSource(rb.req, new EqFilterCacheDocSets(rb.req.getSearcher()));
+        if (countOnly(rb)) {
+            return;
+        }
+        planPage(rb);
+        // the doc set of a '<<' search is filled by its collector, see setDocSet
+        final boolean collectsDocSets = collectsDocSets(rb);
+        if (collectsDocSets) {
+            EqQueryState.collectDocSets(rb.req, rb.getQuery(), EqQueryCommand.parseBucketDocSets(rb.req.getParams()));
+            rb.setNeedDocSet(false);
+        }
+        try {
+            super.process(rb);
+            processEq(rb);
+        } finally {
+            if (collectsDocSets) {
+                rb.setNeedDocSet(true);
+            }
+        }
+    }
+
+    private void processEq(ResponseBuilder rb) throws IOException {
         if (rb.getQuery() instanceof EqDisjunctionMaxQuery) {
             EqDisjunctionMaxQuery disjunctionMaxQuery = (EqDisjunctionMaxQuery) rb.getQuery();
-            if (disjunctionMaxQuery.getTopFieldDocCollector() != null) {
-                EqQueryCommand cmd = disjunctionMaxQuery.getQueryCmdWrapper();
-                TopDocs topDocs = disjunctionMaxQuery.getTopFieldDocCollector().getSavedTopDocs();
-
-                int nDocsReturned = topDocs.scoreDocs.length;
-                Map<Integer, EqFieldDoc> fieldDocsMap = new HashMap<Integer, EqFieldDoc>(nDocsReturned);
-                for (int i = 0; i < nDocsReturned; i++) {
-                    EqFieldDoc scoreDoc = (EqFieldDoc) topDocs.scoreDocs[i];
-                    fieldDocsMap.put(scoreDoc.doc, scoreDoc);
+            EqQueryState state = EqQueryState.get(rb.req, disjunctionMaxQuery);
+            CachedFieldDocs fieldDocs;
+            if (state != null) {
+                state.endCollection();
+                fieldDocs = cacheFieldDocs(rb, state);
+            } else if (isCachedResult(rb)) {
+                fieldDocs = cachedFieldDocs(rb, disjunctionMaxQuery);
+                if (fieldDocs == null || Boolean.TRUE.equals(EqQueryState.collectsDocSets(rb.req, disjunctionMaxQuery))) {
+                    // the result cache and the field doc cache are out of sync or the doc sets
+                    // of the buckets are needed, search again
+                    state = search(rb);
+                    state.endCollection();
+                    fieldDocs = cacheFieldDocs(rb, state);
                 }
+            } else {
+                return;
+            }
+            Map<Integer, EqFieldDoc> fieldDocsMap = fieldDocs.fieldDocs;
+            if (isPlanned(rb)) {
+                rb.getResults().docList = withoutSkipped(rb.getResults().docList);
+            }
+            if (EqQueryState.collectsDocSets(rb.req, disjunctionMaxQuery) != null) {
+                setDocSet(rb, state);
+            }
+
+            if (fieldDocs.totalHitsRelation != TotalHits.Relation.EQUAL_TO) {
+                rb.rsp.getResponseHeader().add(EqQueryCommand.NUM_FOUND_EXACT, Boolean.FALSE);
+            }
+
+            String cursorMark = EqQueryCommand.parseCursorMark(rb.req.getParams());
+            if (cursorMark != null && !rb.req.getParams().getBool(ShardParams.IS_SHARD, false)) {
+                rb.rsp.add(EqQueryCommand.NEXT_CURSOR_MARK, nextCursorMark(cursorMark, rb.getResults().docList, fieldDocsMap));
+            }
+
+            ResultContext ctx = new EqBasicResultContext(rb.getResults().docList, new EqSolrReturnFields(rb.req), rb.req.getSearcher(),
+                    disjunctionMaxQuery, rb.req, fieldDocsMap);
+            rb.rsp.getValues().remove("response");
+            rb.rsp.add("response", ctx);
+        }
+    }
+
+    /*
+     * A request without rows only needs the hits. The docs of each bucket are
+     * counted without sorting the unlimited buckets and returned as
+     * eq.bucketCounts, see EqTopFieldCollector#createCounting.
+     */
+    private boolean countOnly(ResponseBuilder rb) throws IOException {
+        SolrParams params = rb.req.getParams();
+        if (!(rb.getQuery() instanceof EqDisjunctionMaxQuery) || rb.getSortSpec().getCount() != 0 || rb.grouping()
+                || !params.getBool(COMPONENT_NAME, true) || params.get(ShardParams.IDS) != null
+                || EqQueryCommand.parseCursorMark(params) != null
+                || (params.getInt(ShardParams.SHARDS_PURPOSE, ShardRequest.PURPOSE_GET_TOP_IDS) & ShardRequest.PURPOSE_GET_TERM_STATS) != 0) {
+            return false;
+        }
+        List<Query> filters = rb.getFilters();
+        if (filters != null) {
+            for (Query filter : filters) {
+                // the post filters are applied by the search only
+                if (filter instanceof PostFilter) {
+                    return false;
+                }
+            }
+        }
+
+        SolrIndexSearcher searcher = rb.req.getSearcher();
+        EqDisjunctionMaxQuery query = (EqDisjunctionMaxQuery) rb.getQuery();
+        EqTopFieldCollector collector = query.getCountingCollector(rb.createQueryCommand());
+        if (rb.isNeedDocSet()) {
+            collector.collectDocSets(searcher.maxDoc(), EqQueryCommand.parseBucketDocSets(params));
+        }
+        EqBucketCounter.count(searcher, query, filters, collector);
+
+        QueryResult result = new QueryResult();
+        result.setDocList(new DocSlice(0, 0, new int[0], null, collector.getTotalHits(), 0f));
+        rb.setResult(result);
+        if (rb.isNeedDocSet()) {
+            setDocSet(rb, EqQueryState.get(rb.req, query));
+        }
+        rb.rsp.addResponse(new BasicResultContext(rb));
+        rb.rsp.getToLog().add("hits", result.getDocList().matches());
+        rb.rsp.add(EqQueryCommand.BUCKET_COUNTS, bucketCounts(collector.getBucketCounts()));
+
+        doFieldSortValues(rb, searcher);
+        doPrefetch(rb);
+        return true;
+    }
+
+    /*
+     * Solr collects the doc set for the facets with a collector of its own or,
+     * for a result taken from the queryResultCache, searches the query again.
+     * The collector of a '<<' search fills it instead, see
+     * EqTopFieldCollector#collectDocSets.
+     */
+    private static boolean collectsDocSets(ResponseBuilder rb) {
+        return rb.getQuery() instanceof EqDisjunctionMaxQuery && rb.isNeedDocSet() && !rb.grouping()
+                && rb.req.getParams().getBool(COMPONENT_NAME, true) && rb.req.getParams().get(ShardParams.IDS) == null;
+    }
+
+    /*
+     * Takes the doc set of the response from the collector. It is kept in the
+     * filterCache, keyed by the query and its filters, so a result from the
+     * queryResultCache finds it there instead of searching the query again.
+     */
+    private static void setDocSet(ResponseBuilder rb, EqQueryState state) throws IOException {
+        SolrIndexSearcher searcher = rb.req.getSearcher();
+        SolrCache<Query, DocSet> filterCache = searcher.getFilterCache();
+        Query key = filterCache != null ? docSetKey(rb) : null;
+        DocSet docSet = key != null && (state == null || state.getCollector().getDocSet() == null) ? filterCache.get(key) : null;
+        if (docSet == null) {
+            if (state != null && state.getCollector().getDocSet() != null) {
+                docSet = new BitDocSet(state.getCollector().getDocSet());
+            } else {
+                // the result has been taken from the queryResultCache
+                List<Query> queries = new ArrayList<>();
+                queries.add(rb.getQuery());
+                if (rb.getFilters() != null) {
+                    queries.addAll(rb.getFilters());
+                }
+                docSet = searcher.getDocSet(queries);
+            }
+            if (key != null) {
+                filterCache.put(key, docSet);
+            }
+        }
+        rb.getResults().docSet = docSet;
+    }
+
+    /* the doc set of the query and its filters, null if a filter must not be cached */
+    private static Query docSetKey(ResponseBuilder rb) {
+        BooleanQuery.Builder key = new BooleanQuery.Builder();
+        key.add(rb.getQuery(), BooleanClause.Occur.FILTER);
+        if (rb.getFilters() != null) {
+            for (Query filter : rb.getFilters()) {
+                if (filter instanceof ExtendedQuery && !((ExtendedQuery) filter).getCache()) {
+                    return null;
+                }
+                key.add(filter, BooleanClause.Occur.FILTER);
+            }
+        }
+        return key.build();
+    }
+
+    /* the counts keyed by the subquery index of the bucket, like sqidx */
+    private static NamedList<Integer> bucketCounts(int[] counts) {
+        NamedList<Integer> bucketCounts = new SimpleOrderedMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            bucketCounts.add(String.valueOf(i + 1), counts[i]);
+        }
+        return bucketCounts;
+    }
+
+    /*
+     * A deep page skips the leading buckets before it, see EqBucketPlanner.
+     * The counts of the buckets are kept in the eqFieldDocCache for the query
+     * and its filters, the count pass doesn't run again for the next pages.
+     * The planned result has no docs at the positions of the skipped buckets,
+     * it isn't put into the queryResultCache; its counts would be stale on the
+     * searcher it is warmed on.
+     */
+    @SuppressWarnings("unchecked")
+    private static void planPage(ResponseBuilder rb) throws IOException {
+        if (!(rb.getQuery() instanceof EqDisjunctionMaxQuery) || rb.grouping()) {
+            return;
+        }
+        int start = rb.getSortSpec().getOffset();
+        if (start < rb.req.getParams().getInt(EqQueryCommand.PLAN_START, EqQueryCommand.PLAN_START_DEFAULT)) {
+            return;
+        }
+        EqDisjunctionMaxQuery query = (EqDisjunctionMaxQuery) rb.getQuery();
+        SolrIndexSearcher searcher = rb.req.getSearcher();
+        SolrCache<EqBucketPlanner.Key, int[]> cache = searcher.getCache(FIELD_DOC_CACHE);
+        EqBucketPlanner.Key key = new EqBucketPlanner.Key(query, rb.getFilters());
+        int[] counts = cache != null ? cache.get(key) : null;
+        if (counts == null) {
+            counts = EqBucketPlanner.countSkippable(searcher, query, rb.getFilters());
+            if (cache != null) {
+                cache.put(key, counts);
+            }
+        }
+        EqDisjunctionMaxQuery planned = EqBucketPlanner.plan(query, counts, start);
+        if (planned != query) {
+            rb.setQuery(planned);
+            rb.setFieldFlags(rb.getFieldFlags() | SolrIndexSearcher.NO_CHECK_QCACHE | SolrIndexSearcher.NO_SET_QCACHE);
+        }
+    }
+
+    /* the planned result has no docs at the positions of the skipped buckets, see planPage */
+    private static boolean isPlanned(ResponseBuilder rb) {
+        return (rb.getFieldFlags() & SolrIndexSearcher.NO_SET_QCACHE) != 0;
+    }
 
-                ResultContext ctx = new EqBasicResultContext(rb.getResults().docList, new EqSolrReturnFields(rb.req), rb.req.getSearcher(),
-                        disjunctionMaxQuery, rb.req, fieldDocsMap);
-                rb.rsp.getValues().remove("response");
-                rb.rsp.add("response", ctx);
+    /*
+     * An empty window may have no field docs cached. Beyond the threshold the
+     * collector may have skipped hits, so numFound is only taken as exact up
+     * to the threshold then.
+     */
+    private static TotalHits.Relation totalHitsRelation(ResponseBuilder rb, EqDisjunctionMaxQuery query) {
+        return rb.getResults().docList.matches() <= query.getTotalHitsThreshold() ? TotalHits.Relation.EQUAL_TO
+                : TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+    }
+
+    private static Map<Integer, EqFieldDoc> fieldDocs(TopDocs topDocs) {
+        int nDocsReturned = topDocs.scoreDocs.length;
+        Map<Integer, EqFieldDoc> fieldDocsMap = new HashMap<Integer, EqFieldDoc>(nDocsReturned);
+        for (int i = 0; i < nDocsReturned; i++) {
+            EqFieldDoc scoreDoc = (EqFieldDoc) topDocs.scoreDocs[i];
+            // the positions of the skipped buckets are never shown, see withoutSkipped
+            if (scoreDoc != EqTopFieldCollector.SKIPPED) {
+                fieldDocsMap.put(scoreDoc.doc, scoreDoc);
             }
         }
+        return fieldDocsMap;
+    }
+
+    /*
+     * The page of a planned result starts behind the skipped buckets, their
+     * positions have no docs. Should one reach the page it is dropped, the
+     * docs keep their positions.
+     */
+    private static DocList withoutSkipped(DocList docList) {
+        int[] docs = new int[docList.offset() + docList.size()];
+        float[] scores = docList.hasScores() ? new float[docs.length] : null;
+        int end = docList.offset();
+        for (DocIterator it = docList.iterator(); it.hasNext();) {
+            int doc = it.nextDoc();
+            if (doc == EqTopFieldCollector.SKIPPED.doc) {
+                continue;
+            }
+            if (scores != null) {
+                scores[end] = it.score();
+            }
+            docs[end++] = doc;
+        }
+        int size = end - docList.offset();
+        return size == docList.size() ? docList
+                : new DocSlice(docList.offset(), size, docs, scores, docList.matches(), docList.maxScore());
+    }
+
+    /* the cursor after the last doc of the page, the same cursor if the page is empty */
+    private static String nextCursorMark(String cursorMark, DocList docList, Map<Integer, EqFieldDoc> fieldDocsMap) {
+        EqFieldDoc last = null;
+        int pageDocs = 0;
+        for (DocIterator it = docList.iterator(); it.hasNext();) {
+            EqFieldDoc fieldDoc = fieldDocsMap.get(it.nextDoc());
+            pageDocs = last != null && last.subqIndex == fieldDoc.subqIndex ? pageDocs + 1 : 1;
+            last = fieldDoc;
+        }
+        if (last == null) {
+            return cursorMark;
+        }
+        return EqCursorMark.next(EqCursorMark.parse(cursorMark), last.subqIndex - 1, pageDocs, last.fields).serialize();
+    }
+
+    /* the docs of the response were taken from the queryResultCache */
+    private static boolean isCachedResult(ResponseBuilder rb) {
+        return rb.getResults() != null && rb.getResults().docList != null && !rb.grouping()
+                && rb.req.getParams().get(ShardParams.IDS) == null;
+    }
+
+    /* same key as the queryResultCache entry, the whole window of the entry is cached */
+    private static QueryResultKey resultKey(ResponseBuilder rb) {
+        return new QueryResultKey(rb.getQuery(), rb.getFilters(), rb.getSortSpec().getSort(), rb.getFieldFlags());
+    }
+
+    /*
+     * The entry of the eqFieldDocCache: the field docs of the window and whether
+     * the collector counted all the hits, so a cached result reports numFound
+     * like the search did.
+     */
+    private static final class CachedFieldDocs {
+
+        final Map<Integer, EqFieldDoc> fieldDocs;
+        final TotalHits.Relation totalHitsRelation;
+
+        CachedFieldDocs(Map<Integer, EqFieldDoc> fieldDocs, TotalHits.Relation totalHitsRelation) {
+            this.fieldDocs = fieldDocs;
+            this.totalHitsRelation = totalHitsRelation;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CachedFieldDocs cacheFieldDocs(ResponseBuilder rb, EqQueryState state) {
+        CachedFieldDocs fieldDocs = new CachedFieldDocs(fieldDocs(state.getCollector().getSavedTopDocs()), state.getTotalHitsRelation());
+        SolrCache<QueryResultKey, CachedFieldDocs> cache = rb.req.getSearcher().getCache(FIELD_DOC_CACHE);
+        // a planned result isn't in the queryResultCache
+        if (cache != null && !isPlanned(rb)) {
+            cache.put(resultKey(rb), fieldDocs);
+        }
+        return fieldDocs;
+    }
+
+    /* the field docs of the cached window, null if they don't cover the docs of the response */
+    @SuppressWarnings("unchecked")
+    private static CachedFieldDocs cachedFieldDocs(ResponseBuilder rb, EqDisjunctionMaxQuery query) {
+        DocList docList = rb.getResults().docList;
+        SolrCache<QueryResultKey, CachedFieldDocs> cache = rb.req.getSearcher().getCache(FIELD_DOC_CACHE);
+        CachedFieldDocs fieldDocs = cache != null ? cache.get(resultKey(rb)) : null;
+        if (fieldDocs == null) {
+            return docList.size() == 0 ? new CachedFieldDocs(Collections.emptyMap(), totalHitsRelation(rb, query)) : null;
+        }
+        for (DocIterator it = docList.iterator(); it.hasNext();) {
+            if (!fieldDocs.fieldDocs.containsKey(it.nextDoc())) {
+                return null;
+            }
+        }
+        return fieldDocs;
+    }
+
+    private static EqQueryState search(ResponseBuilder rb) throws IOException {
+        QueryCommand cmd = rb.createQueryCommand();
+        cmd.setFlags(cmd.getFlags() | SolrIndexSearcher.NO_CHECK_QCACHE);
+        QueryResult result = new QueryResult();
+        rb.req.getSearcher().search(result, cmd);
+        rb.setResult(result);
+        return EqQueryState.get(rb.req, rb.getQuery());
     }
 
     @Override
@@ -120,25 +528,7 @@ public class EqQueryComponent extends QueryComponent {
 
                 // sorting
                 int subqIndex = i + 1;
-
-                // sub query sorts
-                String disjunctSortParams = sreq.params.get("sort_" + i);
-                // global sorts
-                String commonSortParams = sreq.params.get("sort");
-
-                // be sure current sub query sort not only SCORE DESC
-                String disjunctSortParamsNoScore = null;
-                if (disjunctSortParams != null) {
-                    disjunctSortParamsNoScore = disjunctSortParams.replaceAll(",*\\s*score desc,*\\s*", "");
-                }
-
-                if (disjunctSortParams != null && !disjunctSortParamsNoScore.isEmpty()) {
-                    sortFieldsMap.put(subqIndex, EqSortSpecParsing.parseSortSpec(disjunctSortParams, rb.req).getSort().getSort());
-                } else if (commonSortParams != null && !commonSortParams.trim().equals("score desc")) {
-                    sortFieldsMap.put(subqIndex, EqSortSpecParsing.parseSortSpec(commonSortParams, rb.req).getSort().getSort());
-                } else {
-                    sortFieldsMap.put(subqIndex, new SortField[] { SortField.FIELD_SCORE });
-                }
+                sortFieldsMap.put(subqIndex, subSortFields(rb, sreq.params, i));
 
                 // limits
                 if (sreq.params.get("lim_" + i) != null) {
@@ -161,6 +551,9 @@ public class EqQueryComponent extends QueryComponent {
         } else {
             queue = new EqShardFieldSortedHitQueue(sortFieldsMap, ss.getOffset() + ss.getCount() * sortFieldsMap.size(), rb.req.getSearcher());
         }
+        if (EqQueryCommand.parseCursorMark(rb.req.getParams()) != null) {
+            queue.tieBreakBy(uniqueKeyField);
+        }
 
         NamedList<Object> shardInfo = null;
         if (rb.req.getParams().getBool(ShardParams.SHARDS_INFO, false)) {
@@ -171,6 +564,8 @@ public class EqQueryComponent extends QueryComponent {
         long numFound = 0;
         Float maxScore = null;
         boolean partialResults = false;
+        boolean numFoundExact = true;
+        int[] bucketCounts = null;
         Boolean segmentTerminatedEarly = null;
         for (ShardResponse srsp : sreq.responses) {
             SolrDocumentList docs = null;
@@ -230,6 +625,9 @@ public class EqQueryComponent extends QueryComponent {
                 if (Boolean.TRUE.equals(responseHeader.get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY))) {
                     partialResults = true;
                 }
+                if (Boolean.FALSE.equals(responseHeader.get(EqQueryCommand.NUM_FOUND_EXACT))) {
+                    numFoundExact = false;
+                }
                 if (!Boolean.TRUE.equals(segmentTerminatedEarly)) {
                     final Object ste = responseHeader.get(SolrQueryResponse.RESPONSE_HEADER_SEGMENT_TERMINATED_EARLY_KEY);
                     if (Boolean.TRUE.equals(ste)) {
@@ -246,6 +644,17 @@ public class EqQueryComponent extends QueryComponent {
             }
             numFound += docs.getNumFound();
 
+            // the counts of a request without rows, see countOnly
+            NamedList<?> shardCounts = (NamedList<?>) srsp.getSolrResponse().getResponse().get(EqQueryCommand.BUCKET_COUNTS);
+            if (shardCounts != null) {
+                if (bucketCounts == null) {
+                    bucketCounts = new int[shardCounts.size()];
+                }
+                for (int i = 0; i < shardCounts.size(); i++) {
+                    bucketCounts[i] += ((Number) shardCounts.getVal(i)).intValue();
+                }
+            }
+
             NamedList sortFieldValues = (NamedList) (srsp.getSolrResponse().getResponse().get("sort_values"));
             NamedList unmarshalledSortFieldValues = unmarshalSortValues(ss, sortFieldValues, schema);
 
@@ -361,6 +770,20 @@ public class EqQueryComponent extends QueryComponent {
                 rb.rsp.getResponseHeader().add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, Boolean.TRUE);
             }
         }
+        if (bucketCounts != null) {
+            // each shard limits its buckets on its own, the docs pushed down by the merged limit are unknown
+            for (int i = 0; i < bucketCounts.length; i++) {
+                Integer limit = limitsMap.get(i + 1);
+                if (limit != null && limit > 0 && bucketCounts[i] > limit) {
+                    bucketCounts[i] = limit;
+                    numFoundExact = false;
+                }
+            }
+            rb.rsp.add(EqQueryCommand.BUCKET_COUNTS, bucketCounts(bucketCounts));
+        }
+        if (!numFoundExact && rb.rsp.getResponseHeader().get(EqQueryCommand.NUM_FOUND_EXACT) == null) {
+            rb.rsp.getResponseHeader().add(EqQueryCommand.NUM_FOUND_EXACT, Boolean.FALSE);
+        }
         if (segmentTerminatedEarly != null) {
             final Object existingSegmentTerminatedEarly = rb.rsp.getResponseHeader()
                     .get(SolrQueryResponse.RESPONSE_HEADER_SEGMENT_TERMINATED_EARLY_KEY);
@@ -373,6 +796,56 @@ public class EqQueryComponent extends QueryComponent {
         }
     }
 
+    /* the sort fields of the subquery i as the shards sort its bucket */
+    private static SortField[] subSortFields(ResponseBuilder rb, SolrParams params, int i) {
+        // sub query sorts
+        String disjunctSortParams = params.get("sort_" + i);
+        // global sorts
+        String commonSortParams = params.get("sort");
+
+        // be sure current sub query sort not only SCORE DESC
+        String disjunctSortParamsNoScore = null;
+        if (disjunctSortParams != null) {
+            disjunctSortParamsNoScore = disjunctSortParams.replaceAll(",*\\s*score desc,*\\s*", "");
+        }
+
+        if (disjunctSortParams != null && !disjunctSortParamsNoScore.isEmpty()) {
+            return EqSortSpecParsing.parseSortSpec(disjunctSortParams, rb.req).getSort().getSort();
+        } else if (commonSortParams != null && !commonSortParams.trim().equals("score desc")) {
+            return EqSortSpecParsing.parseSortSpec(commonSortParams, rb.req).getSort().getSort();
+        } else {
+            return new SortField[] { SortField.FIELD_SCORE };
+        }
+    }
+
+    /* the cursor after the last merged doc, the values are taken from the sort values of its shard */
+    private static String nextCursorMark(ResponseBuilder rb, List<EqShardDoc> page, EqCursorMark cursor, String cursorMark) {
+        SchemaField uniqueKey = rb.req.getSchema().getUniqueKeyField();
+        EqShardDoc last = null;
+        int pageDocs = 0;
+        for (EqShardDoc shardDoc : page) {
+            pageDocs = last != null && last.subqIndex == shardDoc.subqIndex ? pageDocs + 1 : 1;
+            last = shardDoc;
+        }
+        if (last == null) {
+            return cursorMark;
+        }
+
+        Sort sort = new Sort(subSortFields(rb, rb.req.getParams(), last.subqIndex - 1));
+        SortField[] fields = EqCursorMark.withTieBreak(sort, uniqueKey).getSort();
+        Object[] values = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].getType() == SortField.Type.SCORE) {
+                values[i] = last.score;
+            } else if (uniqueKey.getName().equals(fields[i].getField())) {
+                values[i] = uniqueKey.getType().unmarshalSortValue(last.id);
+            } else {
+                values[i] = ((List<?>) last.sortFieldValues.get(fields[i].getField())).get(last.orderInShard);
+            }
+        }
+        return EqCursorMark.next(cursor, last.subqIndex - 1, pageDocs, values).serialize();
+    }
+
     @Override
     protected void regularFinishStage(ResponseBuilder rb) {
         // TODO Auto-generated method stub
@@ -398,7 +871,20 @@ public class EqQueryComponent extends QueryComponent {
             // apply limits to distributed search
             SolrDocumentList limitedList = new SolrDocumentList();
             Map<Integer, Integer> counterLimits = new HashMap<>();
-            for (SolrDocument document : rb.getResponseDocs()) {
+            String cursorMark = EqQueryCommand.parseCursorMark(rb.req.getParams());
+            EqCursorMark cursor = EqCursorMark.parse(cursorMark);
+            if (cursor != null) {
+                // the docs of the bucket on the pages before count for its limit
+                counterLimits.put(cursor.getBucket() + 1, cursor.getDocs() - 1);
+            }
+            // the merged docs by their position, the uniqueKey may not be returned
+            EqShardDoc[] shardDocs = new EqShardDoc[rb.getResponseDocs().size()];
+            for (ShardDoc shardDoc : rb.resultIds.values()) {
+                shardDocs[shardDoc.positionInResponse] = (EqShardDoc) shardDoc;
+            }
+            List<EqShardDoc> page = new ArrayList<>();
+            for (int pos = 0; pos < shardDocs.length; pos++) {
+                SolrDocument document = rb.getResponseDocs().get(pos);
                 if (document != null && document.get("sqidx") != null) {
                     int subqIndex = Integer.valueOf(document.get("sqidx").toString());
                     if (counterLimits.get(subqIndex) == null) {
@@ -410,13 +896,14 @@ public class EqQueryComponent extends QueryComponent {
                     if ((limitsMap.get(subqIndex).intValue() > counterLimits.get(subqIndex).intValue() || limitsMap.get(subqIndex).intValue() == 0)
                             && limitedList.size() < rb.getSortSpec().getCount()) {
                         limitedList.add(document);
+                        page.add(shardDocs[pos]);
                     }
                 }
             }
 
             // updating response list with limited list
             long numFound = rb.getResponseDocs().getNumFound();
-            if (!limitedList.isEmpty()) {
+            if (!limitedList.isEmpty() || cursorMark != null) {
                 rb.setResponseDocs(limitedList);
             }
             long limitCount = limitsMap.values().stream().reduce(0, Integer::sum);
@@ -426,6 +913,10 @@ public class EqQueryComponent extends QueryComponent {
                 rb.getResponseDocs().setNumFound(limitCount);
             }
 
+            if (cursorMark != null) {
+                rb.rsp.add(EqQueryCommand.NEXT_CURSOR_MARK, nextCursorMark(rb, page, cursor, cursorMark));
+            }
+
             // for (SolrDocument document : rb.getResponseDocs()) {
             // document.remove("subqRoots");
             // }
@@ -14,6 +14,8 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.util.PriorityQueue;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
 
 // used by distributed search to merge results.
 public class EqShardFieldSortedHitQueue extends PriorityQueue<EqShardDoc> {
@@ -31,6 +33,9 @@ public class EqShardFieldSortedHitQueue extends PriorityQueue<EqShardDoc> {
     protected Map<Integer, SortField[]> fieldsMap;
     protected Map<Integer, List<String>> fieldNamesMap = new TreeMap<>();
 
+    /* breaks the ties before the shards, null if the order of the shards decides */
+    protected Comparator<EqShardDoc> tieBreak;
+
     public EqShardFieldSortedHitQueue(SortField[] fields, int size, IndexSearcher searcher) {
         super(size);
         final int n = fields.length;
@@ -94,6 +99,17 @@ public class EqShardFieldSortedHitQueue extends PriorityQueue<EqShardDoc> {
         }
     }
 
+    /**
+     * With a cursor the shards sort the docs of each bucket by the uniqueKey
+     * last, the merge has to break the ties the same way, see EqCursorMark.
+     */
+    public void tieBreakBy(SchemaField uniqueKey) {
+        final FieldComparator fieldComparator = uniqueKey.getSortField(false).getComparator(0, 0);
+        final FieldType type = uniqueKey.getType();
+        // noinspection unchecked
+        tieBreak = (o1, o2) -> -fieldComparator.compareValues(type.unmarshalSortValue(o1.id), type.unmarshalSortValue(o2.id));
+    }
+
     @Override
     protected boolean lessThan(EqShardDoc docA, EqShardDoc docB) {
         if (docA.subqIndex != docB.subqIndex) {
@@ -126,6 +142,10 @@ public class EqShardFieldSortedHitQueue extends PriorityQueue<EqShardDoc> {
             c = (fields[i].getReverse()) ? comparators[i].compare(docB, docA) : comparators[i].compare(docA, docB);
         }
 
+        if (c == 0 && tieBreak != null) {
+            c = tieBreak.compare(docA, docB);
+        }
+
         // solve tiebreaks by comparing shards (similar to using docid)
         // smaller docid's beat larger ids, so reverse the natural ordering
         if (c == 0) {
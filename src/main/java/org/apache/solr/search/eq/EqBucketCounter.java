@@ -0,0 +1,52 @@
+package org.apache.solr.search.eq;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.EqDisjunctionMaxQuery;
+import org.apache.lucene.search.EqTopFieldCollector;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Counts the docs of each bucket of a '&lt;&lt;' query for a request without
+ * rows. The segments are walked with the scorer of the query and the filters
+ * are applied by their doc set, no top docs are collected, see
+ * EqTopFieldCollector#createCounting.
+ */
+public class EqBucketCounter {
+
+    private EqBucketCounter() {
+    }
+
+    /** collects the docs of the query passing the filters into the counting collector */
+    public static EqTopFieldCollector count(SolrIndexSearcher searcher, EqDisjunctionMaxQuery query, List<Query> filters,
+                                            EqTopFieldCollector collector) throws IOException {
+        // the weight is not wrapped by the query cache, the collector needs the EqDisjunctionMaxScorer
+        Weight weight = searcher.rewrite(query).createWeight(searcher, collector.scoreMode(), 1f);
+        Bits filterBits = filters != null && !filters.isEmpty() ? searcher.getDocSet(filters).getBits() : null;
+
+        for (LeafReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+            Scorer scorer = weight.scorer(leaf);
+            if (scorer == null) {
+                continue;
+            }
+            LeafCollector leafCollector = collector.getLeafCollector(leaf);
+            leafCollector.setScorer(scorer);
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            DocIdSetIterator it = scorer.iterator();
+            for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+                if ((liveDocs == null || liveDocs.get(doc)) && (filterBits == null || filterBits.get(leaf.docBase + doc))) {
+                    leafCollector.collect(doc);
+                }
+            }
+        }
+        return collector;
+    }
+}
@@ -0,0 +1,53 @@
+package org.apache.solr.search.eq;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.search.EqDisjunctionMaxQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * The doc sets of the buckets of the '&lt;&lt;' result of a request, a bucket
+ * holds the docs whose first matching subquery is the one of the bucket. They
+ * are taken from the collector if it filled them while collecting, see
+ * EqTopFieldCollector#collectDocSets. Otherwise they are derived from the doc
+ * set of the result and the doc sets of the subqueries.
+ */
+public class EqBucketDocSets {
+
+    private EqBucketDocSets() {
+    }
+
+    /** the docs of the bucket, 0-based, of the result of the request */
+    public static DocSet get(ResponseBuilder rb, int bucket) throws IOException {
+        if (!(rb.getQuery() instanceof EqDisjunctionMaxQuery) || rb.getResults() == null || rb.getResults().docSet == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "the buckets are only known to the facets of a '<<' result");
+        }
+        EqDisjunctionMaxQuery query = (EqDisjunctionMaxQuery) rb.getQuery();
+        List<Query> subqueries = query.getDisjuncts();
+        if (bucket < 0 || bucket >= subqueries.size()) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    "no bucket " + (bucket + 1) + ", the query has " + subqueries.size() + " subqueries");
+        }
+
+        EqQueryState state = EqQueryState.get(rb.req, query);
+        FixedBitSet[] bucketDocSets = state != null ? state.getCollector().getBucketDocSets() : null;
+        if (bucketDocSets != null) {
+            return new BitDocSet(bucketDocSets[bucket]);
+        }
+
+        // the doc sets of the subqueries are kept in the filterCache
+        SolrIndexSearcher searcher = rb.req.getSearcher();
+        DocSet docs = rb.getResults().docSet.intersection(searcher.getDocSet(subqueries.get(bucket)));
+        for (int i = 0; i < bucket && docs.size() > 0; i++) {
+            docs = docs.andNot(searcher.getDocSet(subqueries.get(i)));
+        }
+        return docs;
+    }
+}
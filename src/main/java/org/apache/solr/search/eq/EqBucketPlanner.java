@@ -0,0 +1,137 @@
+package org.apache.solr.search.eq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.EqDisjunctionMaxQuery;
+import org.apache.lucene.search.EqDisjunctionMaxScorer;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Plans a deep page of a '&lt;&lt;' result. The hits of the leading unlimited
+ * buckets are counted first, a doc belongs to the first subquery it
+ * matches. The buckets which end before the start of the page are skipped
+ * by the collector, their docs only take the first positions of the result
+ * list, see EqTopFieldCollector#skipBuckets. The queues of the other buckets
+ * only hold the rest of the window.
+ *
+ * The docs pushed out of a limited bucket go to the buckets after it, their
+ * sizes are known only after sorting. So only the buckets before the first
+ * limited bucket are skipped.
+ */
+public class EqBucketPlanner {
+
+    private EqBucketPlanner() {
+    }
+
+    /** the query for the page at start, the query itself if no bucket can be skipped */
+    public static EqDisjunctionMaxQuery plan(SolrIndexSearcher searcher, EqDisjunctionMaxQuery query, List<Query> filters,
+                                             int start) throws IOException {
+        return plan(query, countSkippable(searcher, query, filters), start);
+    }
+
+    /** the query for the page at start from the counts of countSkippable */
+    public static EqDisjunctionMaxQuery plan(EqDisjunctionMaxQuery query, int[] counts, int start) {
+        int buckets = 0;
+        int docs = 0;
+        while (buckets < counts.length && docs + counts[buckets] <= start) {
+            docs += counts[buckets];
+            buckets++;
+        }
+        return buckets == 0 ? query : query.skipBuckets(buckets, docs);
+    }
+
+    /**
+     * The hits of the leading buckets which can be skipped, empty if there are
+     * none. The counts don't depend on the page, they can be kept for the
+     * query and its filters, see Key.
+     */
+    public static int[] countSkippable(SolrIndexSearcher searcher, EqDisjunctionMaxQuery query, List<Query> filters)
+            throws IOException {
+        List<Query> subqueries = query.getDisjuncts();
+        // the last bucket is never skipped, the page can't be behind it
+        int skippable = 0;
+        while (skippable < subqueries.size() - 1 && !isLimited(query, skippable)) {
+            skippable++;
+        }
+        if (skippable == 0 || query.getCursorMark() != null) {
+            return new int[0];
+        }
+        if (filters != null) {
+            for (Query filter : filters) {
+                // the post filters are applied by the search only
+                if (filter instanceof PostFilter) {
+                    return new int[0];
+                }
+            }
+        }
+
+        // the docs of the skippable buckets are the docs of their subqueries
+        return count(searcher, new EqDisjunctionMaxQuery(subqueries.subList(0, skippable)), filters, skippable);
+    }
+
+    /** the key of the counts of countSkippable */
+    public static final class Key {
+
+        private final Query query;
+        private final List<Query> filters;
+
+        public Key(Query query, List<Query> filters) {
+            this.query = query;
+            this.filters = filters != null ? new ArrayList<>(filters) : Collections.emptyList();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return query.equals(key.query) && filters.equals(key.filters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(query, filters);
+        }
+    }
+
+    private static boolean isLimited(EqDisjunctionMaxQuery query, int i) {
+        Integer limit = query.getLimits().get(EqQueryCommand.SUB_QUERY_LIMIT_PREFIX + i);
+        return limit != null && limit > 0;
+    }
+
+    /* the hits of each bucket, counted without scoring them */
+    static int[] count(SolrIndexSearcher searcher, Query query, List<Query> filters, int buckets) throws IOException {
+        Weight weight = searcher.createWeight(searcher.rewrite(query), ScoreMode.COMPLETE_NO_SCORES, 1f);
+        Bits filterBits = filters != null && !filters.isEmpty() ? searcher.getDocSet(filters).getBits() : null;
+        int[] counts = new int[buckets];
+
+        for (LeafReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+            Scorer scorer = weight.scorer(leaf);
+            if (scorer == null) {
+                continue;
+            }
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            DocIdSetIterator it = scorer.iterator();
+            for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+                if ((liveDocs == null || liveDocs.get(doc)) && (filterBits == null || filterBits.get(leaf.docBase + doc))) {
+                    // bucket is 1-based
+                    counts[((EqDisjunctionMaxScorer) scorer).bucket() - 1]++;
+                }
+            }
+        }
+        return counts;
+    }
+}
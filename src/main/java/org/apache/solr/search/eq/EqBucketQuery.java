@@ -0,0 +1,56 @@
+package org.apache.solr.search.eq;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Weight;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.search.ExtendedQueryBase;
+
+/**
+ * Matches the docs of a bucket of the '&lt;&lt;' result of the current request,
+ * see EqBucketDocSets. The bucket is resolved when the query is executed, so
+ * the query can be parsed before the result exists, e.g. for a JSON query
+ * facet. It is never cached, the buckets belong to the result of the request.
+ */
+public class EqBucketQuery extends ExtendedQueryBase {
+
+    private final int bucket;
+
+    /** @param bucket the bucket, 0-based */
+    public EqBucketQuery(int bucket) {
+        this.bucket = bucket;
+        setCache(false);
+    }
+
+    public int getBucket() {
+        return bucket;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+        if (info == null || info.getResponseBuilder() == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "the buckets are only known within a search request");
+        }
+        return EqBucketDocSets.get(info.getResponseBuilder(), bucket).getTopFilter().createWeight(searcher, scoreMode, boost);
+    }
+
+    @Override
+    public String toString(String field) {
+        return "{!eqbucket b=" + (bucket + 1) + "}";
+    }
+
+    /* the same bucket of another request has other docs */
+    @Override
+    public boolean equals(Object other) {
+        return this == other;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+}
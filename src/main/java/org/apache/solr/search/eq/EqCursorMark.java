@@ -0,0 +1,137 @@
+package org.apache.solr.search.eq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import org.apache.lucene.search.EqFieldDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * The position after a page of a '&lt;&lt;' result, see
+ * {@link EqQueryCommand#CURSOR_MARK}: the bucket of the last doc of the
+ * page, the number of docs of the bucket on the pages so far and the sort
+ * values of the doc in its bucket.
+ *
+ * The sorts of the buckets end with the uniqueKey in cursor mode, so the
+ * sort values identify the doc on every shard and every searcher.
+ */
+public class EqCursorMark {
+
+    /** the cursor of the first page */
+    public static final String START = "*";
+
+    /* 0-based */
+    private final int bucket;
+    private final int docs;
+    private final Object[] values;
+
+    public EqCursorMark(int bucket, int docs, Object[] values) {
+        this.bucket = bucket;
+        this.docs = docs;
+        this.values = values;
+    }
+
+    public int getBucket() {
+        return bucket;
+    }
+
+    /** the number of docs of the bucket on the pages so far, they count for its limit */
+    public int getDocs() {
+        return docs;
+    }
+
+    public Object[] getValues() {
+        return values;
+    }
+
+    /** the cursor after the last doc of a page, pageDocs of the page are in the bucket of the doc */
+    public static EqCursorMark next(EqCursorMark cursor, int bucket, int pageDocs, Object[] values) {
+        int docs = cursor != null && cursor.bucket == bucket ? cursor.docs + pageDocs : pageDocs;
+        return new EqCursorMark(bucket, docs, values);
+    }
+
+    /** the doc to search after for the given sorts of the buckets, see EqTopFieldCollector */
+    public EqFieldDoc toFieldDoc(Sort[] sorts) {
+        if (bucket >= sorts.length || values.length != sorts[bucket].getSort().length) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    EqQueryCommand.CURSOR_MARK + " doesn't match the sorts of the subqueries");
+        }
+        // the uniqueKey breaks the ties, not the doc id
+        return new EqFieldDoc(Integer.MAX_VALUE, Float.NaN, values, bucket + 1, null);
+    }
+
+    /** the sort of a bucket in cursor mode, ending with the uniqueKey */
+    public static Sort withTieBreak(Sort sort, SchemaField uniqueKey) {
+        if (uniqueKey == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    EqQueryCommand.CURSOR_MARK + " needs a uniqueKey field");
+        }
+        SortField[] fields = sort.getSort();
+        for (SortField field : fields) {
+            if (uniqueKey.getName().equals(field.getField())) {
+                return sort;
+            }
+        }
+        SortField[] withKey = Arrays.copyOf(fields, fields.length + 1);
+        withKey[fields.length] = uniqueKey.getSortField(false);
+        return new Sort(withKey);
+    }
+
+    /** the cursor of the totem, null for the first page */
+    public static EqCursorMark parse(String totem) {
+        if (totem == null || START.equals(totem)) {
+            return null;
+        }
+        List<?> list;
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(totem);
+            list = (List<?>) new JavaBinCodec().unmarshal(new ByteArrayInputStream(bytes));
+        } catch (IOException | RuntimeException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    "unable to parse " + EqQueryCommand.CURSOR_MARK + ": " + totem, e);
+        }
+        if (list.size() < 2 || !(list.get(0) instanceof Integer) || !(list.get(1) instanceof Integer)
+                || (Integer) list.get(0) < 0 || (Integer) list.get(1) < 0) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    "unable to parse " + EqQueryCommand.CURSOR_MARK + ": " + totem);
+        }
+        Object[] values = new Object[list.size() - 2];
+        for (int i = 0; i < values.length; i++) {
+            Object value = list.get(i + 2);
+            values[i] = value instanceof byte[] ? new BytesRef((byte[]) value) : value;
+        }
+        return new EqCursorMark((Integer) list.get(0), (Integer) list.get(1), values);
+    }
+
+    public String serialize() {
+        List<Object> list = new ArrayList<>(values.length + 2);
+        list.add(bucket);
+        list.add(docs);
+        for (Object value : values) {
+            // the sort values of string fields are BytesRefs
+            if (value instanceof BytesRef) {
+                BytesRef ref = (BytesRef) value;
+                value = Arrays.copyOfRange(ref.bytes, ref.offset, ref.offset + ref.length);
+            }
+            list.add(value);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new JavaBinCodec().marshal(list, out);
+        } catch (IOException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    "unable to serialize " + EqQueryCommand.CURSOR_MARK, e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(out.toByteArray());
+    }
+}
@@ -0,0 +1,42 @@
+package org.apache.solr.search.eq;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.EqDocSetSource;
+import org.apache.lucene.search.Query;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * The doc sets of the constant score subqueries of the '&lt;&lt;' queries of
+ * a request, taken from the filterCache of its searcher. A doc set is looked
+ * up when the first segment asks for it, the subqueries of the seeded
+ * buckets and of the buckets which never score are not searched.
+ */
+public class EqFilterCacheDocSets implements EqDocSetSource {
+
+    private final SolrIndexSearcher searcher;
+    private final Map<Query, DocSet> docSets = new HashMap<>();
+
+    public EqFilterCacheDocSets(SolrIndexSearcher searcher) {
+        this.searcher = searcher;
+    }
+
+    public SolrIndexSearcher getSearcher() {
+        return searcher;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(Query query, LeafReaderContext context) throws IOException {
+        DocSet docs = docSets.get(query);
+        if (docs == null) {
+            docs = searcher.getDocSet(query);
+            docSets.put(query, docs);
+        }
+        return docs.getTopFilter().getDocIdSet(context, null);
+    }
+}
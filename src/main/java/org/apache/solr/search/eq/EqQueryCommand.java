@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.lucene.search.EqExecutionMode;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.EqSortField;
 import org.apache.solr.common.SolrException;
@@ -20,16 +21,41 @@ public class EqQueryCommand extends QueryCommand {
 
     public static final String SUB_QUERY_SORT_PREFIX = "sort_";
     public static final String SUB_QUERY_LIMIT_PREFIX = "lim_";
+    public static final String EXECUTION_MODE = "eq.mode";
+
+    /* deep paging of '<<' results, see EqCursorMark */
+    public static final String CURSOR_MARK = "eq.cursorMark";
+    public static final String NEXT_CURSOR_MARK = "eq.nextCursorMark";
+
+    /* pages starting at this offset skip the buckets before them, see EqBucketPlanner */
+    public static final String PLAN_START = "eq.planStart";
+    public static final int PLAN_START_DEFAULT = 1000;
+
+    /* the hits are counted exactly up to the threshold, numFound is a lower bound beyond it */
+    public static final String TOTAL_HITS_THRESHOLD = "eq.totalHitsThreshold";
+    /* response header entry, false if numFound may be a lower bound */
+    public static final String NUM_FOUND_EXACT = "numFoundExact";
+
+    /* the number of docs of each bucket, returned for requests without rows */
+    public static final String BUCKET_COUNTS = "eq.bucketCounts";
+
+    /* fills a doc set of each bucket while collecting, see EqTopFieldCollector#collectDocSets */
+    public static final String BUCKET_DOC_SETS = "eq.bucketDocSets";
+    /* JSON facets computed for each bucket, below the JSON facet BUCKET_FACET_NAME */
+    public static final String BUCKET_FACET = "eq.bucketFacet";
+    public static final String BUCKET_FACET_NAME = "sqidx";
 
     private QueryCommand originCmd;
 
     private Map<String, Sort> subQuerySorts;
     private Map<String, Integer> subQueryLimits;
+    private EqExecutionMode executionMode;
 
     public EqQueryCommand(QueryCommand cmd, SolrParams params, IndexSchema indexSchema) {
         this.originCmd = cmd;
-        this.setSubQuerySorts(getSubQuerySorts(params, indexSchema));
-        this.setSubQueryLimits(getSubQueryLimits(params));
+        this.setSubQuerySorts(parseSubQuerySorts(params, indexSchema));
+        this.setSubQueryLimits(parseSubQueryLimits(params));
+        this.setExecutionMode(parseExecutionMode(params));
     }
 
     public QueryCommand getOriginCmd() {
@@ -58,7 +84,44 @@ public class EqQueryCommand extends QueryCommand {
         return this;
     }
 
-    private Map<String, Sort> getSubQuerySorts(SolrParams params, IndexSchema schema) {
+    public EqExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public QueryCommand setExecutionMode(EqExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    public static EqExecutionMode parseExecutionMode(SolrParams params) {
+        try {
+            return EqExecutionMode.fromString(params.get(EXECUTION_MODE));
+        } catch (IllegalArgumentException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    /** the totem of the cursor, null without deep paging */
+    public static String parseCursorMark(SolrParams params) {
+        return params.get(CURSOR_MARK);
+    }
+
+    /** the facets of the buckets need their doc sets */
+    public static boolean parseBucketDocSets(SolrParams params) {
+        return params.getBool(BUCKET_DOC_SETS, false) || params.get(BUCKET_FACET) != null;
+    }
+
+    /** the threshold of the exact hit count, Integer.MAX_VALUE counts all the hits */
+    public static int parseTotalHitsThreshold(SolrParams params) {
+        int threshold = params.getInt(TOTAL_HITS_THRESHOLD, Integer.MAX_VALUE);
+        if (threshold < 0) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, TOTAL_HITS_THRESHOLD + " must be >= 0: " + threshold);
+        }
+        return threshold;
+    }
+
+    /** the sorts of the subqueries keyed by the param name, sort_i for the subquery i */
+    public static Map<String, Sort> parseSubQuerySorts(SolrParams params, IndexSchema schema) {
         Map<String, Sort> subQSorts = new HashMap<>();
 
         for (Map.Entry<String, String[]> entry : params) {
@@ -96,7 +159,8 @@ public class EqQueryCommand extends QueryCommand {
         return subQSorts;
     }
 
-    private Map<String, Integer> getSubQueryLimits(SolrParams params) {
+    /** the limits of the subqueries keyed by the param name, lim_i for the subquery i */
+    public static Map<String, Integer> parseSubQueryLimits(SolrParams params) {
         Map<String, Integer> subqLimits = new HashMap<>();
 
         for (Map.Entry<String, String[]> entry : params) {
@@ -0,0 +1,143 @@
+package org.apache.solr.search.eq;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.lucene.search.EqDocSetSource;
+import org.apache.lucene.search.EqTopFieldCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+
+/**
+ * The state of a '&lt;&lt;' query within a request: the parsed sub query
+ * parameters, the collector with the resolved sorts and limits and the score
+ * modes of the subqueries.
+ *
+ * The state is kept in the context of the request, so the query itself
+ * stays a value object which can be cached and shared between threads.
+ */
+public class EqQueryState {
+
+    private static final String CONTEXT_KEY = EqQueryState.class.getName();
+    private static final String DOC_SETS_KEY = EqQueryState.class.getName() + ".docSets";
+    private static final String DOC_SET_SOURCE_KEY = EqQueryState.class.getName() + ".docSetSource";
+
+    private final EqQueryCommand cmd;
+    private final EqTopFieldCollector collector;
+    private final ScoreMode[] subScoreModes;
+
+    /* leading buckets seeded from the EqSubQueryCache, their subqueries are not searched */
+    private int seededBuckets;
+
+    public EqQueryState(EqQueryCommand cmd, EqTopFieldCollector collector, int seededBuckets) {
+        this.cmd = cmd;
+        this.collector = collector;
+        this.subScoreModes = collector.subScoreModes();
+        this.seededBuckets = seededBuckets;
+    }
+
+    public EqQueryCommand getQueryCommand() {
+        return cmd;
+    }
+
+    public EqTopFieldCollector getCollector() {
+        return collector;
+    }
+
+    public ScoreMode[] getSubScoreModes() {
+        return subScoreModes;
+    }
+
+    public int getSeededBuckets() {
+        return seededBuckets;
+    }
+
+    /**
+     * Whether the collector counted all the hits of the query. Beyond the
+     * threshold of the query it may have skipped some, numFound is a lower
+     * bound then.
+     */
+    public TotalHits.Relation getTotalHitsRelation() {
+        TopDocs topDocs = collector.getSavedTopDocs();
+        return topDocs == null ? TotalHits.Relation.EQUAL_TO : topDocs.totalHits.relation;
+    }
+
+    /**
+     * Called once the collector has been filled. Any later search of the
+     * query within the request, e.g. for a doc set, has to evaluate all
+     * the subqueries.
+     */
+    public void endCollection() {
+        seededBuckets = 0;
+    }
+
+    /** the state of the query in the current request, null if there is none */
+    public static EqQueryState get(Query query) {
+        SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+        return info == null ? null : get(info.getReq(), query);
+    }
+
+    /** the state of the query in the request, null if the query has not been executed */
+    @SuppressWarnings("unchecked")
+    public static EqQueryState get(SolrQueryRequest req, Query query) {
+        Map<Query, EqQueryState> states = (Map<Query, EqQueryState>) req.getContext().get(CONTEXT_KEY);
+        return states == null ? null : states.get(query);
+    }
+
+    /**
+     * Lets the collector of the query fill the doc set of the search and, with
+     * perBucket, the doc sets of its buckets, see
+     * EqTopFieldCollector#collectDocSets. The search itself doesn't ask Solr
+     * for a doc set then, the query is evaluated once.
+     */
+    @SuppressWarnings("unchecked")
+    public static void collectDocSets(SolrQueryRequest req, Query query, boolean perBucket) {
+        Map<Query, Boolean> docSets = (Map<Query, Boolean>) req.getContext().get(DOC_SETS_KEY);
+        if (docSets == null) {
+            docSets = new IdentityHashMap<>();
+            req.getContext().put(DOC_SETS_KEY, docSets);
+        }
+        docSets.put(query, perBucket);
+    }
+
+    /** null if the collector of the query doesn't fill the doc sets, else whether it fills one per bucket */
+    @SuppressWarnings("unchecked")
+    public static Boolean collectsDocSets(SolrQueryRequest req, Query query) {
+        Map<Query, Boolean> docSets = (Map<Query, Boolean>) req.getContext().get(DOC_SETS_KEY);
+        return docSets == null ? null : docSets.get(query);
+    }
+
+    /**
+     * Lets the '&lt;&lt;' queries of the request match their constant score
+     * subqueries from the doc sets of the searcher of the source.
+     */
+    public static void setDocSetSource(SolrQueryRequest req, EqFilterCacheDocSets source) {
+        req.getContext().put(DOC_SET_SOURCE_KEY, source);
+    }
+
+    /** the doc set source of the current request for the searcher, null if there is none */
+    public static EqDocSetSource getDocSetSource(IndexSearcher searcher) {
+        SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+        if (info == null) {
+            return null;
+        }
+        EqFilterCacheDocSets source = (EqFilterCacheDocSets) info.getReq().getContext().get(DOC_SET_SOURCE_KEY);
+        return source != null && source.getSearcher() == searcher ? source : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void set(SolrQueryRequest req, Query query, EqQueryState state) {
+        Map<Query, EqQueryState> states = (Map<Query, EqQueryState>) req.getContext().get(CONTEXT_KEY);
+        if (states == null) {
+            // equal queries of a request still have their own state
+            states = new IdentityHashMap<>();
+            req.getContext().put(CONTEXT_KEY, states);
+        }
+        states.put(query, state);
+    }
+}
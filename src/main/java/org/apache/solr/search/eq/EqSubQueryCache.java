@@ -0,0 +1,199 @@
+package org.apache.solr.search.eq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.EqFieldDoc;
+import org.apache.lucene.search.EqTopFieldCollector;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.search.QueryCommand;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Top docs of single subqueries, shared by all the '&lt;&lt;' queries of a
+ * searcher. The same subquery often comes with different queries, for
+ * example the one prepended by the MatchQueryComponent.
+ *
+ * Only the leading limited buckets are seeded from the cache. The docs of
+ * such a bucket are the top docs of its subquery without the docs of the
+ * buckets before it, so they don't depend on the live subqueries. The
+ * cached entry of the bucket i keeps the top docs up to the sum of the
+ * limits of the buckets 0..i.
+ *
+ * The cache is the user cache {@link #NAME} of solrconfig.xml, use the
+ * maxRamMB of the LRUCache to bound its memory and the
+ * {@link EqSubQueryCacheRegenerator} to autowarm it.
+ */
+public class EqSubQueryCache {
+
+    public static final String NAME = "eqSubQueryCache";
+
+    private EqSubQueryCache() {
+    }
+
+    public static class Key {
+
+        final Query query;
+        final Sort sort;
+        final int size;
+        final List<Query> filters;
+
+        Key(Query query, Sort sort, int size, List<Query> filters) {
+            this.query = query;
+            this.sort = sort;
+            this.size = size;
+            this.filters = filters;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return size == key.size && query.equals(key.query) && sort.equals(key.sort) && filters.equals(key.filters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(query, sort, size, filters);
+        }
+
+        @Override
+        public String toString() {
+            return query + " sort=" + sort + " size=" + size + " filters=" + filters;
+        }
+    }
+
+    public static class Entry implements Accountable {
+
+        private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(Entry.class);
+        private static final long FIELD_DOC_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(FieldDoc.class);
+        private static final long VALUE_RAM_BYTES_USED = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + Long.BYTES;
+
+        final FieldDoc[] docs;
+        private final long ramBytesUsed;
+
+        Entry(FieldDoc[] docs) {
+            this.docs = docs;
+            long bytes = BASE_RAM_BYTES_USED + RamUsageEstimator.shallowSizeOf(docs);
+            for (FieldDoc doc : docs) {
+                bytes += FIELD_DOC_RAM_BYTES_USED + RamUsageEstimator.shallowSizeOf(doc.fields);
+                for (Object value : doc.fields) {
+                    bytes += value instanceof BytesRef ?
+                            VALUE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(((BytesRef) value).bytes) : VALUE_RAM_BYTES_USED;
+                }
+            }
+            this.ramBytesUsed = bytes;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return ramBytesUsed;
+        }
+    }
+
+    /**
+     * Seeds the leading limited buckets of the collector from the cache.
+     * Returns the number of seeded buckets, their subqueries must not be
+     * evaluated by the search.
+     */
+    @SuppressWarnings("unchecked")
+    public static int seed(SolrIndexSearcher searcher, QueryCommand cmd, List<Query> subqueries, Sort[] sorts, int[] limits,
+                           int numHits, EqTopFieldCollector collector) throws IOException {
+        SolrCache<Key, Entry> cache = searcher.getCache(NAME);
+        // the doc set of the search has to contain the docs of all the subqueries
+        if (cache == null || cmd.getFilter() != null || cmd.isNeedDocSet()) {
+            return 0;
+        }
+
+        int seeded = 0;
+        while (seeded < limits.length && limits[seeded] > 0 && plainSort(sorts[seeded]) != null) {
+            seeded++;
+        }
+        if (seeded == 0) {
+            return 0;
+        }
+
+        List<Query> filters = cmd.getFilterList() != null ? new ArrayList<>(cmd.getFilterList()) : Collections.emptyList();
+        EqFieldDoc[][] buckets = new EqFieldDoc[seeded][];
+        FixedBitSet seededDocs = new FixedBitSet(searcher.maxDoc());
+        int size = 0;
+
+        for (int i = 0; i < seeded; i++) {
+            // the collector doesn't keep more than numHits docs in a bucket
+            int limit = Math.min(limits[i], numHits);
+            size += limit;
+
+            Key key = new Key(subqueries.get(i), plainSort(sorts[i]), size, filters);
+            Entry entry = cache.get(key);
+            if (entry == null) {
+                entry = compute(searcher, key);
+                cache.put(key, entry);
+            }
+
+            List<EqFieldDoc> bucket = new ArrayList<>(limit);
+            for (FieldDoc doc : entry.docs) {
+                if (bucket.size() == limit) {
+                    break;
+                }
+                if (!seededDocs.get(doc.doc)) {
+                    seededDocs.set(doc.doc);
+                    bucket.add(new EqFieldDoc(doc.doc, doc.score, doc.fields, i + 1, null));
+                }
+            }
+            buckets[i] = bucket.toArray(new EqFieldDoc[bucket.size()]);
+        }
+
+        collector.seed(buckets, seededDocs);
+        return seeded;
+    }
+
+    static Entry compute(SolrIndexSearcher searcher, Key key) throws IOException {
+        Query query = key.query;
+        if (!key.filters.isEmpty()) {
+            query = new BooleanQuery.Builder()
+                    .add(key.query, BooleanClause.Occur.MUST)
+                    .add(searcher.getDocSet(key.filters).getTopFilter(), BooleanClause.Occur.FILTER)
+                    .build();
+        }
+
+        TopFieldDocs top = searcher.search(query, key.size, key.sort, true);
+        FieldDoc[] docs = new FieldDoc[top.scoreDocs.length];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = (FieldDoc) top.scoreDocs[i];
+        }
+        return new Entry(docs);
+    }
+
+    /*
+     * The sort of the bucket with the standard comparators, the relevance
+     * comparator of the bucket needs the EqDisjunctionMaxScorer. Null if the
+     * sort has a custom comparator.
+     */
+    private static Sort plainSort(Sort sort) {
+        SortField[] fields = sort.getSort();
+        SortField[] plain = new SortField[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].getType() == SortField.Type.CUSTOM || fields[i].getType() == SortField.Type.REWRITEABLE) {
+                return null;
+            }
+            plain[i] = new SortField(fields[i].getField(), fields[i].getType(), fields[i].getReverse());
+        }
+        return new Sort(plain);
+    }
+}
@@ -0,0 +1,23 @@
+package org.apache.solr.search.eq;
+
+import java.io.IOException;
+
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Autowarms the {@link EqSubQueryCache} of a new searcher: the top docs of
+ * the subqueries are computed again on the new index.
+ */
+public class EqSubQueryCacheRegenerator implements CacheRegenerator {
+
+    @Override
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey,
+                                  Object oldVal) throws IOException {
+        EqSubQueryCache.Key key = (EqSubQueryCache.Key) oldKey;
+        newCache.put(key, EqSubQueryCache.compute(newSearcher, key));
+        return true;
+    }
+}
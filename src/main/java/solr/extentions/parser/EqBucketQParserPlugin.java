@@ -0,0 +1,49 @@
+package solr.extentions.parser;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.eq.EqBucketQuery;
+
+/**
+ * Parses a bucket of the '&lt;&lt;' result of the request: <code>{!eqbucket b=2}</code>
+ * matches the docs of the second subquery not matched by the first one. The
+ * bucket is numbered like sqidx. It restricts a JSON facet domain or makes a
+ * query facet of the bucket.
+ *
+ * @see EqBucketQuery
+ */
+public class EqBucketQParserPlugin extends QParserPlugin {
+
+    public static final String NAME = "eqbucket";
+
+    public static final String BUCKET = "b";
+
+    @Override
+    public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+        return new QParser(qstr, localParams, params, req) {
+
+            @Override
+            public Query parse() throws SyntaxError {
+                String bucket = localParams.get(BUCKET);
+                if (bucket == null) {
+                    throw new SyntaxError("missing parameter " + BUCKET);
+                }
+                int sqidx;
+                try {
+                    sqidx = Integer.parseInt(bucket.trim());
+                } catch (NumberFormatException e) {
+                    throw new SyntaxError("bad bucket " + bucket);
+                }
+                if (sqidx < 1) {
+                    throw new SyntaxError("the buckets start with 1: " + bucket);
+                }
+                return new EqBucketQuery(sqidx - 1);
+            }
+        };
+    }
+
+}
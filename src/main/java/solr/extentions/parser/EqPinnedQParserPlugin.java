@@ -0,0 +1,66 @@
+package solr.extentions.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.search.EqPinnedQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SyntaxError;
+
+/**
+ * Parses an ordered list of pinned ids: <code>{!pinned ids=a,b,c}</code>.
+ * The field defaults to the uniqueKey field and can be set with <code>f</code>.
+ *
+ * @see EqPinnedQuery
+ */
+public class EqPinnedQParserPlugin extends QParserPlugin {
+
+    public static final String NAME = "pinned";
+
+    public static final String IDS = "ids";
+
+    @Override
+    public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+        return new QParser(qstr, localParams, params, req) {
+
+            @Override
+            public Query parse() throws SyntaxError {
+                String ids = localParams.get(IDS);
+                if (ids == null) {
+                    throw new SyntaxError("missing parameter " + IDS);
+                }
+
+                SchemaField field = localParams.get(CommonParams.FIELD) != null ?
+                        req.getSchema().getField(localParams.get(CommonParams.FIELD)) :
+                        req.getSchema().getUniqueKeyField();
+                FieldType type = field.getType();
+                if (type.isPointField()) {
+                    throw new SyntaxError("pinned ids need an indexed string field: " + field.getName());
+                }
+
+                List<BytesRef> terms = new ArrayList<>();
+                BytesRefBuilder term = new BytesRefBuilder();
+                for (String id : StrUtils.splitSmart(ids, ',')) {
+                    id = id.trim();
+                    if (id.isEmpty())
+                        continue;
+                    type.readableToIndexed(id, term);
+                    terms.add(term.toBytesRef());
+                }
+
+                return new EqPinnedQuery(field.getName(), terms);
+            }
+        };
+    }
+
+}
@@ -46,6 +46,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.RegexpQuery;
 import org.apache.lucene.search.WildcardQuery;
 import org.apache.lucene.search.EqDisjunctionMaxQuery;
+import org.apache.lucene.search.EqPinnedQuery;
 import org.apache.lucene.util.QueryBuilder;
 import org.apache.lucene.util.Version;
 import org.apache.lucene.util.automaton.Automata;
@@ -54,6 +55,7 @@ import org.apache.lucene.util.automaton.Operations;
 import org.apache.solr.analysis.ReversedWildcardFilterFactory;
 import org.apache.solr.analysis.TokenizerChain;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.parser.QueryParser.Operator;
 import org.apache.solr.query.FilterQuery;
 import org.apache.solr.schema.FieldType;
@@ -63,6 +65,7 @@ import org.apache.solr.search.QParser;
 import org.apache.solr.search.QueryUtils;
 import org.apache.solr.search.SolrConstantScoreQuery;
 import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.eq.EqQueryCommand;
 
 /** This class is overridden by QueryParser in QueryParser.jj
  * and acts to separate the majority of the Java code from the .jj grammar file.
@@ -784,12 +787,21 @@ public abstract class SolrQueryParserBase extends QueryBuilder {
     }
 
     protected Query getDisjQuery(List<BooleanClause> clauses) throws SyntaxError {
+        SolrParams params = parser.getReq().getParams();
         List<Query> queries = new ArrayList<>();
         for (BooleanClause clause : clauses) {
-            queries.add(rawToNormal(clause.getQuery()));
+            Query q = rawToNormal(clause.getQuery());
+            // pinned docs keep the order of their ids, see EqPinnedQuery
+            String sortParam = EqQueryCommand.SUB_QUERY_SORT_PREFIX + queries.size();
+            if (q instanceof EqPinnedQuery && params.get(sortParam) != null) {
+                throw new SyntaxError(sortParam + " can't sort the pinned subquery " + (queries.size() + 1));
+            }
+            queries.add(q);
         }
 
-        return new EqDisjunctionMaxQuery(queries);
+        return new EqDisjunctionMaxQuery(queries, EqQueryCommand.parseSubQuerySorts(params, schema),
+                EqQueryCommand.parseSubQueryLimits(params), EqQueryCommand.parseExecutionMode(params),
+                EqQueryCommand.parseCursorMark(params), EqQueryCommand.parseTotalHitsThreshold(params));
     }
 
     // called from parser
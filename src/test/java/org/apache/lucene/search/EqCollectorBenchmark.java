@@ -0,0 +1,132 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the keyed collectors of EqKeyedFieldCollector with the generic
+ * ones for the sorts they cover, with and without a limited bucket. Not a
+ * test, run it from the test classpath:
+ *
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; org.apache.lucene.search.EqCollectorBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EqCollectorBenchmark {
+
+    @Param({ "score", "long", "string" })
+    public String sort;
+
+    @Param({ "0", "10" })
+    public int limit;
+
+    @Param({ "10", "1000" })
+    public int numHits;
+
+    private Directory dir;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private EqDisjunctionMaxQuery query;
+    private Sort[] sorts;
+    private int[] limits;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = new ByteBuffersDirectory();
+        Random random = new Random(42);
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            for (int i = 0; i < 200_000; i++) {
+                Document d = new Document();
+                d.add(new StringField("sid_s", "s" + random.nextInt(3), Field.Store.NO));
+                d.add(new StringField("tag_s", "t" + random.nextInt(5), Field.Store.NO));
+                d.add(new NumericDocValuesField("id_l", random.nextInt(1_000_000)));
+                d.add(new SortedDocValuesField("title_s", new BytesRef("title " + random.nextInt(100_000))));
+                writer.addDocument(d);
+            }
+        }
+        reader = DirectoryReader.open(dir);
+        searcher = new IndexSearcher(reader);
+        // the collectors need the EqDisjunctionMaxScorer, not a cached one
+        searcher.setQueryCache(null);
+
+        query = new EqDisjunctionMaxQuery(Arrays.asList(new TermQuery(new Term("sid_s", "s0")),
+                new TermQuery(new Term("tag_s", "t1")), new TermQuery(new Term("sid_s", "s1"))));
+
+        SortField field;
+        switch (sort) {
+            case "long":
+                field = new SortField("id_l", SortField.Type.LONG);
+                break;
+            case "string":
+                field = new SortField("title_s", SortField.Type.STRING);
+                break;
+            default:
+                field = new SortField("score", SortField.Type.SCORE);
+        }
+        sorts = new Sort[] { new Sort(field), new Sort(field), new Sort(field) };
+        limits = new int[] { limit, 0, 0 };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Benchmark
+    public TopDocs keyed() throws IOException {
+        return search(true);
+    }
+
+    @Benchmark
+    public TopDocs generic() throws IOException {
+        return search(false);
+    }
+
+    private TopDocs search(boolean specialized) throws IOException {
+        EqTopFieldCollector c = EqTopFieldCollector.create(sorts, limits, numHits, null, false, false, false,
+                Integer.MAX_VALUE, EqExecutionMode.UNION, specialized);
+        searcher.search(query, c);
+        return c.topDocs(0, numHits);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EqCollectorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
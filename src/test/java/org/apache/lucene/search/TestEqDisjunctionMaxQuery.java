@@ -3,8 +3,13 @@ package org.apache.lucene.search;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.MockAnalyzer;
@@ -16,13 +21,16 @@ import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.RandomIndexWriter;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.NamedThreadFactory;
 import org.apache.lucene.util.TestRuleLimitSysouts;
+import org.apache.lucene.util.TestUtil;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -387,24 +395,27 @@ public class TestEqDisjunctionMaxQuery extends LuceneTestCase {
 
         ColFac col = new ColFac(new Sort[] { byScore, byId });
 
+        // with numHits = 1 the first bucket is full after doc 0, the second bucket
+        // doesn't collect anymore. The second bucket keeps only the docs it can
+        // still show after the first one.
         TestData[] docId0 = {
-                new TestData(2, 4, docs(0)),
-                new TestData(3, 4, docs(0,1)),
-                new TestData(4, 4, docs(0,1,2)),
+                new TestData(1, 4, docs(0)),
+                new TestData(2, 4, docs(0,1)),
+                new TestData(3, 4, docs(0,1,2)),
                 new TestData(4, 4, docs(0,1,2,3)),
         };
 
         TestData[] docId1 = {
                 new TestData(2, 4, docs(1)),
-                new TestData(3, 4, docs(1,0)),
-                new TestData(4, 4, docs(1,0,2)),
+                new TestData(2, 4, docs(1,0)),
+                new TestData(3, 4, docs(1,0,2)),
                 new TestData(4, 4, docs(1,0,2,3)),
         };
 
         TestData[] docId2 = {
                 new TestData(2, 4, docs(2)),
                 new TestData(3, 4, docs(2,0)),
-                new TestData(4, 4, docs(2,0,1)),
+                new TestData(3, 4, docs(2,0,1)),
                 new TestData(4, 4, docs(2,0,1,3)),
         };
 
@@ -598,21 +609,21 @@ public class TestEqDisjunctionMaxQuery extends LuceneTestCase {
         col.sqidx = new InvariantSqidx(sqidx(1, 1));
 
         col.check(q(sid("a"), sid("b")), 2, 4, docs(0, 1));
-        col.check(q(sid("b"), sid("a")), 3, 4, docs(1, 2));
+        col.check(q(sid("b"), sid("a")), 2, 4, docs(1, 2));
 
         col = new ColFac(sort(byId, byId));
         col.numHits = 1;
         col.sqidx = new InvariantSqidx(sqidx(1));
 
         col.check(q(sid("a"), sid("b")), 1, 4, docs(0));
-        col.check(q(sid("b"), sid("a")), 2, 4, docs(1));
+        col.check(q(sid("b"), sid("a")), 1, 4, docs(1));
 
         col = new ColFac(sort(byId, byId));
         col.numHits = 3;
         col.sqidx = new InvariantSqidx(sqidx(1, 1, 1));
 
         col.check(q(sid("a"), sid("b")), 3, 4, docs(0, 1, 2));
-        col.check(q(sid("b"), sid("a")), 4, 4, docs(1, 2, 3));
+        col.check(q(sid("b"), sid("a")), 3, 4, docs(1, 2, 3));
 
         col = new ColFac(sort(byId, byId));
         col.numHits = 4;
@@ -626,17 +637,479 @@ public class TestEqDisjunctionMaxQuery extends LuceneTestCase {
         col.numHits = 1;
         col.sqidx = new InvariantSqidx(sqidx(1));
 
-        col.check(q(sid("a"), sid("b")), 2, 4, docs(0));
+        // the docs pushed out of the full first bucket are only counted
+        col.check(q(sid("a"), sid("b")), 1, 4, docs(0));
         col.check(q(sid("b"), sid("a")), 2, 4, docs(1));
 
         col = new ColFac(sort(byIdDesc, byId), limit(1, 0));
         col.numHits = 1;
         col.sqidx = new InvariantSqidx(sqidx(1));
 
-        col.check(q(sid("a"), sid("b")), 2, 3, docs(3));
+        col.check(q(sid("a"), sid("b")), 1, 3, docs(3));
         col.check(q(sid("b"), sid("a")), 2, 4, docs(3));
     }
 
+    public void testLowerBucketsStopCollecting() throws Exception {
+        ColFac col = new ColFac(sort(byId, byId));
+        col.numHits = 1;
+        col.check(q(id(0), sid("a")), 1, 4, docs(0), sqidx(1));
+        col.check(q(id(3), sid("a")), 1, 4, docs(3), sqidx(1));
+
+        // without exact total hits the sub scorer of the second bucket is dropped
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byId, byId), limit(0, 0), 1, null, false, false, false, false);
+        indexSearcher.search(q(id(0), sid("a")), c);
+        TopDocs topDocs = c.topDocs(0, 10);
+
+        assertEquals(1, topDocs.scoreDocs.length);
+        assertEquals(0, topDocs.scoreDocs[0].doc);
+        assertEquals(1, topDocs.totalHits.value);
+        assertEquals(TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO, topDocs.totalHits.relation);
+    }
+
+    public void testTotalHitsThreshold() throws Exception {
+        // all the hits are below the threshold
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byId, byId), limit(0, 0), 1, null, false, false, false, 10,
+                EqExecutionMode.UNION);
+        indexSearcher.search(q(id(0), sid("a")), c);
+        TopDocs topDocs = c.topDocs(0, 10);
+        assertEquals(4, topDocs.totalHits.value);
+        assertEquals(TotalHits.Relation.EQUAL_TO, topDocs.totalHits.relation);
+
+        // past the threshold the sub scorer of the second bucket is dropped
+        c = EqTopFieldCollector.create(sort(byId, byId), limit(0, 0), 1, null, false, false, false, 1, EqExecutionMode.UNION);
+        indexSearcher.search(q(id(0), sid("a")), c);
+        topDocs = c.topDocs(0, 10);
+        assertEquals(1, topDocs.scoreDocs.length);
+        assertEquals(0, topDocs.scoreDocs[0].doc);
+        assertTrue("totalHits", topDocs.totalHits.value >= 2 && topDocs.totalHits.value < 4);
+        assertEquals(TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO, topDocs.totalHits.relation);
+
+        // the threshold only allows skipping by score if it can be passed
+        c = EqTopFieldCollector.create(sort(byScore, byId), limit(0, 0), 1, null, false, false, false, 100, EqExecutionMode.UNION);
+        assertEquals(ScoreMode.TOP_SCORES, c.scoreMode());
+    }
+
+    public void testCollectDocSets() throws Exception {
+        // neither the threshold nor the cascade drop docs of the doc sets
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byId, byId), limit(0, 0), 1, null, false, false, false, 1,
+                EqExecutionMode.CASCADE);
+        c.collectDocSets(indexSearcher.getIndexReader().maxDoc(), true);
+        indexSearcher.search(q(id(0), sid("a")), c);
+        TopDocs topDocs = c.topDocs(0, 10);
+        assertEquals(1, topDocs.scoreDocs.length);
+        assertEquals(0, topDocs.scoreDocs[0].doc);
+        assertEquals(4, topDocs.totalHits.value);
+
+        assertEquals(4, c.getDocSet().cardinality());
+        assertEquals(1, c.getBucketDocSets()[0].cardinality());
+        assertTrue(c.getBucketDocSets()[0].get(0));
+        assertEquals(3, c.getBucketDocSets()[1].cardinality());
+        assertFalse(c.getBucketDocSets()[1].get(0));
+    }
+
+    public void testSkipNonCompetitiveScores() throws Exception {
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byScore, byId), limit(0, 0), 1, null, false, false, false, true);
+        assertEquals(ScoreMode.COMPLETE, c.scoreMode());
+
+        // a limited bucket pushes docs down, all of them have to be scored
+        c = EqTopFieldCollector.create(sort(byId, byScore), limit(1, 0), 1, null, false, false, false, false);
+        assertEquals(ScoreMode.COMPLETE, c.scoreMode());
+
+        // the short docs at the start score highest, the long ones after fill many impacts blocks
+        final int n = 5000;
+        Similarity bm25 = new BM25Similarity();
+        Directory dir = newDirectory();
+        RandomIndexWriter writer = new RandomIndexWriter(random(), dir, newIndexWriterConfig(new MockAnalyzer(random()))
+                .setSimilarity(bm25).setCodec(TestUtil.getDefaultCodec()).setMergePolicy(newLogMergePolicy()));
+        for (int d = 0; d < n; d++) {
+            writer.addDocument(doc(String.valueOf(d), d < 20 ? "a a a a a" : "a x x x x x x x x x"));
+        }
+        writer.forceMerge(1);
+        IndexReader reader = writer.getReader();
+        writer.close();
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(bm25);
+
+        EqTopFieldCollector complete = EqTopFieldCollector.create(sort(byScore, byId), limit(0, 0), 10, null, false, false, false,
+                true);
+        assertEquals(ScoreMode.COMPLETE, complete.scoreMode());
+        searcher.search(q(sid("a"), id(0)), complete);
+        TopDocs expected = complete.topDocs();
+        assertEquals(n, expected.totalHits.value);
+
+        // without exact total hits the full bucket sorted by score skips the blocks which cannot compete
+        c = EqTopFieldCollector.create(sort(byScore, byId), limit(0, 0), 10, null, false, false, false, false);
+        assertEquals(ScoreMode.TOP_SCORES, c.scoreMode());
+        final int[] visited = new int[1];
+        searcher.search(q(sid("a"), id(0)), new FilterCollector(c) {
+            @Override
+            public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+                return new FilterLeafCollector(super.getLeafCollector(context)) {
+                    @Override
+                    public void collect(int doc) throws IOException {
+                        visited[0]++;
+                        super.collect(doc);
+                    }
+                };
+            }
+        });
+        TopDocs topDocs = c.topDocs();
+        assertTrue("visited " + visited[0], visited[0] < n);
+        assertEquals(TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO, topDocs.totalHits.relation);
+        assertEquals(expected.scoreDocs.length, topDocs.scoreDocs.length);
+        for (int i = 0; i < expected.scoreDocs.length; i++) {
+            assertEquals(expected.scoreDocs[i].doc, topDocs.scoreDocs[i].doc);
+            assertEquals(expected.scoreDocs[i].score, topDocs.scoreDocs[i].score, 0f);
+        }
+        reader.close();
+        dir.close();
+    }
+
+    public void testManySubqueries() throws Exception {
+        // 70 subqueries, the mask of a doc spans two words
+        List<Query> queries = new ArrayList<>();
+        Sort[] sorts = new Sort[70];
+        int[] limits = new int[70];
+        for (int i = 0; i < 70; i++) {
+            queries.add(id(100 + i));
+            sorts[i] = byId;
+        }
+        queries.set(60, sid("b"));
+        queries.set(69, sid("a"));
+        limits[60] = 1;
+        EqDisjunctionMaxQuery q = new EqDisjunctionMaxQuery(queries);
+
+        // docs rejected by the limited bucket move to the last one
+        EqTopFieldCollector c = EqTopFieldCollector.create(sorts, limits, 10, null, false, false, false, true);
+        assertSearch(q, c, 4, 4, docs(1, 0, 2, 3), sqidx(61, 70, 70, 70));
+
+        // docs pushed out of the limited bucket move to the last one
+        sorts[60] = byIdDesc;
+        c = EqTopFieldCollector.create(sorts, limits, 10, null, false, false, false, true);
+        assertSearch(q, c, 4, 4, docs(3, 0, 1, 2), sqidx(61, 70, 70, 70));
+    }
+
+    public void testPinned() throws Exception {
+        EqPinnedQuery pinned = new EqPinnedQuery("id", Arrays.asList(new BytesRef("3"), new BytesRef("9"), new BytesRef("1")));
+
+        // the pinned docs keep the order of the ids in a single bucket
+        ColFac col = new ColFac(sort(byScore, byId));
+        col.check(q(pinned, sid("a")), 4, 4, docs(3, 1, 0, 2), sqidx(1, 1, 2, 2));
+
+        col = new ColFac(sort(byScore, byId), limit(1, 0));
+        col.check(q(pinned, sid("a")), 4, 4, docs(3, 0, 1, 2), sqidx(1, 2, 2, 2));
+    }
+
+    public void testLazySubqueryScores() throws Exception {
+        // the scores of the other subqueries are only computed if tracked
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byId, byId), limit(0, 0), 10, null, false, false, false, true);
+        indexSearcher.search(q(sid("a"), sid("b")), c);
+        EqFieldDoc doc = (EqFieldDoc) c.topDocs(0, 10).scoreDocs[1];
+        assertEquals(1, doc.doc);
+        assertTrue(doc.subqScores[1] > 0);
+        assertEquals(0f, doc.subqScores[2], 0f);
+
+        c = EqTopFieldCollector.create(sort(byId, byId), limit(0, 0), 10, null, false, true, false, true);
+        indexSearcher.search(q(sid("a"), sid("b")), c);
+        doc = (EqFieldDoc) c.topDocs(0, 10).scoreDocs[1];
+        assertEquals(1, doc.doc);
+        assertTrue(doc.subqScores[1] > 0);
+        assertTrue(doc.subqScores[2] > 0);
+    }
+
+    public void testPushedDocKeepsSlotState() throws Exception {
+        // doc 1 replaces doc 0 in the limited bucket, doc 2 pushes it down with its saved scores
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byIdDesc, byId), limit(1, 0), 10, null, false, true, false, true);
+        assertSearch(q(sid("a"), sid("b")), c, 3, 3, docs(3, 1, 2), sqidx(1, 2, 2));
+
+        c = EqTopFieldCollector.create(sort(byIdDesc, byId), limit(1, 0), 10, null, false, true, false, true);
+        indexSearcher.search(q(sid("a"), sid("b")), c);
+        EqFieldDoc doc = (EqFieldDoc) c.topDocs(0, 10).scoreDocs[1];
+        assertEquals(1, doc.doc);
+        assertTrue(doc.subqScores[1] > 0);
+        assertTrue(doc.subqScores[2] > 0);
+    }
+
+    public void testPushedDocsOfEarlierSegments() throws Exception {
+        // docs 2 and 3 of the second segment push docs 1 and 2 out of the limited bucket
+        Sort byTxtAndIdDesc = new Sort(new SortField("title_s", SortField.Type.STRING, true),
+                new SortField("id_i", SortField.Type.INT, true));
+        ColFac col = new ColFac(indexReaderSeg, sort(byTxtAndIdDesc, byId), limit(1, 0));
+        col.check(q(sid("b"), sid("a")), 4, 4, docs(3, 0, 1, 2), sqidx(1, 2, 2, 2));
+    }
+
+    public void testTotalHitsOfLimitedBuckets() throws Exception {
+        // docs 0..n-1 match the subqueries a, b, c at random, sorted by id
+        final int n = atLeast(100);
+        final boolean[][] matches = new boolean[n][3];
+        Directory dir = newDirectory();
+        RandomIndexWriter writer = new RandomIndexWriter(random(), dir,
+                newIndexWriterConfig(new MockAnalyzer(random())).setMergePolicy(newLogMergePolicy()));
+        for (int d = 0; d < n; d++) {
+            StringBuilder sid = new StringBuilder("x");
+            for (int b = 0; b < 3; b++) {
+                if (matches[d][b] = random().nextBoolean()) {
+                    sid.append(' ').append((char) ('a' + b));
+                }
+            }
+            writer.addDocument(doc(String.valueOf(d), sid.toString()));
+        }
+        IndexReader reader = writer.getReader();
+        writer.close();
+        IndexSearcher searcher = new IndexSearcher(reader);
+
+        for (int[] limits : new int[][] { limit(3, 0, 0), limit(3, 5, 0), limit(0, 4, 2), limit(2, 3, 4) }) {
+            // the window is filled by the first bucket, the others are only counted
+            EqTopFieldCollector c = EqTopFieldCollector.create(sort(byId, byId, byId), limits, 1);
+            searcher.search(new EqDisjunctionMaxQuery(Arrays.asList(sid("a"), sid("b"), sid("c"))), c);
+            TopDocs topDocs = c.topDocs(0, 1);
+            assertEquals(Arrays.toString(limits), bruteForceHits(matches, limits), topDocs.totalHits.value);
+            assertEquals(TotalHits.Relation.EQUAL_TO, topDocs.totalHits.relation);
+        }
+        reader.close();
+        dir.close();
+    }
+
+    /* each bucket keeps its lowest ids up to its limit, the others go on to the next subquery they match */
+    private static int bruteForceHits(boolean[][] matches, int[] limits) {
+        List<List<Integer>> buckets = new ArrayList<>();
+        for (int b = 0; b < limits.length; b++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (int d = 0; d < matches.length; d++) {
+            for (int b = 0; b < limits.length; b++) {
+                if (matches[d][b]) {
+                    buckets.get(b).add(d);
+                    break;
+                }
+            }
+        }
+        int hits = 0;
+        for (int b = 0; b < limits.length; b++) {
+            List<Integer> docs = buckets.get(b);
+            Collections.sort(docs);
+            int kept = limits[b] == 0 ? docs.size() : Math.min(limits[b], docs.size());
+            hits += kept;
+            for (int d : docs.subList(kept, docs.size())) {
+                for (int next = b + 1; next < limits.length; next++) {
+                    if (matches[d][next]) {
+                        buckets.get(next).add(d);
+                        break;
+                    }
+                }
+            }
+        }
+        return hits;
+    }
+
+    public void testLazyQueues() throws Exception {
+        // the queues are created by the first doc of their bucket and start small
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byId, byIdDesc), limit(0, 0), 100000);
+        assertNull(c.pqs[0]);
+        indexSearcher.search(q(id(1), sid("a")), c);
+        assertEquals(16, c.pqs[0].capacity());
+        assertEquals(3, c.pqs[1].size());
+
+        // no doc reaches the second bucket once the first one fills the window
+        c = EqTopFieldCollector.create(sort(byId, byId), limit(0, 0), 1);
+        indexSearcher.search(q(id(0), sid("a")), c);
+        assertNull(c.pqs[1]);
+
+        // the second bucket is full with the rest of the window
+        c = EqTopFieldCollector.create(sort(byId, byIdDesc), limit(0, 0), 3);
+        assertSearch(q(id(0), sid("a")), c, 3, 4, docs(0, 3, 2), sqidx(1, 2, 2));
+    }
+
+    public void testSingleHeap() throws Exception {
+        // one sort and no limits, the buckets share one queue
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byIdDesc, byIdDesc), limit(0, 0), 3);
+        assertSearch(q(sid("c"), sid("a")), c, 3, 4, docs(3, 2, 1), sqidx(1, 1, 2));
+        assertNull(c.pqs[1]);
+
+        // a doc of a lower bucket replaces the bottom of the full queue
+        c = EqTopFieldCollector.create(sort(byId, byId), limit(0, 0), 2);
+        assertSearch(q(sid("d"), sid("a")), c, 2, 4, docs(3, 0), sqidx(1, 2));
+
+        // by relevance the queue compares the scores of the entries, equal scores by doc
+        c = EqTopFieldCollector.create(sort(byScore, byScore), limit(0, 0), 10);
+        assertSearch(q(id(2), sid("a")), c, 4, 4, docs(2, 0, 1, 3), sqidx(1, 2, 2, 2));
+    }
+
+    public void testKeyedCollectors() throws Exception {
+        Directory dir = newDirectory();
+        RandomIndexWriter writer = new RandomIndexWriter(random(), dir,
+                newIndexWriterConfig(new MockAnalyzer(random())).setSimilarity(similarity).setMergePolicy(newLogMergePolicy()));
+        String[] words = { "a", "b", "c", "d" };
+        int numDocs = atLeast(200);
+        for (int i = 0; i < numDocs; i++) {
+            StringBuilder sid = new StringBuilder();
+            for (String word : words) {
+                if (random().nextBoolean()) {
+                    sid.append(word).append(' ');
+                }
+            }
+            Document d = new Document();
+            d.add(newField("id", Integer.toString(i), nonAnalyzedType));
+            d.add(newTextField("sid_s", sid.toString(), Field.Store.YES));
+            // few values for ties and some docs without a value
+            if (random().nextInt(5) > 0) {
+                int v = random().nextInt(20) - 10;
+                d.add(new NumericDocValuesField("id_i", v));
+                d.add(new NumericDocValuesField("id_l", v));
+                d.add(new FloatDocValuesField("id_fl", v));
+                d.add(new DoubleDocValuesField("id_dbl", v));
+                d.add(new SortedDocValuesField("title_s", new BytesRef("title " + v)));
+            }
+            writer.addDocument(d);
+            if (random().nextInt(30) == 0) {
+                writer.commit();
+            }
+        }
+        IndexReader reader = writer.getReader();
+        writer.close();
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(similarity);
+
+        // the keyed collectors return what the generic ones return
+        EqDisjunctionMaxQuery q = new EqDisjunctionMaxQuery(Arrays.asList(sid("a"), sid("b"), sid("c")));
+        for (Sort sort : sort(byScore, byId, byIdDesc, byLong, byFloat, byDouble, byDoubleDesc, byTxt)) {
+            for (int[] limits : new int[][] { limit(0, 0, 0), limit(3, 0, 0), limit(0, 5, 2), limit(2, 2, 0) }) {
+                int numHits = TestUtil.nextInt(random(), 1, 30);
+                EqTopFieldCollector keyed = EqTopFieldCollector.create(sort(sort, sort, sort), limits, numHits, null,
+                        true, false, false, Integer.MAX_VALUE, EqExecutionMode.UNION, true);
+                EqTopFieldCollector generic = EqTopFieldCollector.create(sort(sort, sort, sort), limits, numHits, null,
+                        true, false, false, Integer.MAX_VALUE, EqExecutionMode.UNION, false);
+                assertTrue(keyed instanceof EqKeyedFieldCollector);
+                assertFalse(generic instanceof EqKeyedFieldCollector);
+
+                searcher.search(q, keyed);
+                searcher.search(q, generic);
+                TopDocs expected = generic.topDocs(0, numHits);
+                TopDocs actual = keyed.topDocs(0, numHits);
+                String msg = sort + " " + Arrays.toString(limits) + " " + numHits;
+                assertEquals(msg, expected.totalHits, actual.totalHits);
+                assertEquals(msg, expected.scoreDocs.length, actual.scoreDocs.length);
+                for (int i = 0; i < expected.scoreDocs.length; i++) {
+                    EqFieldDoc e = (EqFieldDoc) expected.scoreDocs[i];
+                    EqFieldDoc a = (EqFieldDoc) actual.scoreDocs[i];
+                    assertEquals(msg, e.doc, a.doc);
+                    assertEquals(msg, e.subqIndex, a.subqIndex);
+                    assertEquals(msg, e.fields[0], a.fields[0]);
+                }
+            }
+        }
+
+        // a sort on two fields or mixed sorts stay generic
+        assertFalse(EqTopFieldCollector.create(sort(byId, byIdDesc), limit(0, 0), 10) instanceof EqKeyedFieldCollector);
+        assertFalse(EqTopFieldCollector.create(sort(byTxtVal, byTxtVal), limit(0, 0), 10) instanceof EqKeyedFieldCollector);
+        assertFalse(EqTopFieldCollector.create(sort(new Sort(SortField.FIELD_SCORE, new SortField("id_i", SortField.Type.INT))),
+                limit(0), 10) instanceof EqKeyedFieldCollector);
+
+        reader.close();
+        dir.close();
+    }
+
+    public void testSubScoreModes() throws Exception {
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byId, byScore), limit(0, 0), 10, null, false, false, false, true);
+        ScoreMode[] modes = c.subScoreModes();
+        assertEquals(ScoreMode.COMPLETE_NO_SCORES, modes[0]);
+        assertEquals(ScoreMode.COMPLETE, modes[1]);
+
+        // the field sorted bucket doesn't score its subquery
+        EqDisjunctionMaxQuery q = new EqDisjunctionMaxQuery(Arrays.asList(sid("c"), sid("a")),
+                Collections.singletonMap("sort_0", byId), Collections.emptyMap());
+        assertSearch(q, c, 4, 4, docs(2, 3, 0, 1), sqidx(1, 1, 2, 2));
+    }
+
+    public void testCachedSubWeights() throws Exception {
+        IndexSearcher searcher = new IndexSearcher(indexReader);
+        LRUQueryCache cache = new LRUQueryCache(100, 1 << 20, context -> true);
+        searcher.setQueryCache(cache);
+        searcher.setQueryCachingPolicy(QueryCachingPolicy.ALWAYS_CACHE);
+
+        EqDisjunctionMaxQuery q = new EqDisjunctionMaxQuery(Arrays.asList(sid("c"), sid("a")),
+                Collections.singletonMap("sort_0", byId), Collections.emptyMap());
+        Weight weight = searcher.createWeight(searcher.rewrite(q), ScoreMode.COMPLETE_NO_SCORES, 1f);
+        assertTrue(weight.isCacheable(indexReader.leaves().get(0)));
+
+        // the doc set of the id sorted bucket is cached, the routing stays the same
+        for (int i = 0; i < 2; i++) {
+            EqTopFieldCollector c = EqTopFieldCollector.create(sort(byId, byScore), limit(0, 0), 10, null, false, false, false, true);
+            searcher.search(q, c);
+            assertEquals(ScoreMode.COMPLETE, c.scoreMode());
+            TopDocs topDocs = c.topDocs(0, 10);
+            assertEquals(4, topDocs.scoreDocs.length);
+            int[] expected = docs(2, 3, 0, 1);
+            int[] expectedSqidx = sqidx(1, 1, 2, 2);
+            for (int j = 0; j < expected.length; j++) {
+                assertEquals(expected[j], topDocs.scoreDocs[j].doc);
+                assertEquals(expectedSqidx[j], ((EqFieldDoc) topDocs.scoreDocs[j]).subqIndex);
+            }
+        }
+        assertTrue(cache.getCacheCount() > 0);
+        assertTrue(cache.getHitCount() > 0);
+    }
+
+    public void testEqualsCoversSortsAndLimits() {
+        EqDisjunctionMaxQuery q = new EqDisjunctionMaxQuery(Arrays.asList(sid("c"), sid("a")),
+                Collections.singletonMap("sort_0", byId), Collections.singletonMap("lim_0", 1));
+        EqDisjunctionMaxQuery same = new EqDisjunctionMaxQuery(Arrays.asList(sid("c"), sid("a")),
+                Collections.singletonMap("sort_0", byId), Collections.singletonMap("lim_0", 1));
+        assertEquals(q, same);
+        assertEquals(q.hashCode(), same.hashCode());
+
+        assertFalse(q.equals(new EqDisjunctionMaxQuery(Arrays.asList(sid("c"), sid("a")),
+                Collections.singletonMap("sort_0", byId), Collections.singletonMap("lim_0", 2))));
+        assertFalse(q.equals(new EqDisjunctionMaxQuery(Arrays.asList(sid("c"), sid("a")),
+                Collections.singletonMap("sort_0", byScore), Collections.singletonMap("lim_0", 1))));
+        assertFalse(q.equals(q(sid("c"), sid("a"))));
+    }
+
+    public void testRewriteUnreachableSubqueries() throws Exception {
+        // the repeated subquery and the one after *:* keep their positions without docs
+        EqDisjunctionMaxQuery q = new EqDisjunctionMaxQuery(
+                Arrays.asList(sid("c"), sid("c"), new MatchAllDocsQuery(), sid("a")));
+        EqDisjunctionMaxQuery rewritten = (EqDisjunctionMaxQuery) indexSearcher.rewrite(q);
+        assertEquals(sid("c"), rewritten.getDisjuncts().get(0));
+        assertTrue(rewritten.getDisjuncts().get(1) instanceof MatchNoDocsQuery);
+        assertTrue(rewritten.getDisjuncts().get(3) instanceof MatchNoDocsQuery);
+
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byId, byId, byId, byId), limit(0, 0, 0, 0), 10, null,
+                false, false, false, true);
+        assertSearch(q, c, 4, 4, docs(2, 3, 0, 1), sqidx(1, 1, 3, 3));
+
+        // the docs beyond the limit go to the repeated subquery
+        q = new EqDisjunctionMaxQuery(Arrays.asList(sid("c"), sid("c")), Collections.emptyMap(),
+                Collections.singletonMap("lim_0", 1));
+        assertSame(q, indexSearcher.rewrite(q));
+
+        // the limits are part of the query, the unlimited one rewrites differently
+        EqDisjunctionMaxQuery unlimited = q(sid("c"), sid("c"));
+        assertFalse(q.equals(unlimited));
+        rewritten = (EqDisjunctionMaxQuery) indexSearcher.rewrite(unlimited);
+        assertTrue(rewritten.getDisjuncts().get(1) instanceof MatchNoDocsQuery);
+
+        assertTrue(indexSearcher.rewrite(q(new MatchNoDocsQuery(), new BooleanQuery.Builder().build())) instanceof MatchNoDocsQuery);
+    }
+
+    public void testCascade() throws Exception {
+        // same order as the union
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byId, byIdDesc), limit(0, 0), 10, null, false, false, false, true,
+                EqExecutionMode.CASCADE);
+        assertSearch(q(id(2), sid("a")), c, 4, 4, docs(2, 3, 1, 0), sqidx(1, 2, 2, 2));
+
+        // the first subquery fills the window, the second one is skipped
+        c = EqTopFieldCollector.create(sort(byId, byId), limit(0, 0), 1, null, false, false, false, true, EqExecutionMode.CASCADE);
+        assertSearch(q(id(3), sid("a")), c, 1, 1, docs(3), sqidx(1));
+        assertEquals(TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO, c.getSavedTopDocs().totalHits.relation);
+
+        // AUTO keeps the union while the hits are counted exactly
+        c = EqTopFieldCollector.create(sort(byId, byId), limit(0, 0), 1, null, false, false, false, Integer.MAX_VALUE,
+                EqExecutionMode.AUTO);
+        assertSearch(q(id(3), sid("a")), c, 4, 1, docs(3), sqidx(1));
+        assertEquals(TotalHits.Relation.EQUAL_TO, c.getSavedTopDocs().totalHits.relation);
+    }
+
     public void testWithFewSegments() throws Exception {
         Directory index = newDirectory();
         RandomIndexWriter writer = new RandomIndexWriter(random(), index,
@@ -681,6 +1154,123 @@ public class TestEqDisjunctionMaxQuery extends LuceneTestCase {
         index.close();
     }
 
+    public void testParallelSlices() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2, new NamedThreadFactory("TestEqDisjunctionMaxQuery"));
+        try {
+            // one slice per segment
+            IndexSearcher searcher = new IndexSearcher(indexReaderSeg, executor);
+            searcher.setSimilarity(similarity);
+
+            assertParallel(searcher, sort(byIdDesc, byIdDesc), limit(2, 1), docs(3, 2, 1));
+            assertParallel(searcher, sort(byId, byIdDesc), limit(2, 1), docs(0, 1, 3));
+            assertParallel(searcher, sort(byId, byId), limit(1, 2), docs(0, 1, 2));
+            assertParallel(searcher, sort(byId, byIdDesc), limit(0, 0), docs(0, 1, 2, 3));
+        } finally {
+            TestUtil.shutdownExecutorService(executor);
+        }
+    }
+
+    private void assertParallel(IndexSearcher searcher, Sort[] sorts, int[] limits, int[] docs) throws IOException {
+        EqDisjunctionMaxQuery q = q(sid("a"), sid("b"));
+        EqTopFieldCollector c = searcher.search(q, new EqTopFieldCollectorManager(searcher, q, sorts, limits, 10, true));
+        TopDocs topDocs = c.topDocs(0, 10);
+
+        assertEquals("scoreDocs.length", docs.length, topDocs.scoreDocs.length);
+        assertEquals("totalHits", docs.length, topDocs.totalHits.value);
+        for (int i = 0; i < docs.length; i++) {
+            assertEquals("docId", docs[i], topDocs.scoreDocs[i].doc);
+        }
+    }
+
+    public void testSearchAfter() throws Exception {
+        // doc 1 is pushed out of the limited bucket on every page
+        assertPages(indexSearcher, sort(byIdDesc, byId), limit(2, 0), 1, docs(3, 2, 0, 1), sqidx(1, 1, 2, 2));
+        assertPages(indexSearcherSeg, sort(byIdDesc, byId), limit(2, 0), 1, docs(3, 2, 0, 1), sqidx(1, 1, 2, 2));
+        // single queue
+        assertPages(indexSearcherSeg, sort(byId, byId), limit(0, 0), 2, docs(1, 2, 3, 0), sqidx(1, 1, 1, 2));
+    }
+
+    private void assertPages(IndexSearcher searcher, Sort[] sorts, int[] limits, int rows, int[] docs, int[] sqidx) throws IOException {
+        EqDisjunctionMaxQuery q = q(sid("b"), sid("a"));
+        EqFieldDoc after = null;
+        int n = 0;
+        while (true) {
+            EqTopFieldCollector c = EqTopFieldCollector.create(sorts, limits, rows, after, true, false, false, true);
+            searcher.search(q, c);
+            assertEquals("totalHits", docs.length, c.getTotalHits());
+            ScoreDoc[] page = c.topDocs(0, rows).scoreDocs;
+            if (page.length == 0) {
+                break;
+            }
+            for (ScoreDoc doc : page) {
+                assertEquals("docId", docs[n], doc.doc);
+                assertEquals("subquery index", sqidx[n], ((EqFieldDoc) doc).subqIndex);
+                n++;
+            }
+            after = (EqFieldDoc) page[page.length - 1];
+        }
+        assertEquals("paged docs", docs.length, n);
+    }
+
+    public void testSkipBuckets() throws Exception {
+        // the page starts behind the three docs of the first bucket
+        assertSkipBuckets(sort(byId, byId));
+        assertSkipBuckets(sort(byIdDesc, byId));
+    }
+
+    private void assertSkipBuckets(Sort[] sorts) throws IOException {
+        EqTopFieldCollector c = EqTopFieldCollector.create(sorts, limit(0, 0), 4);
+        c.skipBuckets(1, 3);
+        indexSearcherSeg.search(q(sid("b"), sid("a")), c);
+        assertEquals("totalHits", 4, c.getTotalHits());
+        ScoreDoc[] docs = c.topDocs(0, 4).scoreDocs;
+        assertEquals(4, docs.length);
+        for (int i = 0; i < 3; i++) {
+            assertSame(EqTopFieldCollector.SKIPPED, docs[i]);
+        }
+        assertEquals("docId", 0, docs[3].doc);
+        assertEquals("subquery index", 2, ((EqFieldDoc) docs[3]).subqIndex);
+    }
+
+    public void testIndexSortEarlyTermination() throws Exception {
+        Directory index = newDirectory();
+        RandomIndexWriter writer = new RandomIndexWriter(random(), index,
+                newIndexWriterConfig(new MockAnalyzer(random())).setSimilarity(similarity).setIndexSort(byId));
+
+        for (int i = 9; i >= 0; i--) {
+            writer.addDocument(doc(String.valueOf(i), i % 2 == 1 ? "a b" : "a"));
+        }
+        writer.forceMerge(1);
+        IndexReader indexReader = writer.getReader();
+        writer.close();
+        IndexSearcher searcher = new IndexSearcher(indexReader);
+        searcher.setSimilarity(similarity);
+
+        // the first bucket stops comparing at id=5, its docs go to the second bucket
+        EqTopFieldCollector c = EqTopFieldCollector.create(sort(byId, byIdDesc), limit(2, 0), 4);
+        searcher.search(q(sid("b"), sid("a")), c);
+        assertEquals("totalHits", 10, c.getTotalHits());
+        assertIds(searcher, c.topDocs().scoreDocs, 1, 3, 9, 8);
+
+        // both buckets are sorted like the segment, the collection stops after id=5
+        c = EqTopFieldCollector.create(sort(byId, byId), limit(0, 0), 3, null, false, false, false, false);
+        searcher.search(q(sid("b"), sid("a")), c);
+        TopDocs topDocs = c.topDocs();
+        assertEquals(TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO, topDocs.totalHits.relation);
+        assertTrue("totalHits", topDocs.totalHits.value < 10);
+        assertIds(searcher, topDocs.scoreDocs, 1, 3, 5);
+
+        indexReader.close();
+        index.close();
+    }
+
+    private static void assertIds(IndexSearcher searcher, ScoreDoc[] docs, int... ids) throws IOException {
+        assertEquals(ids.length, docs.length);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals("id", String.valueOf(ids[i]), searcher.doc(docs[i].doc).get("id"));
+        }
+    }
+
     public void testCompareBottomWithSavedDoc() throws Exception {
         Directory index = newDirectory();
         RandomIndexWriter writer = new RandomIndexWriter(random(), index,
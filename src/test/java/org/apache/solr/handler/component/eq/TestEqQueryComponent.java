@@ -3,13 +3,25 @@ package org.apache.solr.handler.component.eq;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
 import org.apache.solr.client.solrj.request.CollectionAdminRequest;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.cloud.SolrCloudTestCase;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.FastLRUCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -55,4 +67,285 @@ public class TestEqQueryComponent extends SolrCloudTestCase {
         assertEquals("5", rsp.getResults().get(0).getFieldValue(id));
     }
 
+    @Test
+    public void testPinned() throws Exception {
+        final SolrQuery solrQuery = new SolrQuery("q", "{!pinned ids=3,1} << {!pinned ids=4} << id:5");
+        solrQuery.setRequestHandler("/eq_search");
+        final QueryResponse rsp = cluster.getSolrClient().query(COLLECTION, solrQuery);
+        assertEquals(4, rsp.getResults().size());
+        assertEquals("3", rsp.getResults().get(0).getFieldValue(id));
+        assertEquals("1", rsp.getResults().get(1).getFieldValue(id));
+        assertEquals("4", rsp.getResults().get(2).getFieldValue(id));
+        assertEquals("5", rsp.getResults().get(3).getFieldValue(id));
+
+        // each pinned list is a subquery of its own, lim_0 cuts the first one
+        solrQuery.set("lim_0", "1");
+        final QueryResponse limited = cluster.getSolrClient().query(COLLECTION, solrQuery);
+        assertEquals(3, limited.getResults().size());
+        assertEquals("3", limited.getResults().get(0).getFieldValue(id));
+        assertEquals("4", limited.getResults().get(1).getFieldValue(id));
+        assertEquals("5", limited.getResults().get(2).getFieldValue(id));
+
+        // the pinned docs keep the order of their ids
+        solrQuery.set("sort_1", "date_dt desc");
+        expectThrows(Exception.class, () -> cluster.getSolrClient().query(COLLECTION, solrQuery));
+    }
+
+    @Test
+    public void testRequestLimits() throws Exception {
+        // the parser takes lim_0 into the query, so the rewrite keeps the repeated subquery for the docs beyond the limit
+        for (Slice slice : cluster.getSolrClient().getZkStateReader().getClusterState().getCollection(COLLECTION).getSlices()) {
+            try (HttpSolrClient client = getHttpSolrClient(slice.getLeader().getCoreUrl())) {
+                final SolrQuery solrQuery = new SolrQuery("q", "text_txt:text << text_txt:text");
+                solrQuery.setRequestHandler("/eq_search");
+                solrQuery.set("distrib", "false");
+                solrQuery.set("sort_0", "date_dt desc");
+                final QueryResponse unlimited = client.query(solrQuery);
+                for (SolrDocument doc : unlimited.getResults()) {
+                    assertEquals(1, ((Number) doc.getFieldValue("sqidx")).intValue());
+                }
+
+                solrQuery.set("lim_0", "1");
+                final QueryResponse limited = client.query(solrQuery);
+                assertEquals(unlimited.getResults().getNumFound(), limited.getResults().getNumFound());
+                assertEquals(unlimited.getResults().size(), limited.getResults().size());
+                for (int i = 0; i < limited.getResults().size(); i++) {
+                    final SolrDocument doc = limited.getResults().get(i);
+                    assertEquals(i == 0 ? 1 : 2, ((Number) doc.getFieldValue("sqidx")).intValue());
+                }
+                if (!limited.getResults().isEmpty()) {
+                    assertEquals(unlimited.getResults().get(0).getFieldValue(id), limited.getResults().get(0).getFieldValue(id));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResultCache() throws Exception {
+        final SolrQuery solrQuery = new SolrQuery("q", "id:5 << id:1 << id:3");
+        solrQuery.setRequestHandler("/eq_search");
+        final QueryResponse first = cluster.getSolrClient().query(COLLECTION, solrQuery);
+        assertEquals(3, first.getResults().size());
+
+        // the same window and the next page are served from the queryResultCache
+        final QueryResponse cached = cluster.getSolrClient().query(COLLECTION, solrQuery);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(first.getResults().get(i).getFieldValue(id), cached.getResults().get(i).getFieldValue(id));
+            assertEquals(first.getResults().get(i).getFieldValue("sqidx"), cached.getResults().get(i).getFieldValue("sqidx"));
+        }
+
+        solrQuery.setStart(1).setRows(1);
+        final QueryResponse page = cluster.getSolrClient().query(COLLECTION, solrQuery);
+        assertEquals(1, page.getResults().size());
+        assertEquals(first.getResults().get(1).getFieldValue(id), page.getResults().get(0).getFieldValue(id));
+        assertEquals(first.getResults().get(1).getFieldValue("sqidx"), page.getResults().get(0).getFieldValue("sqidx"));
+    }
+
+    @Test
+    public void testConstantScoreDocSets() throws Exception {
+        // the doc set of the constant score subquery is taken from the filterCache of the core
+        for (Slice slice : cluster.getSolrClient().getZkStateReader().getClusterState().getCollection(COLLECTION).getSlices()) {
+            final Replica leader = slice.getLeader();
+            try (HttpSolrClient client = getHttpSolrClient(leader.getCoreUrl())) {
+                final SolrQuery solrQuery = new SolrQuery("q", "id:5 << text_txt:text^=1");
+                solrQuery.setRequestHandler("/eq_search");
+                solrQuery.set("distrib", "false");
+                final long[] before = filterCacheStats(leader);
+                final QueryResponse first = client.query(solrQuery);
+                if (first.getResults().getNumFound() == 0) {
+                    // no segment asks for the doc set
+                    continue;
+                }
+                final long[] afterFirst = filterCacheStats(leader);
+                assertTrue(afterFirst[0] > before[0]);
+
+                // the sort of the first subquery misses the queryResultCache, the doc set is a hit
+                solrQuery.set("sort_0", "date_dt desc");
+                final QueryResponse second = client.query(solrQuery);
+                final long[] afterSecond = filterCacheStats(leader);
+                assertTrue(afterSecond[0] > afterFirst[0]);
+                assertTrue(afterSecond[1] > afterFirst[1]);
+
+                assertEquals(first.getResults().getNumFound(), second.getResults().getNumFound());
+                assertEquals(first.getResults().size(), second.getResults().size());
+                for (int i = 0; i < first.getResults().size(); i++) {
+                    assertEquals(first.getResults().get(i).getFieldValue(id), second.getResults().get(i).getFieldValue(id));
+                    assertEquals(first.getResults().get(i).getFieldValue("sqidx"), second.getResults().get(i).getFieldValue("sqidx"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSubQueryCache() throws Exception {
+        // the doc set for the facets needs all the subqueries, so the limited bucket is searched live
+        final SolrQuery live = subQueryCacheQuery();
+        live.setFacet(true).addFacetField("title_str");
+        final QueryResponse expected = cluster.getSolrClient().query(COLLECTION, live);
+
+        // the first request fills the subquery cache and is seeded from it
+        for (int n = 0; n < 2; n++) {
+            final QueryResponse rsp = cluster.getSolrClient().query(COLLECTION, subQueryCacheQuery());
+            assertEquals(expected.getResults().getNumFound(), rsp.getResults().getNumFound());
+            assertEquals(expected.getResults().size(), rsp.getResults().size());
+            for (int i = 0; i < expected.getResults().size(); i++) {
+                assertEquals(expected.getResults().get(i).getFieldValue(id), rsp.getResults().get(i).getFieldValue(id));
+                assertEquals(expected.getResults().get(i).getFieldValue("sqidx"), rsp.getResults().get(i).getFieldValue("sqidx"));
+            }
+        }
+    }
+
+    @Test
+    public void testCursorMark() throws Exception {
+        final QueryResponse expected = cluster.getSolrClient().query(COLLECTION, subQueryCacheQuery());
+
+        // one doc per page, the cursor of the last page stays the same
+        final SolrQuery solrQuery = subQueryCacheQuery().setRows(1);
+        String cursorMark = "*";
+        for (int i = 0; i <= expected.getResults().size(); i++) {
+            solrQuery.set("eq.cursorMark", cursorMark);
+            final QueryResponse page = cluster.getSolrClient().query(COLLECTION, solrQuery);
+            final String nextCursorMark = (String) page.getResponse().get("eq.nextCursorMark");
+            if (i == expected.getResults().size()) {
+                assertEquals(0, page.getResults().size());
+                assertEquals(cursorMark, nextCursorMark);
+            } else {
+                assertEquals(1, page.getResults().size());
+                assertEquals(expected.getResults().get(i).getFieldValue(id), page.getResults().get(0).getFieldValue(id));
+                assertEquals(expected.getResults().get(i).getFieldValue("sqidx"), page.getResults().get(0).getFieldValue("sqidx"));
+                assertFalse(cursorMark.equals(nextCursorMark));
+            }
+            cursorMark = nextCursorMark;
+        }
+    }
+
+    @Test
+    public void testTotalHitsThreshold() throws Exception {
+        final QueryResponse exact = cluster.getSolrClient().query(COLLECTION, subQueryCacheQuery());
+        assertNull(exact.getHeader().get("numFoundExact"));
+
+        final SolrQuery solrQuery = subQueryCacheQuery().setRows(1);
+        solrQuery.set("eq.totalHitsThreshold", "0");
+        final QueryResponse response = cluster.getSolrClient().query(COLLECTION, solrQuery);
+        assertEquals(Boolean.FALSE, response.getHeader().get("numFoundExact"));
+        assertEquals(exact.getResults().get(0).getFieldValue(id), response.getResults().get(0).getFieldValue(id));
+
+        // past the threshold, but the window takes all the hits and none is skipped,
+        // the cached result keeps the exact count of the search
+        final SolrQuery all = new SolrQuery("q", "id:5 << id:1 << id:3");
+        all.setRequestHandler("/eq_search");
+        all.set("eq.totalHitsThreshold", "0");
+        for (int i = 0; i < 2; i++) {
+            final QueryResponse rsp = cluster.getSolrClient().query(COLLECTION, all);
+            assertEquals(3, rsp.getResults().getNumFound());
+            assertNull(rsp.getHeader().get("numFoundExact"));
+        }
+    }
+
+    @Test
+    public void testCountOnly() throws Exception {
+        final SolrQuery solrQuery = new SolrQuery("q", "id:5 << id:1 << id:3");
+        solrQuery.setRequestHandler("/eq_search");
+        final QueryResponse expected = cluster.getSolrClient().query(COLLECTION, solrQuery);
+
+        // the buckets are counted without collecting any doc
+        solrQuery.setRows(0);
+        final QueryResponse rsp = cluster.getSolrClient().query(COLLECTION, solrQuery);
+        assertEquals(expected.getResults().getNumFound(), rsp.getResults().getNumFound());
+        assertEquals(0, rsp.getResults().size());
+        final NamedList<?> bucketCounts = (NamedList<?>) rsp.getResponse().get("eq.bucketCounts");
+        assertEquals(3, bucketCounts.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, ((Number) bucketCounts.getVal(i)).intValue());
+        }
+    }
+
+    @Test
+    public void testBucketFacet() throws Exception {
+        final SolrQuery solrQuery = new SolrQuery("q", "id:5 << id:1 << id:3");
+        solrQuery.setRequestHandler("/eq_search");
+        solrQuery.set("eq.bucketFacet", "{\"titles\":{\"type\":\"terms\",\"field\":\"title_str\"}}");
+        solrQuery.set("json.facet", "{\"second\":{\"type\":\"terms\",\"field\":\"title_str\",\"domain\":{\"filter\":\"{!eqbucket b=2}\"}}}");
+        final QueryResponse rsp = cluster.getSolrClient().query(COLLECTION, solrQuery);
+        final NamedList<?> facets = (NamedList<?>) rsp.getResponse().get("facets");
+
+        // the domain of a facet restricted to a bucket
+        final List<?> second = (List<?>) ((NamedList<?>) facets.get("second")).get("buckets");
+        assertEquals(1, second.size());
+        assertEquals("Title 1", ((NamedList<?>) second.get(0)).get("val"));
+
+        // the facets of each bucket below sqidx
+        final NamedList<?> sqidx = (NamedList<?>) facets.get("sqidx");
+        assertEquals(3, ((Number) sqidx.get("count")).intValue());
+        final String[] titles = { "Title 5", "Title 1", "Title 3" };
+        for (int i = 0; i < titles.length; i++) {
+            final NamedList<?> bucket = (NamedList<?>) sqidx.get(String.valueOf(i + 1));
+            assertEquals(1, ((Number) bucket.get("count")).intValue());
+            final List<?> buckets = (List<?>) ((NamedList<?>) bucket.get("titles")).get("buckets");
+            assertEquals(1, buckets.size());
+            assertEquals(titles[i], ((NamedList<?>) buckets.get(0)).get("val"));
+        }
+    }
+
+    @Test
+    public void testPlannedPage() throws Exception {
+        // the shards of a distributed request start at 0, the page is planned on a core of its own
+        final String coreUrl = cluster.getSolrClient().getZkStateReader().getClusterState().getCollection(COLLECTION)
+                .getSlices().iterator().next().getLeader().getCoreUrl();
+        try (HttpSolrClient client = getHttpSolrClient(coreUrl)) {
+            final SolrQuery solrQuery = new SolrQuery("q", "id:1 << id:2 << *:*");
+            solrQuery.setRequestHandler("/eq_search");
+            solrQuery.set("distrib", "false");
+            final QueryResponse expected = client.query(solrQuery);
+
+            // each page is behind the skipped buckets, the second round takes the cached counts
+            solrQuery.set("eq.planStart", "1").setRows(1);
+            for (int n = 0; n < 2; n++) {
+                for (int i = 1; i < expected.getResults().size(); i++) {
+                    final QueryResponse page = client.query(solrQuery.setStart(i));
+                    assertEquals(expected.getResults().getNumFound(), page.getResults().getNumFound());
+                    assertEquals(i, page.getResults().getStart());
+                    assertEquals(1, page.getResults().size());
+                    assertEquals(expected.getResults().get(i).getFieldValue(id), page.getResults().get(0).getFieldValue(id));
+                    assertEquals(expected.getResults().get(i).getFieldValue("sqidx"), page.getResults().get(0).getFieldValue("sqidx"));
+                }
+            }
+
+            // the planned pages left no docs of the skipped buckets in the queryResultCache
+            solrQuery.set("eq.planStart", "1000").setStart(0).setRows(10);
+            final QueryResponse all = client.query(solrQuery);
+            assertEquals(expected.getResults().size(), all.getResults().size());
+            for (int i = 0; i < expected.getResults().size(); i++) {
+                assertEquals(expected.getResults().get(i).getFieldValue(id), all.getResults().get(i).getFieldValue(id));
+            }
+        }
+    }
+
+    /* the lookups and the hits of the filterCache of the core of the replica */
+    private static long[] filterCacheStats(Replica replica) {
+        for (JettySolrRunner jetty : cluster.getJettySolrRunners()) {
+            try (SolrCore core = jetty.getCoreContainer().getCore(replica.getCoreName())) {
+                if (core == null) {
+                    continue;
+                }
+                final RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+                try {
+                    final Map<String, Object> stats = ((FastLRUCache<?, ?>) searcher.get().getFilterCache()).getMetricsMap().getValue();
+                    return new long[] { ((Number) stats.get("lookups")).longValue(), ((Number) stats.get("hits")).longValue() };
+                } finally {
+                    searcher.decref();
+                }
+            }
+        }
+        throw new AssertionError("no core for " + replica.getCoreName());
+    }
+
+    private static SolrQuery subQueryCacheQuery() {
+        final SolrQuery solrQuery = new SolrQuery("q", "text_txt:text << id:1");
+        solrQuery.set("sort_0", "date_dt desc");
+        solrQuery.set("lim_0", "1");
+        solrQuery.setRequestHandler("/eq_search");
+        return solrQuery;
+    }
+
 }